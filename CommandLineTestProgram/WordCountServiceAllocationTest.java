@@ -0,0 +1,525 @@
+import java.io.*;
+import java.util.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import wordcountservice.Functions;
+import wordcountservice.IndexingStatus;
+import wordcountservice.AccessLog;
+import wordcountservice.QueryCountJournal;
+import wordcountservice.WordCountIndex;
+import wordcountservice.WordCountOverlay;
+import wordcountservice.WordCountServiceEndPoint;
+import wordcountservice.WordCountStore;
+
+/**
+* WordCountServiceAllocationTest:
+*   acceptance test of the allocation-free query path. it runs
+*   WordCountServiceEndPoint in process, with its executor, behind request,
+*   response and async context stand-ins that allocate nothing per request,
+*   and reads ThreadMXBean.getThreadAllocatedBytes of the connector thread
+*   (doGet handing the query over) and of the query thread (answering it).
+*   a synthetic index of -v words, half of them with a word_count delta,
+*   stands in for the corpus; -j and -l switch on the query_count journal
+*   and the access log. what Tomcat allocates for its own request objects is
+*   not part of the measure. exits with status 1 when either thread
+*   allocates more than -a bytes per request
+*   compile and run with WordCountService/target/classes and the servlet api
+*   jar on the classpath
+*/
+public class WordCountServiceAllocationTest {
+
+    private static final String URI = "/WordCountService/wordcountservice/query";
+
+    /**
+    * Context:
+    *   servlet context stand-in holding attributes and init parameters
+    */
+    public static class Context implements InvocationHandler
+    {
+        private final HashMap<String, Object> attributes = new HashMap<String, Object>();
+        private final HashMap<String, String> parameters = new HashMap<String, String>();
+
+        /**
+         * answer the ServletContext calls the service makes
+         */
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if (name.equals("getAttribute"))
+                return attributes.get(args[0]);
+            if (name.equals("setAttribute"))
+                return attributes.put((String) args[0], args[1]);
+            if (name.equals("removeAttribute"))
+                return attributes.remove(args[0]);
+            if (name.equals("getInitParameter"))
+                return parameters.get(args[0]);
+            if (name.equals("log"))
+            {
+                System.out.println(args[0]);
+                if (args.length > 1 && args[1] instanceof Throwable)
+                    ((Throwable) args[1]).printStackTrace(System.out);
+                return null;
+            }
+            throw new UnsupportedOperationException("ServletContext."+name);
+        }
+    }
+
+    /**
+    * Exchange:
+    *   one request, its response and its async context, reset and reused for
+    *   every query so that the container side allocates nothing
+    */
+    public static class Exchange implements AsyncContext
+    {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final AsyncEvent event;
+        private final ServletOutputStream out;
+        private String [] words = null;
+        private AsyncListener listener = null;
+        private int status = 0;
+        private int length = 0;
+        private volatile boolean complete = true;
+        // id of the thread that completed the last query
+        private volatile long completedBy = -1;
+
+        /**
+         * constructor Exchange
+         *
+         * @param unsupportedRequest: request stand-in rejecting every call not overridden here
+         * @param unsupportedResponse: response stand-in rejecting every call not overridden here
+         */
+        public Exchange(HttpServletRequest unsupportedRequest, HttpServletResponse unsupportedResponse)
+        {
+            final AsyncContext async = this;
+            request = new HttpServletRequestWrapper(unsupportedRequest)
+            {
+                @Override
+                public String getMethod()
+                {
+                    return "GET";
+                }
+
+                @Override
+                public String getRequestURI()
+                {
+                    return URI;
+                }
+
+                @Override
+                public String getQueryString()
+                {
+                    return null;
+                }
+
+                @Override
+                public String [] getParameterValues(String name)
+                {
+                    return name.equals("word") ? words : null;
+                }
+
+                @Override
+                public boolean isAsyncSupported()
+                {
+                    return true;
+                }
+
+                @Override
+                public AsyncContext startAsync()
+                {
+                    return async;
+                }
+            };
+            out = new ServletOutputStream()
+            {
+                @Override
+                public void write(int b)
+                {
+                    length++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                {
+                    length += len;
+                }
+
+                @Override
+                public boolean isReady()
+                {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener)
+                {
+                }
+            };
+            response = new HttpServletResponseWrapper(unsupportedResponse)
+            {
+                @Override
+                public void setContentType(String type)
+                {
+                }
+
+                @Override
+                public void setContentLength(int len)
+                {
+                }
+
+                @Override
+                public void setHeader(String name, String value)
+                {
+                }
+
+                @Override
+                public void sendError(int sc, String msg)
+                {
+                    status = sc;
+                }
+
+                @Override
+                public boolean isCommitted()
+                {
+                    return false;
+                }
+
+                @Override
+                public ServletOutputStream getOutputStream()
+                {
+                    return out;
+                }
+            };
+            event = new AsyncEvent(this);
+        }
+
+        /**
+         * prepare the exchange for the next query
+         *
+         * @param words: the word parameters of the query
+         */
+        public void reset(String [] words)
+        {
+            this.words = words;
+            listener = null;
+            status = 200;
+            length = 0;
+            complete = false;
+        }
+
+        @Override
+        public void complete()
+        {
+            completedBy = Thread.currentThread().getId();
+            // the container reports completion to the listeners
+            try
+            {
+                if (listener != null)
+                    listener.onComplete(event);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            complete = true;
+        }
+
+        @Override
+        public void addListener(AsyncListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public void setTimeout(long timeout)
+        {
+        }
+
+        @Override
+        public ServletRequest getRequest()
+        {
+            return request;
+        }
+
+        @Override
+        public ServletResponse getResponse()
+        {
+            return response;
+        }
+
+        @Override
+        public boolean hasOriginalRequestAndResponse()
+        {
+            return true;
+        }
+
+        @Override
+        public void dispatch()
+        {
+            throw new UnsupportedOperationException("AsyncContext.dispatch");
+        }
+
+        @Override
+        public void dispatch(String path)
+        {
+            throw new UnsupportedOperationException("AsyncContext.dispatch");
+        }
+
+        @Override
+        public void dispatch(ServletContext context, String path)
+        {
+            throw new UnsupportedOperationException("AsyncContext.dispatch");
+        }
+
+        @Override
+        public void start(Runnable run)
+        {
+            throw new UnsupportedOperationException("AsyncContext.start");
+        }
+
+        @Override
+        public void addListener(AsyncListener listener, ServletRequest servletRequest,
+            ServletResponse servletResponse)
+        {
+            addListener(listener);
+        }
+
+        @Override
+        public <T extends AsyncListener> T createListener(Class<T> clazz)
+        {
+            throw new UnsupportedOperationException("AsyncContext.createListener");
+        }
+
+        @Override
+        public long getTimeout()
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * send numOfReq queries through the endpoint, keeping every exchange in
+     * flight, and check each answer
+     *
+     * @param endPoint: query servlet
+     * @param exchanges: request, response and async context stand-ins
+     * @param queries: word parameters, used round robin
+     * @param numOfReq: number of queries
+     */
+    private static void drive(WordCountServiceEndPoint endPoint, Exchange [] exchanges,
+        String [][] queries, int numOfReq) throws Exception
+    {
+        for (int i = 0; i < numOfReq + exchanges.length; i++)
+        {
+            Exchange exchange = exchanges[i % exchanges.length];
+            while (!exchange.complete)
+                Thread.yield();
+            if (i >= exchanges.length && (exchange.status != 200 || exchange.length == 0))
+                throw new IllegalStateException("query failed with status "+exchange.status);
+            if (i >= numOfReq)
+                continue;
+            exchange.reset(queries[i % queries.length]);
+            endPoint.service(exchange.request, exchange.response);
+        }
+    }
+
+    public static void main(String[] args)  throws Exception {
+
+        //paring arguments to get
+        //-n: measured query count
+        //-v: words in the index
+        //-p: queries in flight
+        //-a: allowed bytes per request on each thread, an object allocated per request costs 16 or more
+        //-j: query_count journal path prefix, journal off by default
+        //-l: access log file, access log off by default
+        String queryTime = "1000000";
+        String vocabulary = "100000";
+        String inFlight = "64";
+        String allowed = "0.1";
+        String journalBase = null;
+        String accessLogFile = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].length() != 2 || args[i].charAt(0) != '-')
+                throw new IllegalArgumentException("Not a valid argument: "+args[i]);
+
+            if (args.length-1 == i)
+                throw new IllegalArgumentException("Expected arg after: "+args[i]);
+
+            switch (args[i].charAt(1))
+            {
+                case 'n':
+                    queryTime = args[i+1];
+                    break;
+                case 'v':
+                    vocabulary = args[i+1];
+                    break;
+                case 'p':
+                    inFlight = args[i+1];
+                    break;
+                case 'a':
+                    allowed = args[i+1];
+                    break;
+                case 'j':
+                    journalBase = args[i+1];
+                    break;
+                case 'l':
+                    accessLogFile = args[i+1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a valid option: "+args[i]);
+            }
+            i++;
+        }
+
+        int numOfReq = Integer.parseInt(queryTime);
+        int numOfWords = Integer.parseInt(vocabulary);
+        int numOfExchanges = Integer.parseInt(inFlight);
+        double allowedBytes = Double.parseDouble(allowed);
+        if (numOfReq <= 0 || numOfWords <= 0 || numOfExchanges <= 0)
+            throw new IllegalArgumentException("Not a valid test size: -n "+queryTime+" -v "+vocabulary+" -p "+inFlight);
+
+        Context handler = new Context();
+        final ServletContext context = (ServletContext) Proxy.newProxyInstance(
+            WordCountServiceAllocationTest.class.getClassLoader(), new Class<?>[] { ServletContext.class }, handler);
+        handler.parameters.put("queryThreads", "1");
+        handler.parameters.put("queryQueue", Integer.toString(numOfExchanges));
+
+        //index of w0 .. w(v-1), every even word changed by the corpus watcher since
+        WordCountStore corpus = Functions.createWordCountStore(context);
+        for (int i = 0; i < numOfWords; i++)
+        {
+            for (int k = 0; k <= i % 3; k++)
+                corpus.addWord("w"+i);
+        }
+        WordCountIndex index = WordCountIndex.build(corpus);
+        WordCountOverlay overlay = new WordCountOverlay(index);
+        for (int i = 0; i < numOfWords; i += 2)
+        {
+            byte[] word = ("w"+i).getBytes("UTF-8");
+            overlay.add(overlay.id(word, 0, word.length), 1);
+        }
+        // words added to the corpus after the index was built
+        for (int i = numOfWords; i < numOfWords + 100; i++)
+        {
+            byte[] word = ("w"+i).getBytes("UTF-8");
+            overlay.add(overlay.id(word, 0, word.length), 1);
+        }
+        overlay.advance();
+        IndexingStatus status = new IndexingStatus();
+        status.setState(IndexingStatus.READY);
+
+        WordCountStore queryCountStore = Functions.createWordCountStore(context);
+        handler.attributes.put("queryCountStore", queryCountStore);
+        handler.attributes.put("wordCountIndex", index);
+        handler.attributes.put("wordCountOverlay", overlay);
+        handler.attributes.put("indexingStatus", status);
+        QueryCountJournal journal = null;
+        if (journalBase != null)
+        {
+            journal = new QueryCountJournal(queryCountStore, new File(journalBase), 10, false, 64L << 20);
+            handler.attributes.put("queryCountJournal", journal);
+        }
+        AccessLog accessLog = null;
+        if (accessLogFile != null)
+        {
+            accessLog = new AccessLog(context, new File(accessLogFile), AccessLog.DEFAULT_CAPACITY, 1);
+            handler.attributes.put("accessLog", accessLog);
+        }
+
+        WordCountServiceEndPoint endPoint = new WordCountServiceEndPoint();
+        endPoint.init((ServletConfig) Proxy.newProxyInstance(
+            WordCountServiceAllocationTest.class.getClassLoader(), new Class<?>[] { ServletConfig.class },
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getServletContext"))
+                        return context;
+                    if (method.getName().equals("getServletName"))
+                        return "WordCountServiceEndPoint";
+                    if (method.getName().equals("getInitParameter"))
+                        return null;
+                    throw new UnsupportedOperationException("ServletConfig."+method.getName());
+                }
+            }));
+
+        InvocationHandler unsupported = new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName()
+                    +"."+method.getName());
+            }
+        };
+        HttpServletRequest unsupportedRequest = (HttpServletRequest) Proxy.newProxyInstance(
+            WordCountServiceAllocationTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, unsupported);
+        HttpServletResponse unsupportedResponse = (HttpServletResponse) Proxy.newProxyInstance(
+            WordCountServiceAllocationTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, unsupported);
+        Exchange [] exchanges = new Exchange[numOfExchanges];
+        for (int i = 0; i < exchanges.length; i++)
+            exchanges[i] = new Exchange(unsupportedRequest, unsupportedResponse);
+
+        // words with and without delta, words only the overlay knows and words of no file
+        String [][] queries = new String[Math.min(numOfWords, 4096) + 200][];
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = new String [] { "w"+(numOfWords + 200 - queries.length + i) };
+
+        //warm up: first queries of a word add it to the query_count store, the JIT compiles the path
+        drive(endPoint, exchanges, queries, Math.max(numOfReq / 10, 20 * queries.length));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long connector = Thread.currentThread().getId();
+        long query = exchanges[0].completedBy;
+        long connectorBefore = threads.getThreadAllocatedBytes(connector);
+        long queryBefore = threads.getThreadAllocatedBytes(query);
+        long start = System.nanoTime();
+        drive(endPoint, exchanges, queries, numOfReq);
+        long elapsed = System.nanoTime() - start;
+        long connectorBytes = threads.getThreadAllocatedBytes(connector) - connectorBefore;
+        long queryBytes = threads.getThreadAllocatedBytes(query) - queryBefore;
+
+        endPoint.destroy();
+        if (journal != null)
+            journal.close();
+        if (accessLog != null)
+            accessLog.close();
+
+        double connectorPerReq = (double) connectorBytes / numOfReq;
+        double queryPerReq = (double) queryBytes / numOfReq;
+        System.out.println("requests "+numOfReq
+            +" in-flight "+numOfExchanges
+            +" journal "+(journal != null ? "on" : "off")
+            +" access-log "+(accessLog != null ? "on" : "off")
+            +" requests/sec "+(long) (numOfReq * 1e9 / elapsed));
+        System.out.println("connector bytes "+connectorBytes+" bytes/request "+connectorPerReq);
+        System.out.println("query bytes "+queryBytes+" bytes/request "+queryPerReq);
+        if (connectorPerReq > allowedBytes || queryPerReq > allowedBytes)
+        {
+            System.out.println("allocation test failed, more than "+allowedBytes+" bytes/request");
+            System.exit(1);
+        }
+        System.out.println("allocation test success!!");
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.util.*;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.net.MalformedURLException;
+
+/**
+* WordCountServiceBenchmark:
+*   to measure WordcountServiceEndPoint throughput under growing thread counts
+*   each level fires the same number of queries and reports requests per second,
+*   run it once against the old build and once against the new one to compare.
+*   a single -w word makes every thread hit the same counter, which measures
+*   contention on one hot word. with -b every request carries a batch of
+*   words, as repeated word parameters or (-m post) as a body with one word
+*   per line, and the per-word latency shows what batching saves
+*/
+public class WordCountServiceBenchmark {
+
+    // restful serivce URI
+    private static final String DOMAINURI = "http://localhost:8080/WordCountService/wordcountservice/query";
+
+    /**
+    * QueryFetch:
+    *   a runnable job to query restful service repeatedly
+    */
+    public static class QueryFetch implements Runnable
+    {
+        // buffering size
+        private static int CHUNKSIZE = 4096;
+
+        private String [] queryWords = null;
+        private int batchSize = 1;
+        private boolean post = false;
+        private int numOfReq = 0;
+        private AtomicLong failures = null;
+        private AtomicLong latency = null;
+        private CountDownLatch fetchCount = null;
+
+        /**
+         * constructor QueryFetch
+         *
+         * @param queryWords: the words to query restful service, used round robin
+         * @param batchSize: num of words per query
+         * @param post: whether to send the words as POST body instead of parameters
+         * @param numOfReq: num of queries performed by this job
+         * @param failures: counter of failed queries
+         * @param latency: sum of query latencies in nanoseconds
+         * @param fetchCount: job counter, help exectuorService to monitor whether a job is finished
+         */
+        public QueryFetch(String [] queryWords, int batchSize, boolean post, int numOfReq,
+            AtomicLong failures, AtomicLong latency, CountDownLatch fetchCount)
+        {
+          this.queryWords = queryWords;
+          this.batchSize = batchSize;
+          this.post = post;
+          this.numOfReq = numOfReq;
+          this.failures = failures;
+          this.latency = latency;
+          this.fetchCount = fetchCount;
+        }
+
+        /**
+         * open one query of batchSize words, starting at a round robin position
+         *
+         * @param first: index of the first word of the batch
+         */
+        private InputStream open(int first) throws IOException
+        {
+            if (!post)
+            {
+                StringBuilder url = new StringBuilder(DOMAINURI);
+                for (int i = 0; i < batchSize; i++)
+                {
+                    url.append(i == 0 ? "?word=" : "&word=");
+                    url.append(URLEncoder.encode(queryWords[(first + i) % queryWords.length], "UTF-8"));
+                }
+                return new URL(url.toString()).openStream();
+            }
+
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < batchSize; i++)
+                body.append(queryWords[(first + i) % queryWords.length]).append('\n');
+            byte[] bytes = body.toString().getBytes("UTF-8");
+            HttpURLConnection conn = (HttpURLConnection) new URL(DOMAINURI).openConnection();
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+            conn.setFixedLengthStreamingMode(bytes.length);
+            OutputStream os = conn.getOutputStream();
+            try
+            {
+                os.write(bytes);
+            }
+            finally
+            {
+                os.close();
+            }
+            return conn.getInputStream();
+        }
+
+        /**
+         * thread start function
+         */
+        @Override
+        public void run()
+        {
+            byte[] chunk = new byte[CHUNKSIZE];
+            try
+            {
+                for (int i = 0; i < numOfReq; i++)
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        InputStream is = open(i * batchSize);
+                        try
+                        {
+                            while (is.read(chunk, 0, CHUNKSIZE) != -1)
+                                ;
+                        }
+                        finally
+                        {
+                            is.close();
+                        }
+                        latency.addAndGet(System.nanoTime() - start);
+                    }
+                    catch(MalformedURLException e)
+                    {
+                        System.out.println("URL malform exception:"+DOMAINURI);
+                        failures.incrementAndGet();
+                    }
+                    catch (IOException e)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+            finally
+            {
+                fetchCount.countDown();
+            }
+        }
+    }
+
+    /**
+     * run one benchmark level and print its throughput
+     *
+     * @param queryWords: the words to query restful service
+     * @param batchSize: num of words per query
+     * @param post: whether to send the words as POST body
+     * @param numOfThread: num of concurrent querying threads
+     * @param numOfReq: total num of queries of this level
+     */
+    private static void runLevel(String [] queryWords, int batchSize, boolean post, int numOfThread,
+        int numOfReq) throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(numOfThread);
+        CountDownLatch queryCountLatch = new CountDownLatch(numOfThread);
+        AtomicLong failures = new AtomicLong();
+        AtomicLong latency = new AtomicLong();
+        int perThread = Math.max(1, numOfReq / numOfThread);
+
+        long start = System.nanoTime();
+        for (int i = 0 ; i < numOfThread; i++)
+            executor.execute(new QueryFetch(queryWords, batchSize, post, perThread, failures, latency,
+                queryCountLatch));
+        queryCountLatch.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        // latency averages over the queries that succeeded
+        long total = (long) perThread * numOfThread;
+        long done = Math.max(1, total - failures.get());
+        System.out.println("threads "+numOfThread
+            +" requests "+total
+            +" words "+total * batchSize
+            +" failures "+failures.get()
+            +" seconds "+(elapsed / 1e9)
+            +" requests/sec "+(long) (total * 1e9 / elapsed)
+            +" words/sec "+(long) (total * batchSize * 1e9 / elapsed)
+            +" ms/request "+(latency.get() / 1e6 / done)
+            +" us/word "+(latency.get() / 1e3 / done / batchSize));
+    }
+
+    public static void main(String[] args)  throws Exception {
+
+        //paring arguments to get
+        //-w: query words, comma separated
+        //-t: thread counts, comma separated
+        //-n: query count per thread count
+        //-b: words per query
+        //-m: get or post
+        String queryWord = null;
+        String threadCounts = "1,2,4,8,16,32,64";
+        String queryTime = "10000";
+        String batch = "1";
+        String method = "get";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].length() != 2 || args[i].charAt(0) != '-')
+                throw new IllegalArgumentException("Not a valid argument: "+args[i]);
+
+            if (args.length-1 == i)
+                throw new IllegalArgumentException("Expected arg after: "+args[i]);
+
+            switch (args[i].charAt(1))
+            {
+                case 'w':
+                    queryWord = args[i+1];
+                    break;
+                case 't':
+                    threadCounts = args[i+1];
+                    break;
+                case 'n':
+                    queryTime = args[i+1];
+                    break;
+                case 'b':
+                    batch = args[i+1];
+                    break;
+                case 'm':
+                    method = args[i+1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a valid option: "+args[i]);
+            }
+            i++;
+        }
+
+        if (queryWord == null)
+            throw new IllegalArgumentException("missing querywords -w");
+
+        if (!method.equals("get") && !method.equals("post"))
+            throw new IllegalArgumentException("Not a valid method: "+method);
+
+        String [] queryWords = queryWord.split(",");
+        int numOfReq = Integer.parseInt(queryTime);
+        int batchSize = Integer.parseInt(batch);
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("Not a valid batch size: "+batch);
+        boolean post = method.equals("post");
+
+        //warm up service before measuring
+        runLevel(queryWords, batchSize, post, 1, Math.min(numOfReq, 1000));
+
+        for (String threadCount : threadCounts.split(","))
+            runLevel(queryWords, batchSize, post, Integer.parseInt(threadCount.trim()), numOfReq);
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.util.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wordcountservice.QueryCountJournal;
+import wordcountservice.StripedWordCountStore;
+import wordcountservice.WordCount;
+import wordcountservice.WordCountStore;
+import wordcountservice.WordHasher;
+
+/**
+* WordCountServiceDurabilityBenchmark:
+*   to measure what the query_count journal costs. it bumps query_count of
+*   -v distinct words in process, the way a query does, with the store
+*   alone (memory), with the journal appending in the background (async)
+*   and with every query waiting for the fsync of its record (sync), and
+*   reports queries per second under growing thread counts. after each
+*   journaled level the journal is closed and replayed into a fresh store,
+*   and the benchmark fails when a query_count did not come back
+*   compile and run with WordCountService/target/classes on the classpath
+*/
+public class WordCountServiceDurabilityBenchmark {
+
+    /**
+    * QueryLoop:
+    *   a runnable job bumping query_count until its deadline
+    */
+    public static class QueryLoop implements Runnable
+    {
+        private WordCountStore store = null;
+        private QueryCountJournal journal = null;
+        private String [] words = null;
+        private int first = 0;
+        private long deadline = 0;
+        private AtomicLong queries = null;
+        private CountDownLatch loopCount = null;
+
+        /**
+         * constructor QueryLoop
+         *
+         * @param store: query_count store
+         * @param journal: journal logging every query, or null for memory only
+         * @param words: the words to query, used round robin
+         * @param first: index of the first word queried by this job
+         * @param deadline: System.nanoTime() at which the job stops
+         * @param queries: counter of queries performed
+         * @param loopCount: job counter, tells the level when all jobs stopped
+         */
+        public QueryLoop(WordCountStore store, QueryCountJournal journal, String [] words, int first,
+            long deadline, AtomicLong queries, CountDownLatch loopCount)
+        {
+            this.store = store;
+            this.journal = journal;
+            this.words = words;
+            this.first = first;
+            this.deadline = deadline;
+            this.queries = queries;
+            this.loopCount = loopCount;
+        }
+
+        /**
+         * thread start function
+         */
+        @Override
+        public void run()
+        {
+            WordCount counts = new WordCount(0, 0);
+            long done = 0;
+            int next = first;
+            try
+            {
+                while (System.nanoTime() < deadline)
+                {
+                    // check the clock once per round of queries
+                    for (int i = 0; i < 64; i++)
+                    {
+                        String word = words[next];
+                        next = next + 1 == words.length ? 0 : next + 1;
+                        store.query(word, counts);
+                        if (journal != null)
+                            journal.append(word, counts);
+                        done++;
+                    }
+                }
+            }
+            finally
+            {
+                queries.addAndGet(done);
+                loopCount.countDown();
+            }
+        }
+    }
+
+    /**
+     * new query_count store, as configured by default in web.xml
+     */
+    private static WordCountStore createStore()
+    {
+        return new StripedWordCountStore(256, WordHasher.create("murmur3"));
+    }
+
+    /**
+     * run one benchmark level and print its throughput
+     *
+     * @param mode: memory, async or sync
+     * @param base: path prefix of the journal files
+     * @param windowMillis: durability window of the journal
+     * @param words: the words to query
+     * @param numOfThread: num of concurrent querying threads
+     * @param seconds: duration of the level
+     * @return false when the journal did not restore every query_count
+     */
+    private static boolean runLevel(String mode, File base, int windowMillis, String [] words,
+        int numOfThread, int seconds) throws IOException, InterruptedException
+    {
+        new File(base.getPath()+".journal").delete();
+        new File(base.getPath()+".snapshot").delete();
+
+        WordCountStore store = createStore();
+        QueryCountJournal journal = null;
+        if (!mode.equals("memory"))
+            journal = new QueryCountJournal(store, base, windowMillis, mode.equals("sync"), 64L << 20);
+
+        CountDownLatch loopCount = new CountDownLatch(numOfThread);
+        AtomicLong queries = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        for (int i = 0; i < numOfThread; i++)
+            new Thread(new QueryLoop(store, journal, words, (int) ((long) i * words.length / numOfThread),
+                deadline, queries, loopCount), "query-"+i).start();
+        loopCount.await();
+        long elapsed = System.nanoTime() - start;
+
+        // a restart replays the snapshot and the journal written so far
+        long mismatches = 0;
+        if (journal != null)
+        {
+            journal.close();
+            WordCountStore restored = createStore();
+            QueryCountJournal replayed = new QueryCountJournal(restored, base, windowMillis, false, 64L << 20);
+            WordCount expected = new WordCount(0, 0);
+            WordCount actual = new WordCount(0, 0);
+            for (String word : words)
+            {
+                // query bumps both by one, which keeps them comparable
+                store.query(word, expected);
+                restored.query(word, actual);
+                if (expected.getQueryCountLong() != actual.getQueryCountLong())
+                    mismatches++;
+            }
+            replayed.close();
+        }
+
+        System.out.println("mode "+mode
+            +" threads "+numOfThread
+            +" queries "+queries.get()
+            +" seconds "+(elapsed / 1e9)
+            +" queries/sec "+(long) (queries.get() * 1e9 / elapsed)
+            +(journal != null ? " restore mismatches "+mismatches : ""));
+        return mismatches == 0;
+    }
+
+    public static void main(String[] args)  throws Exception {
+
+        //paring arguments to get
+        //-d: directory of the journal files
+        //-t: thread counts, comma separated
+        //-v: distinct words queried
+        //-s: seconds per level
+        //-w: durability window in milliseconds
+        //-m: modes, comma separated among memory, async and sync
+        String journalDirectory = System.getProperty("java.io.tmpdir");
+        String threadCounts = "1,4,16";
+        String vocabulary = "5000";
+        String duration = "2";
+        String window = "10";
+        String modes = "memory,async,sync";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].length() != 2 || args[i].charAt(0) != '-')
+                throw new IllegalArgumentException("Not a valid argument: "+args[i]);
+
+            if (args.length-1 == i)
+                throw new IllegalArgumentException("Expected arg after: "+args[i]);
+
+            switch (args[i].charAt(1))
+            {
+                case 'd':
+                    journalDirectory = args[i+1];
+                    break;
+                case 't':
+                    threadCounts = args[i+1];
+                    break;
+                case 'v':
+                    vocabulary = args[i+1];
+                    break;
+                case 's':
+                    duration = args[i+1];
+                    break;
+                case 'w':
+                    window = args[i+1];
+                    break;
+                case 'm':
+                    modes = args[i+1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a valid option: "+args[i]);
+            }
+            i++;
+        }
+
+        String [] words = new String[Integer.parseInt(vocabulary)];
+        if (words.length == 0)
+            throw new IllegalArgumentException("Not a valid vocabulary: "+vocabulary);
+        for (int i = 0; i < words.length; i++)
+            words[i] = "word"+i;
+        int seconds = Integer.parseInt(duration);
+        int windowMillis = Integer.parseInt(window);
+
+        File directory = new File(journalDirectory);
+        if (!directory.isDirectory())
+            throw new IllegalArgumentException("Not a directory: "+directory.getAbsolutePath());
+        File base = new File(directory, "durability-benchmark");
+
+        boolean restored = true;
+        for (String mode : modes.split(","))
+        {
+            mode = mode.trim();
+            if (!mode.equals("memory") && !mode.equals("async") && !mode.equals("sync"))
+                throw new IllegalArgumentException("Not a valid mode: "+mode);
+            for (String threadCount : threadCounts.split(","))
+                restored &= runLevel(mode, base, windowMillis, words, Integer.parseInt(threadCount.trim()), seconds);
+        }
+        new File(base.getPath()+".journal").delete();
+        new File(base.getPath()+".snapshot").delete();
+
+        if (!restored)
+        {
+            System.out.println("durability benchmark failed, query_count lost across a restart");
+            System.exit(1);
+        }
+        System.out.println("durability benchmark done!!");
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wordcountservice.StripedWordCountStore;
+import wordcountservice.WordCount;
+import wordcountservice.WordCountStore;
+import wordcountservice.WordHasher;
+
+/**
+* WordCountServiceFootprint:
+*   to measure the heap a word_count store retains per vocabulary word.
+*   it adds -n distinct synthetic words of 5 to 8 letters to an empty
+*   store and reports heap used after GC, minus what was used before, per
+*   word. -s arena measures StripedWordCountStore, whose keys are UTF-8
+*   bytes in a ByteArena; -s map measures the layout it replaced, a
+*   ConcurrentHashMap<String, WordCount>. give the JVM enough -Xmx for the
+*   vocabulary, about 1.5 GB for 10M words in a map
+*   compile and run with WordCountService/target/classes on the classpath
+*/
+public class WordCountServiceFootprint {
+
+    /**
+     * the i-th synthetic word, all distinct: a length of 5 to 8 letters
+     * followed by i / 4 written in base 26
+     *
+     * @param i: word number
+     * @param letters: buffer of at least 8 chars
+     */
+    private static String word(int i, char [] letters)
+    {
+        int length = 5 + (i & 3);
+        int value = i >>> 2;
+        for (int k = length - 1; k >= 0; k--)
+        {
+            letters[k] = (char) ('a' + value % 26);
+            value /= 26;
+        }
+        return new String(letters, 0, length);
+    }
+
+    /**
+     * heap in use once the garbage is collected
+     *
+     * @param memory: memory bean of this JVM
+     */
+    private static long usedAfterGc(MemoryMXBean memory) throws InterruptedException
+    {
+        long used = Long.MAX_VALUE;
+        // repeat until a collection frees nothing more
+        for (int i = 0; i < 10; i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+
+    public static void main(String[] args)  throws Exception {
+
+        //paring arguments to get
+        //-n: distinct words
+        //-s: store layout, arena or map
+        String vocabulary = "10000000";
+        String layout = "arena";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].length() != 2 || args[i].charAt(0) != '-')
+                throw new IllegalArgumentException("Not a valid argument: "+args[i]);
+
+            if (args.length-1 == i)
+                throw new IllegalArgumentException("Expected arg after: "+args[i]);
+
+            switch (args[i].charAt(1))
+            {
+                case 'n':
+                    vocabulary = args[i+1];
+                    break;
+                case 's':
+                    layout = args[i+1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a valid option: "+args[i]);
+            }
+            i++;
+        }
+
+        int numOfWords = Integer.parseInt(vocabulary);
+        // 4 lengths times 26^5 values of the shortest length
+        if (numOfWords <= 0 || numOfWords > 4 * 11881376)
+            throw new IllegalArgumentException("Not a valid vocabulary: "+vocabulary);
+        if (!layout.equals("arena") && !layout.equals("map"))
+            throw new IllegalArgumentException("Not a valid store layout: "+layout);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        char [] letters = new char[8];
+        long before = usedAfterGc(memory);
+        long start = System.nanoTime();
+
+        Object store;
+        if (layout.equals("arena"))
+        {
+            WordCountStore arena = new StripedWordCountStore(WordCountStore.DEFAULT_STRIPES,
+                WordHasher.create("murmur3"));
+            for (int i = 0; i < numOfWords; i++)
+                arena.addWord(word(i, letters));
+            store = arena;
+        }
+        else
+        {
+            ConcurrentHashMap<String, WordCount> map = new ConcurrentHashMap<String, WordCount>();
+            for (int i = 0; i < numOfWords; i++)
+                map.put(word(i, letters), new WordCount(0, 1));
+            store = map;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long retained = usedAfterGc(memory) - before;
+        // naming the store class keeps the store reachable until it was measured
+        System.out.println("store "+layout
+            +" class "+store.getClass().getSimpleName()
+            +" words "+numOfWords
+            +" seconds "+(elapsed / 1e9)
+            +" retained MB "+(retained >> 20)
+            +" bytes/word "+(retained / (double) numOfWords));
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.*;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import wordcountservice.WordHasher;
+
+/**
+* WordCountServiceHashBenchmark:
+*   to check and time the stripe hash stage. it first compares murmur3 and
+*   xxhash with published test vectors, md5 with the leading bytes of the
+*   MessageDigest, and the String entry point with the UTF-8 byte one;
+*   then it times every hasher of -h on -n random words of 3 to 11
+*   letters, next to the MD5 plus hex string stripe key the service
+*   computed before WordHasher existed. exits with status 1 when a check
+*   fails
+*   compile and run with WordCountService/target/classes on the classpath
+*/
+public class WordCountServiceHashBenchmark {
+
+    // {hasher, input, expected 32-bit hash in hex}
+    private static final String [][] VECTORS = {
+        {"murmur3", "", "00000000"},
+        {"murmur3", "hello", "248bfa47"},
+        {"murmur3", "The quick brown fox jumps over the lazy dog", "2e4ff723"},
+        {"xxhash", "", "02cc5d05"},
+        {"xxhash", "abc", "32d153ff"},
+        {"xxhash", "Nobody inspects the spammish repetition", "e2293b2f"},
+    };
+
+    /**
+     * stripe key of the original service: MD5 digest as a 32 digit hex string
+     *
+     * @param input: word to hash
+     * @param md: MD5 digest
+     */
+    private static String getModulo(String input, MessageDigest md)
+    {
+        String hashtext = new BigInteger(1, md.digest(input.getBytes())).toString(16);
+        while (hashtext.length() < 32)
+            hashtext = "0" + hashtext;
+        return hashtext;
+    }
+
+    /**
+     * compare the hashers with known values
+     *
+     * @return number of failed checks
+     */
+    private static int checkVectors() throws Exception
+    {
+        int failures = 0;
+        for (String [] vector : VECTORS)
+        {
+            int hash = WordHasher.create(vector[0]).hash(vector[1]);
+            boolean ok = hash == (int) Long.parseLong(vector[2], 16);
+            System.out.println("vector "+vector[0]+" \""+vector[1]+"\" "+String.format("%08x", hash)
+                +(ok ? " ok" : " expected "+vector[2]));
+            if (!ok)
+                failures++;
+        }
+
+        // md5 keeps the first four digest bytes, big endian
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        // ascii, 2, 3 and 4 byte sequences and an unpaired surrogate
+        String [] words = { "", "hello", "h\u00e9llo", "\u6f22\u5b57", "\ud83d\ude00", "x\ud800" };
+        for (String word : words)
+        {
+            byte[] digest = md.digest(word.getBytes("UTF-8"));
+            int expected = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+                | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+            if (WordHasher.create("md5").hash(word) != expected)
+            {
+                System.out.println("vector md5 \""+word+"\" differs from MessageDigest");
+                failures++;
+            }
+        }
+
+        // hashing a String must agree with hashing its UTF-8 bytes, including surrogates
+        String [] names = { "md5", "murmur3", "xxhash" };
+        for (String name : names)
+        {
+            WordHasher hasher = WordHasher.create(name);
+            for (String word : words)
+            {
+                byte[] bytes = word.getBytes("UTF-8");
+                if (hasher.hash(word) != hasher.hash(bytes, 0, bytes.length))
+                {
+                    System.out.println("vector "+name+" \""+word+"\" String and byte hashes differ");
+                    failures++;
+                }
+            }
+        }
+        return failures;
+    }
+
+    public static void main(String[] args)  throws Exception {
+
+        //paring arguments to get
+        //-n: number of random words
+        //-r: timed rounds
+        //-h: hashers, comma separated, md5, murmur3, xxhash or a WordHasher class name
+        String vocabulary = "100000";
+        String rounds = "3";
+        String hashers = "md5,murmur3,xxhash";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].length() != 2 || args[i].charAt(0) != '-')
+                throw new IllegalArgumentException("Not a valid argument: "+args[i]);
+
+            if (args.length-1 == i)
+                throw new IllegalArgumentException("Expected arg after: "+args[i]);
+
+            switch (args[i].charAt(1))
+            {
+                case 'n':
+                    vocabulary = args[i+1];
+                    break;
+                case 'r':
+                    rounds = args[i+1];
+                    break;
+                case 'h':
+                    hashers = args[i+1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a valid option: "+args[i]);
+            }
+            i++;
+        }
+
+        int failures = checkVectors();
+
+        Random random = new Random(3);
+        String [] words = new String[Integer.parseInt(vocabulary)];
+        for (int i = 0; i < words.length; i++)
+        {
+            char [] letters = new char[3 + random.nextInt(9)];
+            for (int k = 0; k < letters.length; k++)
+                letters[k] = (char) ('a' + random.nextInt(26));
+            words[i] = new String(letters);
+        }
+
+        String [] names = hashers.split(",");
+        WordHasher [] timed = new WordHasher[names.length];
+        for (int i = 0; i < names.length; i++)
+            timed[i] = WordHasher.create(names[i].trim());
+        MessageDigest md = MessageDigest.getInstance("MD5");
+
+        // the sink keeps the JIT from dropping the hashing
+        long sink = 0;
+        int passes = 20;
+        for (int round = 0; round < Integer.parseInt(rounds); round++)
+        {
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++)
+            {
+                for (String word : words)
+                    sink += getModulo(word, md).length();
+            }
+            System.out.println("round "+round+" hasher getModulo ns/word "
+                +(System.nanoTime() - start) / ((double) passes * words.length));
+
+            for (int i = 0; i < timed.length; i++)
+            {
+                start = System.nanoTime();
+                for (int pass = 0; pass < passes; pass++)
+                {
+                    for (String word : words)
+                        sink += timed[i].hash(word);
+                }
+                System.out.println("round "+round+" hasher "+names[i].trim()+" ns/word "
+                    +(System.nanoTime() - start) / ((double) passes * words.length));
+            }
+        }
+        System.out.println("sink "+(sink & 1));
+
+        if (failures > 0)
+        {
+            System.out.println("hash check failed, "+failures+" mismatches");
+            System.exit(1);
+        }
+        System.out.println("hash check success!!");
+    }
+}
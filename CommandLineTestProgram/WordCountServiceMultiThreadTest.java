@@ -5,6 +5,9 @@ import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import java.net.URL; 
 import java.net.URLConnection; 
@@ -126,22 +129,158 @@ public class WordCountServiceMultiThreadTest {
             {
                 try
                 {
-                    in = new Scanner(infile);
-                    while (in.hasNext())
-                    {   
-                        updateMap(in.next(), wordCountMap);
+                    //archives are read entry by entry, as the service reads them in place
+                    if (fname.endsWith(".zip"))
+                        scanZip(infile);
+                    else if (fname.endsWith(".tar") || fname.endsWith(".tar.gz") || fname.endsWith(".tgz"))
+                        scanTar(infile);
+                    else
+                    {
+                        //gzip-compressed corpus files are read as the service reads them
+                        if (fname.endsWith(".gz"))
+                            in = new Scanner(new GZIPInputStream(new FileInputStream(infile)));
+                        else
+                            in = new Scanner(infile);
+                        while (in.hasNext())
+                        {   
+                            updateMap(in.next(), wordCountMap);
+                        }
                     }
                 }
                 finally{
-                    in.close();
+                    if (in != null)
+                        in.close();
                     fetchCount.countDown();
                 }
             }
-            catch(FileNotFoundException e)
+            catch(IOException e)
             {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * count the words of every file in a zip archive
+         *
+         * @param infile: the archive to read
+         */
+        private void scanZip(File infile) throws IOException
+        {
+            ZipInputStream zip = new ZipInputStream(new FileInputStream(infile));
+            try
+            {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null)
+                {
+                    if (!entry.isDirectory())
+                        scan(readFully(zip, -1));
+                }
+            }
+            finally
+            {
+                zip.close();
+            }
+        }
+
+        /**
+         * count the words of every regular file in a tar archive, gzip-compressed or not
+         *
+         * @param infile: the archive to read
+         */
+        private void scanTar(File infile) throws IOException
+        {
+            InputStream tar = new BufferedInputStream(new FileInputStream(infile));
+            try
+            {
+                if (!fname.endsWith(".tar"))
+                    tar = new GZIPInputStream(tar);
+                byte[] header = new byte[512];
+                long paxSize = -1;
+                while (tar.read(header, 0, 1) == 1)
+                {
+                    readFully(tar, header, 1, 511);
+                    boolean zero = true;
+                    for (byte b : header)
+                        zero &= b == 0;
+                    if (zero)
+                        break;
+
+                    //octal size, or base-256 for large GNU entries, unless a pax header set it
+                    long size = 0;
+                    if (paxSize >= 0)
+                        size = paxSize;
+                    else if ((header[124] & 0x80) != 0)
+                        for (int i = 125; i < 136; i++)
+                            size = (size << 8) | (header[i] & 0xFF);
+                    else
+                        size = Long.parseLong(new String(header, 124, 12, "US-ASCII").replace('\0', ' ').trim(), 8);
+                    paxSize = -1;
+
+                    byte type = header[156];
+                    byte[] data = readFully(tar, size);
+                    readFully(tar, new byte[512], 0, (int) ((512 - size % 512) % 512));
+                    if (type == '0' || type == 0 || type == '7')
+                        scan(data);
+                    else if (type == 'x')
+                        for (String record : new String(data, "UTF-8").split("\n"))
+                            if (record.indexOf(" size=") > 0)
+                                paxSize = Long.parseLong(record.substring(record.indexOf(" size=") + 6));
+                }
+            }
+            finally
+            {
+                tar.close();
+            }
+        }
+
+        /**
+         * count the words of one archive entry
+         *
+         * @param data: the entry's bytes
+         */
+        private void scan(byte[] data)
+        {
+            Scanner in = new Scanner(new ByteArrayInputStream(data));
+            while (in.hasNext())
+            {
+                updateMap(in.next(), wordCountMap);
+            }
+            in.close();
+        }
+
+        /**
+         * read bytes of an archive entry
+         *
+         * @param in: the archive stream
+         * @param size: number of bytes, or -1 for all that are left
+         */
+        private static byte[] readFully(InputStream in, long size) throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (size != 0)
+            {
+                int count = in.read(buffer, 0, size < 0 ? buffer.length : (int) Math.min(buffer.length, size));
+                if (count < 0)
+                {
+                    if (size < 0)
+                        break;
+                    throw new EOFException("truncated archive");
+                }
+                out.write(buffer, 0, count);
+                if (size > 0)
+                    size -= count;
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * read an exact number of bytes of an archive
+         */
+        private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException
+        {
+            new DataInputStream(in).readFully(bytes, offset, length);
+        }
     }
 
     /**
@@ -211,6 +350,27 @@ public class WordCountServiceMultiThreadTest {
         }
     }
 
+    /**
+     * collect the regular files of a corpus directory and of its
+     * subdirectories, the way WordCountServiceInitializer lists the corpus
+     *
+     * @param directory: directory to walk
+     * @param files: collected corpus files
+     */
+    public static void listCorpus(File directory, List<File> files)
+    {
+        File [] entries = directory.listFiles();
+        if (entries == null)
+            throw new IllegalArgumentException("unreadable directory:"+directory.getAbsolutePath());
+        for (File entry : entries)
+        {
+            if (entry.isDirectory())
+                listCorpus(entry, files);
+            else if (entry.isFile())
+                files.add(entry);
+        }
+    }
+
     /**
      * update corresponding word count for each word
      *
@@ -476,12 +636,14 @@ public class WordCountServiceMultiThreadTest {
         CountDownLatch wordCountLatch = null;
         HashMap<String, String> wordCountMap = new HashMap<String, String>();
         if (directory.exists() && directory.isDirectory()){
-            String [] filesUnderDirec = directory.list();
-            wordCountLatch = new CountDownLatch(filesUnderDirec.length);
-            for (String fileUnderDirec : filesUnderDirec)
+            //the service indexes subdirectories too
+            List<File> filesUnderDirec = new ArrayList<File>();
+            listCorpus(directory, filesUnderDirec);
+            wordCountLatch = new CountDownLatch(filesUnderDirec.size());
+            for (File fileUnderDirec : filesUnderDirec)
             {
                 executor.execute(new WordCountFetch(
-                    directory.getAbsolutePath()+"/"+fileUnderDirec, wordCountMap, wordCountLatch));
+                    fileUnderDirec.getAbsolutePath(), wordCountMap, wordCountLatch));
             }
         }
 
@@ -0,0 +1,368 @@
+import java.io.*;
+import java.util.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import wordcountservice.WordTokenizer;
+
+/**
+* WordCountServiceTokenizerTest:
+*   to check that the swar backend of WordTokenizer splits exactly like the
+*   scalar one, and both like java.util.Scanner. it writes -t random texts
+*   mixing ascii and unicode whitespace with words to a temp file and
+*   compares the words of each backend, at several range sizes, with those
+*   of a Scanner on the same file; then it tokenizes -r random byte strings
+*   biased toward whitespace, control and UTF-8 lead and continuation bytes
+*   with both backends, whole and fed in random chunks, and compares the
+*   words byte for byte. with -f it also times both backends on that
+*   corpus file, mapped and streamed. exits with status 1 on any mismatch
+*   compile and run with WordCountService/target/classes on the classpath
+*/
+public class WordCountServiceTokenizerTest {
+
+    // separators of the random texts, ascii and unicode whitespace
+    private static final String [] SPACES = {
+        " ", "\t", "\n", "\r", "\u000b", "\f", "\u001c", "\u001f", "\u1680", "\u2000", "\u2006",
+        "\u2008", "\u200a", "\u2028", "\u2029", "\u205f", "\u3000"
+    };
+
+    // words of the random texts, some holding whitespace or look-alikes that are not whitespace
+    private static final String [] WORDS = {
+        "abcdefghijklmnopq", "\u00e0\u00e0\u00e0\u00e0\u00e0\u00e0\u00e0\u00e0\u00e0",
+        "abcdefgh\u2028ijklmnop", "abcdefghij\u3000k", "\u0800\u0800\u0800\u0800x", "wordword\u2007figure",
+        "zzzzzzz\u200bzzzzzzzzz", "tabbed\tlongword12345", "\u1680abcdefghijk", "\u0001\u0002\u0008abcdefghij",
+        "a", "bb", "h\u00e9llo", "\u6f22\u5b57", "\u00a0", "\u2007", "\u202f", "\u0085", "x\u2000y",
+        "\ud834\udd1e", "\u2001\u2002", "\u30001", "\u2080", "\u1681"
+    };
+
+    // bytes of the random strings besides letters: separators, controls, UTF-8 lead and continuation bytes
+    private static final byte [] BYTES = {
+        0x20, 0x09, 0x0a, 0x1c, 0x1f, 0x00, 0x08, 0x21, 'a', 'b', (byte) 0xe0, (byte) 0xe1, (byte) 0xe2,
+        (byte) 0xe3, (byte) 0xe4, (byte) 0x80, (byte) 0x81, (byte) 0x9a, (byte) 0x9f, (byte) 0xa8,
+        (byte) 0x8a, (byte) 0x87, (byte) 0xff, 0x7f
+    };
+
+    // range sizes the file is split at, from a range per byte to a single range
+    private static final long [] RANGE_SIZES = { 1, 2, 3, 5, 7, 64, 4093, 4097, 1 << 20 };
+
+    private static final String [] BACKENDS = { "scalar", "swar" };
+
+    /**
+    * WordList:
+    *   sink collecting the words it is given
+    */
+    public static class WordList implements WordTokenizer.Sink
+    {
+        private List<String> words = new ArrayList<String>();
+
+        /**
+         * keep the word as UTF-8 text
+         *
+         * @param bytes: buffer holding the word
+         * @param offset: offset of the word in bytes
+         * @param length: length of the word in bytes
+         */
+        @Override
+        public void word(byte[] bytes, int offset, int length)
+        {
+            try
+            {
+                words.add(new String(bytes, offset, length, "UTF-8"));
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * the words collected so far
+         */
+        public List<String> getWords()
+        {
+            return words;
+        }
+    }
+
+    /**
+    * ByteList:
+    *   sink collecting the exact bytes of the words it is given
+    */
+    public static class ByteList implements WordTokenizer.Sink
+    {
+        private List<String> words = new ArrayList<String>();
+
+        @Override
+        public void word(byte[] bytes, int offset, int length)
+        {
+            words.add(Arrays.toString(Arrays.copyOfRange(bytes, offset, offset + length)));
+        }
+
+        /**
+         * the words collected so far
+         */
+        public List<String> getWords()
+        {
+            return words;
+        }
+    }
+
+    /**
+     * compare the words of each backend on random texts with those of a Scanner
+     *
+     * @param texts: number of random texts
+     * @param random: source of the texts
+     * @return number of mismatches
+     */
+    private static int checkScanner(int texts, Random random) throws IOException
+    {
+        File file = File.createTempFile("tokenizer-test", ".txt");
+        file.deleteOnExit();
+        int failures = 0;
+        for (int text = 0; text < texts; text++)
+        {
+            // the last texts span many ranges of the larger sizes
+            int tokens = text < texts - texts / 16 ? random.nextInt(200) : 20000;
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < tokens; i++)
+                builder.append(random.nextInt(3) == 0 ? SPACES[random.nextInt(SPACES.length)]
+                    : WORDS[random.nextInt(WORDS.length)]);
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(builder.toString().getBytes("UTF-8"));
+            out.close();
+
+            List<String> expected = new ArrayList<String>();
+            Scanner scanner = new Scanner(file, "UTF-8");
+            while (scanner.hasNext())
+                expected.add(scanner.next());
+            scanner.close();
+
+            for (String backend : BACKENDS)
+            {
+                WordTokenizer.setBackend(backend);
+                for (long rangeSize : RANGE_SIZES)
+                {
+                    WordList words = new WordList();
+                    RandomAccessFile input = new RandomAccessFile(file, "r");
+                    try
+                    {
+                        FileChannel channel = input.getChannel();
+                        long [] boundaries = WordTokenizer.split(channel, rangeSize);
+                        WordTokenizer tokenizer = new WordTokenizer();
+                        for (int k = 0; k + 1 < boundaries.length; k++)
+                            tokenizer.tokenize(channel, boundaries[k], boundaries[k+1], words);
+                    }
+                    finally
+                    {
+                        input.close();
+                    }
+                    if (!words.getWords().equals(expected))
+                    {
+                        if (failures < 10)
+                            System.out.println("scanner mismatch text "+text+" backend "+backend
+                                +" range size "+rangeSize+" expected "+expected.size()
+                                +" words got "+words.getWords().size());
+                        failures++;
+                    }
+                }
+            }
+        }
+        file.delete();
+        return failures;
+    }
+
+    /**
+     * the words of one backend on a byte string, whole or fed in random chunks
+     *
+     * @param backend: swar or scalar
+     * @param bytes: the string
+     * @param chunks: source of the chunk lengths, or null to tokenize the string whole
+     */
+    private static List<String> tokenize(String backend, byte [] bytes, Random chunks)
+    {
+        WordTokenizer.setBackend(backend);
+        WordTokenizer tokenizer = new WordTokenizer();
+        ByteList words = new ByteList();
+        if (chunks == null)
+            tokenizer.tokenize(ByteBuffer.wrap(bytes), words);
+        else
+        {
+            // chunks sit inside larger arrays, so offsets and trailing bytes are exercised too
+            int position = 0;
+            while (position < bytes.length)
+            {
+                int length = Math.min(bytes.length - position, chunks.nextInt(40));
+                byte [] chunk = new byte[length + 6];
+                System.arraycopy(bytes, position, chunk, 3, length);
+                tokenizer.feed(chunk, 3, length, words);
+                position += length;
+            }
+            tokenizer.finish(words);
+        }
+        return words.getWords();
+    }
+
+    /**
+     * compare the words of the swar and scalar backends on random byte strings
+     *
+     * @param strings: number of random byte strings
+     * @param random: source of the strings
+     * @return number of mismatches
+     */
+    private static int checkBackends(int strings, Random random)
+    {
+        int failures = 0;
+        for (int string = 0; string < strings; string++)
+        {
+            byte [] bytes = new byte[random.nextInt(300)];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = random.nextInt(3) == 0 ? BYTES[random.nextInt(BYTES.length)]
+                    : (byte) ('a' + random.nextInt(26));
+
+            // odd strings are fed in chunks, the same chunks for both backends
+            Random chunks = null;
+            long seed = random.nextLong();
+            if ((string & 1) == 1)
+                chunks = new Random(seed);
+            List<String> scalar = tokenize("scalar", bytes, chunks);
+            if ((string & 1) == 1)
+                chunks = new Random(seed);
+            List<String> swar = tokenize("swar", bytes, chunks);
+            if (!swar.equals(scalar))
+            {
+                if (failures < 10)
+                    System.out.println("backend mismatch string "+string+" "+Arrays.toString(bytes)
+                        +(chunks == null ? " whole" : " chunked"));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * time both backends on a corpus file, mapped and streamed
+     *
+     * @param corpus: the file
+     * @param rounds: timed rounds, after one warm-up round
+     */
+    private static void benchmark(File corpus, int rounds) throws IOException
+    {
+        // the sink sums the word lengths, which keeps the JIT from dropping the tokenizing
+        final long [] total = new long[1];
+        WordTokenizer.Sink sink = new WordTokenizer.Sink()
+        {
+            @Override
+            public void word(byte[] bytes, int offset, int length)
+            {
+                total[0] += length;
+            }
+        };
+        byte [] chunk = new byte[1 << 16];
+        RandomAccessFile input = new RandomAccessFile(corpus, "r");
+        try
+        {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            for (int round = 0; round <= rounds; round++)
+            {
+                for (String backend : BACKENDS)
+                {
+                    WordTokenizer.setBackend(backend);
+                    total[0] = 0;
+                    long start = System.nanoTime();
+                    new WordTokenizer().tokenize(channel, 0, size, sink);
+                    long mapped = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    WordTokenizer tokenizer = new WordTokenizer();
+                    InputStream in = new FileInputStream(corpus);
+                    try
+                    {
+                        int read;
+                        while ((read = in.read(chunk)) > 0)
+                            tokenizer.feed(chunk, 0, read, sink);
+                        tokenizer.finish(sink);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                    long streamed = System.nanoTime() - start;
+
+                    if (round > 0)
+                        System.out.println("round "+round+" backend "+backend
+                            +" mapped MB/s "+(long) (size * 1e3 / mapped)
+                            +" streamed MB/s "+(long) (size * 1e3 / streamed)
+                            +" word bytes "+total[0] / 2);
+                }
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    public static void main(String[] args)  throws Exception {
+
+        //paring arguments to get
+        //-t: number of random texts compared with a Scanner
+        //-r: number of random byte strings compared between backends
+        //-f: corpus file to time the backends on, none to skip the timing
+        //-n: timed rounds
+        String texts = "300";
+        String strings = "40000";
+        String corpus = null;
+        String rounds = "4";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].length() != 2 || args[i].charAt(0) != '-')
+                throw new IllegalArgumentException("Not a valid argument: "+args[i]);
+
+            if (args.length-1 == i)
+                throw new IllegalArgumentException("Expected arg after: "+args[i]);
+
+            switch (args[i].charAt(1))
+            {
+                case 't':
+                    texts = args[i+1];
+                    break;
+                case 'r':
+                    strings = args[i+1];
+                    break;
+                case 'f':
+                    corpus = args[i+1];
+                    break;
+                case 'n':
+                    rounds = args[i+1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a valid option: "+args[i]);
+            }
+            i++;
+        }
+
+        Random random = new Random(42);
+        int scannerFailures = checkScanner(Integer.parseInt(texts), random);
+        System.out.println("scanner texts "+texts+" range sizes "+RANGE_SIZES.length
+            +" backends "+BACKENDS.length+" mismatches "+scannerFailures);
+        int backendFailures = checkBackends(Integer.parseInt(strings), random);
+        System.out.println("backend strings "+strings+" mismatches "+backendFailures);
+
+        if (corpus != null)
+        {
+            File file = new File(corpus);
+            if (!file.isFile())
+                throw new IllegalArgumentException("Not a valid corpus file: "+corpus);
+            benchmark(file, Integer.parseInt(rounds));
+        }
+
+        if (scannerFailures + backendFailures > 0)
+        {
+            System.out.println("tokenizer check failed, "+(scannerFailures + backendFailures)+" mismatches");
+            System.exit(1);
+        }
+        System.out.println("tokenizer check success!!");
+    }
+}
@@ -0,0 +1,342 @@
+package wordcountservice;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.ServletContext;
+
+/**
+ * AccessLog:
+ *   request log kept off the request path. request threads claim a slot of
+ *   a bounded ring buffer with one compare-and-set and store their record
+ *   there; a single writer thread drains the ring in order into a buffered
+ *   file and flushes whenever it runs dry, so many records share one
+ *   write. a full ring drops the record and counts it instead of waiting,
+ *   the writer notes the number of dropped records in the log. sampling
+ *   keeps one in every n requests, decided without shared state.
+ */
+public class AccessLog
+{
+	// default number of records the ring holds
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	// time the writer sleeps once the ring is empty
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	// bytes buffered before the writer hands them to the file
+	private static final int WRITE_BUFFER = 1 << 16;
+
+	private final ServletContext context;
+	private final File file;
+	private final int sampleEvery;
+
+	// slot of sequence s is s & mask, a record is present while its slot is not null
+	private final AtomicReferenceArray<String> records;
+	private final long[] times;
+	private final char[] separators;
+	private final String[] details;
+	private final int mask;
+	// next sequence to claim, shared by request threads
+	private final AtomicLong head = new AtomicLong();
+	// next sequence to write, advanced by the writer only
+	private volatile long tail = 0;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	// owned by the writer thread
+	private Writer out;
+	private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.");
+	private final Date date = new Date();
+	// timestamp text up to the second, reused while records fall into the same second
+	private long second = Long.MIN_VALUE;
+	private String prefix = null;
+	private final char[] millis = new char[4];
+	private long reported = 0;
+	private IOException failure = null;
+
+    /**
+     * constructor AccessLog, opens the file for appending and starts the writer thread
+     *
+     * @param context: servlet context receiving error messages, may be null
+     * @param file: log file, appended to
+     * @param capacity: number of records the ring holds, rounded up to a power of two
+     * @param sampleEvery: keep one in this many records, 1 keeps all
+     */
+	public AccessLog(ServletContext context, File file, int capacity, int sampleEvery) throws IOException
+	{
+		if (capacity <= 0 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Not a valid access log capacity: "+capacity);
+		if (sampleEvery <= 0)
+			throw new IllegalArgumentException("Not a valid access log sampling: "+sampleEvery);
+
+		this.context = context;
+		this.file = file;
+		this.sampleEvery = sampleEvery;
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity)
+			slots <<= 1;
+		records = new AtomicReferenceArray<String>(slots);
+		times = new long[slots];
+		separators = new char[slots];
+		details = new String[slots];
+		mask = slots - 1;
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("cannot create access log directory: "+parent.getAbsolutePath());
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), WRITE_BUFFER);
+
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+    /**
+     * whether the current request is one of the sampled ones, checked
+     * before building its record
+     */
+	public boolean sample()
+	{
+		return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+	}
+
+    /**
+     * hand a record to the writer, never waits
+     *
+     * @param record: one line of text, without line break
+     * @return false when the ring was full and the record was dropped
+     */
+	public boolean log(String record)
+	{
+		return log(record, ' ', null);
+	}
+
+    /**
+     * hand a record made of two parts to the writer, which joins them, so
+     * the caller needs no concatenation; never waits
+     *
+     * @param record: start of the line
+     * @param separator: character written between both parts
+     * @param detail: rest of the line, or null for none
+     * @return false when the ring was full and the record was dropped
+     */
+	public boolean log(String record, char separator, String detail)
+	{
+		long sequence;
+		do
+		{
+			sequence = head.get();
+			if (sequence - tail >= times.length || closed)
+			{
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		while (!head.compareAndSet(sequence, sequence + 1));
+
+		int slot = (int) sequence & mask;
+		times[slot] = System.currentTimeMillis();
+		separators[slot] = separator;
+		details[slot] = detail;
+		// publishes time and detail as well
+		records.set(slot, record);
+		return true;
+	}
+
+    /**
+     * number of records dropped because the ring was full
+     */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+    /**
+     * log file
+     */
+	public File getFile()
+	{
+		return file;
+	}
+
+    /**
+     * write the records still in the ring, close the file and stop the writer
+     */
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(writer);
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+    /**
+     * writer thread body: drain the ring, flush once it is empty, sleep
+     */
+	private void writeLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				boolean stopping = closed;
+				if (drain() > 0)
+					continue;
+				report();
+				flush();
+				// a record claimed before close is published right after
+				if (stopping && tail == head.get())
+					break;
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+		}
+		finally
+		{
+			try
+			{
+				out.close();
+			}
+			catch(IOException e)
+			{
+				fail(e);
+			}
+		}
+	}
+
+    /**
+     * write the records published so far, in sequence order
+     *
+     * @return number of records taken from the ring
+     */
+	private int drain()
+	{
+		int taken = 0;
+		long next = tail;
+		while (true)
+		{
+			int slot = (int) next & mask;
+			String record = records.get(slot);
+			// empty, or claimed but not yet published
+			if (record == null)
+				break;
+			write(times[slot], record, separators[slot], details[slot]);
+			details[slot] = null;
+			records.set(slot, null);
+			tail = ++next;
+			taken++;
+		}
+		return taken;
+	}
+
+    /**
+     * note records dropped since the last report
+     */
+	private void report()
+	{
+		long total = dropped.get();
+		if (total == reported)
+			return;
+		write(System.currentTimeMillis(), "dropped "+(total - reported)+" records, access log buffer full", ' ', null);
+		reported = total;
+	}
+
+    /**
+     * append one line, records are discarded once the file failed
+     *
+     * @param time: milliseconds since the epoch
+     * @param record: start of the line
+     * @param separator: character between record and detail
+     * @param detail: rest of the line, or null
+     */
+	private void write(long time, String record, char separator, String detail)
+	{
+		if (failure != null)
+			return;
+		try
+		{
+			if (time / 1000 != second)
+			{
+				second = time / 1000;
+				date.setTime(second * 1000);
+				prefix = format.format(date);
+			}
+			int rest = (int) (time - second * 1000);
+			millis[0] = (char) ('0' + rest / 100);
+			millis[1] = (char) ('0' + rest / 10 % 10);
+			millis[2] = (char) ('0' + rest % 10);
+			millis[3] = ' ';
+			out.write(prefix);
+			out.write(millis);
+			out.write(record);
+			if (detail != null)
+			{
+				out.write(separator);
+				out.write(detail);
+			}
+			out.write('\n');
+		}
+		catch(IOException e)
+		{
+			fail(e);
+		}
+	}
+
+    /**
+     * hand buffered lines to the file
+     */
+	private void flush()
+	{
+		if (failure != null)
+			return;
+		try
+		{
+			out.flush();
+		}
+		catch(IOException e)
+		{
+			fail(e);
+		}
+	}
+
+    /**
+     * remember the first write failure and report it once
+     *
+     * @param e: failure
+     */
+	private void fail(IOException e)
+	{
+		if (failure != null)
+			return;
+		failure = e;
+		String message = "AccessLog: cannot write "+file.getAbsolutePath()+", dropping records: "+e;
+		if (context != null)
+			context.log(message);
+		else
+			System.out.println(message);
+	}
+}
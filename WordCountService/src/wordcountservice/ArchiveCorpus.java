@@ -0,0 +1,512 @@
+package wordcountservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * ArchiveCorpus:
+ *   tokenizing of zip and tar archives in the corpus where they are, each
+ *   archive entry counting as one corpus file, so bundles of many small
+ *   files need not be extracted. a zip file lists its entries in its
+ *   central directory, and java.util.zip.ZipFile reads any of them from
+ *   any thread, so entries are inflated in parallel. the entries of an
+ *   uncompressed tar file are found by walking its 512 byte headers, the
+ *   data of each entry is then a plain range of the archive and is mapped
+ *   and tokenized like a range of any other file. a gzip-compressed tar
+ *   (.tar.gz, .tgz) can only be read in order, its inflated bytes go
+ *   through a tar parser on their way to the tokenizer. ustar, GNU
+ *   (base-256 sizes, long names) and pax (size records) headers are
+ *   understood; only regular files are tokenized.
+ */
+public class ArchiveCorpus
+{
+	private static final int BLOCK = 512;
+	// largest pax header read for a size record
+	private static final int MAX_PAX = 1 << 20;
+	// bytes read from a zip entry at once
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int SIZE_OFFSET = 124;
+	private static final int SIZE_LENGTH = 12;
+	private static final int CHECKSUM_OFFSET = 148;
+	private static final int CHECKSUM_LENGTH = 8;
+	private static final int TYPE_OFFSET = 156;
+
+    /**
+     * whether a corpus file is a zip archive, judged by its name
+     *
+     * @param file: corpus file
+     */
+	public static boolean isZip(File file)
+	{
+		return file.getName().endsWith(".zip");
+	}
+
+    /**
+     * whether a corpus file is an uncompressed tar archive, judged by its name
+     *
+     * @param file: corpus file
+     */
+	public static boolean isTar(File file)
+	{
+		return file.getName().endsWith(".tar");
+	}
+
+    /**
+     * whether a corpus file is a gzip-compressed tar archive, judged by its name
+     *
+     * @param file: corpus file
+     */
+	public static boolean isCompressedTar(File file)
+	{
+		return file.getName().endsWith(".tar.gz") || file.getName().endsWith(".tgz");
+	}
+
+    /**
+     * whether a corpus file is an archive of any kind
+     *
+     * @param file: corpus file
+     */
+	public static boolean isArchive(File file)
+	{
+		return isZip(file) || isTar(file) || isCompressedTar(file);
+	}
+
+    /**
+     * locate the data of the regular files of an uncompressed tar archive
+     *
+     * @param channel: archive to walk
+     * @return start and end offset of each non-empty entry, one pair after the other
+     */
+	public static long[] entries(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+		List<Long> spans = new ArrayList<Long>();
+		ByteBuffer block = ByteBuffer.allocate(BLOCK);
+		long position = 0;
+		long paxSize = -1;
+		while (position + BLOCK <= size)
+		{
+			readFully(channel, block, position);
+			byte[] header = block.array();
+			if (isZero(header))
+				break;
+			long length = paxSize >= 0 ? paxSize : entrySize(header, position);
+			paxSize = -1;
+			long data = position + BLOCK;
+			if (data + length > size)
+				throw new EOFException("Truncated tar entry at "+position);
+
+			byte type = header[TYPE_OFFSET];
+			if (type == 'x' && length <= MAX_PAX)
+			{
+				ByteBuffer pax = ByteBuffer.allocate((int) length);
+				readFully(channel, pax, data);
+				paxSize = paxSize(pax.array(), (int) length);
+			}
+			else if (isRegular(type) && length > 0)
+			{
+				spans.add(data);
+				spans.add(data + length);
+			}
+			position = data + padded(length);
+		}
+
+		long[] result = new long[spans.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = spans.get(i);
+		return result;
+	}
+
+    /**
+     * inflate and tokenize one zip entry, possibly resuming an earlier read
+     * of it. the tokenizer's position is the offset into the entry's bytes
+     *
+     * @param zip: open archive, may be shared by several threads
+     * @param entry: entry to read
+     * @param tokenizer: fresh tokenizer
+     * @param skip: entry bytes already read by the earlier read, right after a word, or 0
+     * @param sink: receiver of the words
+     */
+	public static void tokenize(ZipFile zip, ZipEntry entry, WordTokenizer tokenizer, long skip, WordTokenizer.Sink sink)
+			throws IOException
+	{
+		InputStream in = zip.getInputStream(entry);
+		try
+		{
+			long skipped = 0;
+			while (skipped < skip)
+			{
+				long count = in.skip(skip - skipped);
+				if (count <= 0)
+					throw new EOFException("Zip entry shorter than "+skip+": "+entry.getName());
+				skipped += count;
+			}
+			tokenizer.setPosition(skip);
+
+			// most entries are small, their buffer need not be larger
+			byte[] buffer = new byte[(int) Math.max(BLOCK, Math.min(BUFFER_SIZE, entry.getSize() + 1))];
+			while (true)
+			{
+				int count = in.read(buffer, 0, buffer.length);
+				if (count < 0)
+					break;
+				tokenizer.feed(buffer, 0, count, sink);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		tokenizer.finish(sink);
+	}
+
+    /**
+     * inflate and tokenize every regular file of a gzip-compressed tar
+     * archive, possibly resuming an earlier read of it. the tokenizer's
+     * position is the offset into the inflated archive
+     *
+     * @param file: archive to read
+     * @param tokenizer: fresh tokenizer, finished after each entry
+     * @param skip: inflated bytes already read by the earlier read, right after a word, or 0
+     * @param sink: receiver of the words
+     * @param pipelined: whether to inflate on a separate thread
+     */
+	public static void tokenizeTar(File file, WordTokenizer tokenizer, long skip, WordTokenizer.Sink sink,
+			boolean pipelined) throws IOException
+	{
+		TarStream tar = new TarStream(tokenizer, skip, sink);
+		GzipCorpus.inflate(file, tar, pipelined);
+		tar.finish();
+	}
+
+    /**
+     * tokenize every entry of an archive of any kind in order, on the
+     * calling thread
+     *
+     * @param file: archive to read
+     * @param tokenizer: tokenizer, finished after each entry
+     * @param sink: receiver of the words
+     */
+	public static void tokenize(File file, WordTokenizer tokenizer, WordTokenizer.Sink sink) throws IOException
+	{
+		if (isZip(file))
+		{
+			ZipFile zip = new ZipFile(file);
+			try
+			{
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements())
+				{
+					ZipEntry entry = entries.nextElement();
+					if (!entry.isDirectory())
+						tokenize(zip, entry, tokenizer, 0, sink);
+				}
+			}
+			finally
+			{
+				zip.close();
+			}
+			return;
+		}
+
+		if (isCompressedTar(file))
+		{
+			tokenizeTar(file, tokenizer, 0, sink, false);
+			return;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			long[] spans = entries(in.getChannel());
+			for (int i = 0; i < spans.length; i += 2)
+				tokenizer.tokenize(in.getChannel(), spans[i], spans[i + 1], sink);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * TarStream:
+	 *   tar parser receiving the inflated bytes of an archive, feeding the
+	 *   data of regular files to the tokenizer one entry at a time
+	 */
+	private static class TarStream extends OutputStream
+	{
+		private final WordTokenizer tokenizer;
+		private final long skip;
+		private final WordTokenizer.Sink sink;
+
+		private final byte[] header = new byte[BLOCK];
+		private int filled = 0;
+		// offset into the archive of the next byte written
+		private long offset = 0;
+		// data and padding left of the current entry
+		private long remaining = 0;
+		private long padding = 0;
+		private byte type = 0;
+		private ByteArrayOutputStream pax = null;
+		private long paxSize = -1;
+		private boolean feeding = false;
+		private boolean ended = false;
+
+		private TarStream(WordTokenizer tokenizer, long skip, WordTokenizer.Sink sink)
+		{
+			this.tokenizer = tokenizer;
+			this.skip = skip;
+			this.sink = sink;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int start, int length) throws IOException
+		{
+			while (length > 0 && !ended)
+			{
+				int count;
+				if (remaining > 0)
+				{
+					count = (int) Math.min(length, remaining);
+					data(bytes, start, count);
+					remaining -= count;
+				}
+				else if (padding > 0)
+				{
+					count = (int) Math.min(length, padding);
+					padding -= count;
+				}
+				else
+				{
+					count = Math.min(length, BLOCK - filled);
+					System.arraycopy(bytes, start, header, filled, count);
+					filled += count;
+				}
+				offset += count;
+				start += count;
+				length -= count;
+
+				if (filled == BLOCK)
+				{
+					filled = 0;
+					startEntry();
+				}
+				else if (remaining == 0 && (feeding || pax != null))
+				{
+					endEntry();
+				}
+			}
+		}
+
+	    /**
+	     * check that the archive did not end within an entry
+	     */
+		private void finish() throws IOException
+		{
+			if (!ended && (filled > 0 || remaining > 0))
+				throw new EOFException("Truncated tar archive");
+		}
+
+	    /**
+	     * a header block is complete
+	     */
+		private void startEntry() throws IOException
+		{
+			if (isZero(header))
+			{
+				ended = true;
+				return;
+			}
+			long length = paxSize >= 0 ? paxSize : entrySize(header, offset - BLOCK);
+			paxSize = -1;
+			type = header[TYPE_OFFSET];
+			remaining = length;
+			padding = padded(length) - length;
+			if (type == 'x' && length <= MAX_PAX)
+			{
+				pax = new ByteArrayOutputStream((int) length);
+				if (length == 0)
+					endEntry();
+			}
+		}
+
+	    /**
+	     * data bytes of the current entry
+	     */
+		private void data(byte[] bytes, int start, int count)
+		{
+			if (pax != null)
+			{
+				pax.write(bytes, start, count);
+				return;
+			}
+			if (!isRegular(type) || offset + count <= skip)
+				return;
+			// bytes before the resume offset were read by the earlier read
+			int dropped = (int) Math.max(0, skip - offset);
+			if (!feeding)
+			{
+				tokenizer.setPosition(offset + dropped);
+				feeding = true;
+			}
+			tokenizer.feed(bytes, start + dropped, count - dropped, sink);
+		}
+
+	    /**
+	     * the data of the current entry is complete
+	     */
+		private void endEntry()
+		{
+			if (feeding)
+			{
+				tokenizer.finish(sink);
+				feeding = false;
+			}
+			if (pax != null)
+			{
+				paxSize = paxSize(pax.toByteArray(), pax.size());
+				pax = null;
+			}
+		}
+	}
+
+    /**
+     * whether an entry type holds file data to tokenize
+     */
+	private static boolean isRegular(byte type)
+	{
+		return type == '0' || type == 0 || type == '7';
+	}
+
+    /**
+     * entry length rounded up to whole blocks
+     */
+	private static long padded(long length)
+	{
+		return (length + BLOCK - 1) / BLOCK * BLOCK;
+	}
+
+    /**
+     * whether a header block is all zeros, marking the end of the archive
+     */
+	private static boolean isZero(byte[] header)
+	{
+		for (byte b : header)
+		{
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * data length of an entry, from the octal or base-256 size field of a
+     * header whose checksum is valid
+     *
+     * @param header: header block
+     * @param position: offset of the header in the archive, for the error message
+     */
+	private static long entrySize(byte[] header, long position) throws IOException
+	{
+		long expected = octal(header, CHECKSUM_OFFSET, CHECKSUM_LENGTH);
+		long unsigned = 0;
+		long signed = 0;
+		for (int i = 0; i < BLOCK; i++)
+		{
+			boolean field = i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + CHECKSUM_LENGTH;
+			unsigned += field ? ' ' : header[i] & 0xFF;
+			signed += field ? ' ' : header[i];
+		}
+		// some old writers summed signed bytes
+		if (expected != unsigned && expected != signed)
+			throw new IOException("Not a valid tar header at "+position);
+
+		if ((header[SIZE_OFFSET] & 0x80) == 0)
+			return octal(header, SIZE_OFFSET, SIZE_LENGTH);
+		long size = header[SIZE_OFFSET] & 0x7F;
+		for (int i = SIZE_OFFSET + 1; i < SIZE_OFFSET + SIZE_LENGTH; i++)
+			size = (size << 8) | (header[i] & 0xFF);
+		return size;
+	}
+
+    /**
+     * octal number of a header field, padded with spaces or zero bytes
+     */
+	private static long octal(byte[] header, int offset, int length)
+	{
+		long value = 0;
+		int i = offset;
+		int end = offset + length;
+		while (i < end && (header[i] == ' ' || header[i] == 0))
+			i++;
+		for (; i < end && header[i] >= '0' && header[i] <= '7'; i++)
+			value = (value << 3) + (header[i] - '0');
+		return value;
+	}
+
+    /**
+     * size record of a pax extended header, made of "length key=value\n"
+     * records
+     *
+     * @return size of the next entry, or -1 when there is none
+     */
+	private static long paxSize(byte[] pax, int length)
+	{
+		int i = 0;
+		while (i < length)
+		{
+			int space = i;
+			int recordLength = 0;
+			while (space < length && pax[space] >= '0' && pax[space] <= '9')
+				recordLength = recordLength * 10 + (pax[space++] - '0');
+			if (recordLength <= 0 || space >= length || pax[space] != ' ' || i + recordLength > length)
+				return -1;
+			String record = new String(pax, space + 1, i + recordLength - space - 2, Utf8.UTF8);
+			if (record.startsWith("size="))
+			{
+				try
+				{
+					return Long.parseLong(record.substring(5));
+				}
+				catch(NumberFormatException e)
+				{
+					return -1;
+				}
+			}
+			i += recordLength;
+		}
+		return -1;
+	}
+
+    /**
+     * read a buffer completely at a position
+     */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		buffer.clear();
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Truncated tar archive");
+		}
+	}
+}
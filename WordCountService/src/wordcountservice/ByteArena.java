@@ -0,0 +1,185 @@
+package wordcountservice;
+
+/**
+ * ByteArena:
+ *   append-only storage of UTF-8 words in large byte[] segments. a word is
+ *   written once, prefixed with its varint length, and afterwards addressed
+ *   by a long (segment index in the high half, offset in the low half), so
+ *   the vocabulary costs no String or array header per word. segments
+ *   start small and double up to the segment size, so that many sparsely
+ *   filled arenas (one per store stripe) stay cheap. appends are
+ *   serialized on the arena monitor; reads take no lock and are safe once
+ *   the address was published through a volatile write.
+ */
+public class ByteArena
+{
+	// default size of one segment in bytes
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+	// size of the first segment, unless the segment size is smaller
+	private static final int FIRST_SEGMENT_SIZE = 1 << 12;
+
+	private final int segmentSize;
+
+	private volatile byte[][] segments = new byte[16][];
+	// guarded by this
+	private int segmentCount = 0;
+	private int position = 0;
+	private long used = 0;
+
+    /**
+     * constructor ByteArena, default segment size
+     */
+	public ByteArena()
+	{
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+    /**
+     * constructor ByteArena
+     *
+     * @param segmentSize: size of one segment in bytes
+     */
+	public ByteArena(int segmentSize)
+	{
+		if (segmentSize < 16)
+			throw new IllegalArgumentException("Not a valid segment size: "+segmentSize);
+		this.segmentSize = segmentSize;
+	}
+
+    /**
+     * copy a word into the arena
+     *
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     * @return address of the stored word
+     */
+	public synchronized long append(byte[] bytes, int offset, int length)
+	{
+		int needed = varintLength(length) + length;
+		if (segmentCount == 0 || position + needed > segments[segmentCount - 1].length)
+		{
+			int size = segmentCount == 0 ? Math.min(FIRST_SEGMENT_SIZE, segmentSize)
+					: Math.min(segments[segmentCount - 1].length * 2, segmentSize);
+			addSegment(Math.max(size, needed));
+		}
+
+		int segment = segmentCount - 1;
+		byte[] target = segments[segment];
+		long address = ((long) segment << 32) | position;
+
+		int value = length;
+		while ((value & ~0x7F) != 0)
+		{
+			target[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		target[position++] = (byte) value;
+		System.arraycopy(bytes, offset, target, position, length);
+		position += length;
+		used += needed;
+		return address;
+	}
+
+    /**
+     * byte length of a stored word
+     *
+     * @param address: address returned by append
+     */
+	public int length(long address)
+	{
+		byte[] segment = segments[(int) (address >>> 32)];
+		int i = (int) address;
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = segment[i++];
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return length;
+	}
+
+    /**
+     * compare a stored word against UTF-8 bytes
+     *
+     * @param address: address returned by append
+     * @param bytes: buffer holding the other word
+     * @param offset: first byte of the other word
+     * @param length: number of bytes of the other word
+     */
+	public boolean equals(long address, byte[] bytes, int offset, int length)
+	{
+		int stored = length(address);
+		if (stored != length)
+			return false;
+
+		byte[] segment = segments[(int) (address >>> 32)];
+		int start = (int) address + varintLength(stored);
+		for (int i = 0; i < length; i++)
+		{
+			if (segment[start + i] != bytes[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * copy a stored word into a buffer
+     *
+     * @param address: address returned by append
+     * @param out: destination buffer, at least length(address) bytes
+     * @return number of bytes copied
+     */
+	public int copy(long address, byte[] out)
+	{
+		int length = length(address);
+		System.arraycopy(segments[(int) (address >>> 32)], (int) address + varintLength(length), out, 0, length);
+		return length;
+	}
+
+    /**
+     * number of bytes taken by stored words and their length prefixes
+     */
+	public synchronized long getUsedBytes()
+	{
+		return used;
+	}
+
+    /**
+     * start a new segment, publishing a copy of the segment table if it is full
+     *
+     * @param size: segment size in bytes
+     */
+	private void addSegment(int size)
+	{
+		byte[][] table = segments;
+		if (segmentCount == table.length)
+		{
+			byte[][] larger = new byte[table.length * 2][];
+			System.arraycopy(table, 0, larger, 0, table.length);
+			table = larger;
+		}
+		table[segmentCount++] = new byte[size];
+		segments = table;
+		position = 0;
+	}
+
+    /**
+     * number of bytes of the varint length prefix
+     *
+     * @param length: word length
+     */
+	private static int varintLength(int length)
+	{
+		int n = 1;
+		while ((length & ~0x7F) != 0)
+		{
+			length >>>= 7;
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,777 @@
+package wordcountservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+/**
+ * CorpusWatcher:
+ *   keeps word_count in step with the txtfiles directory after the index
+ *   was published. the contribution of every corpus file is remembered as
+ *   a sorted list of word ids (index slots, see WordCountOverlay) with
+ *   their counts, delta and varint coded into one byte[] per file. when a
+ *   file is added, modified or deleted, only that file is read again: the
+ *   difference between its old and new contribution goes into the overlay
+ *   and the new contribution replaces the old one, so an update costs time
+ *   in proportion to the changed file, not to the corpus.
+ *   changes are picked up by a WatchService on the directory tree; events
+ *   arriving within the quiet period are coalesced, so a file written in
+ *   several steps is read once.
+ *   the contributions of the indexed files are stored next to the index
+ *   snapshot and read back one file at a time when that file changes, so a
+ *   warm start reads no unchanged file and keeps only a small record per
+ *   file in memory. without a snapshot they are kept in memory.
+ */
+public class CorpusWatcher implements Runnable
+{
+	private static final int MAGIC = 0x57434354; // "WCCT"
+	// bump whenever the contributions layout or the way corpus files are read
+	// changes, 2 reads the entries of archives
+	private static final int VERSION = 2;
+	private static final int HEADER = 32;
+
+	private final ServletContext context;
+	private final File directory;
+	private final WordCountOverlay overlay;
+	private final long quietMillis;
+
+	// files the index was built from, with their state at that time
+	private final File[] corpus;
+	private final long[] lengths;
+	private final long[] lastModified;
+	// index snapshot the word ids refer to, or null when there is none
+	private final File snapshot;
+
+	// contribution by absolute path, touched by the watcher thread only
+	private final HashMap<String, Contribution> files = new HashMap<String, Contribution>();
+	private final HashMap<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+	private final WordCountBatch batch = new WordCountBatch();
+	private final WordTokenizer tokenizer = new WordTokenizer();
+	private volatile WatchService watcher = null;
+	private volatile boolean closed = false;
+	// stored contributions, owned by the watcher thread
+	private RandomAccessFile stored = null;
+
+	/**
+	 * Contribution:
+	 *   words of one file as read last, with the file state they came from,
+	 *   held in memory or only in the stored contributions
+	 */
+	private static class Contribution
+	{
+		private final long length;
+		private final long lastModified;
+		// varint entry count, then per entry varint id gap and varint count, ids ascending; null while only stored
+		private final byte[] entries;
+		// position and size of the stored entries
+		private final long offset;
+		private final int size;
+
+		private Contribution(long length, long lastModified, byte[] entries)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.entries = entries;
+			this.offset = -1;
+			this.size = entries.length;
+		}
+
+		private Contribution(long length, long lastModified, long offset, int size)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.entries = null;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+    /**
+     * constructor CorpusWatcher
+     *
+     * @param context: ServeletContext, used for logging
+     * @param directory: corpus directory
+     * @param overlay: overlay over the published index
+     * @param corpus: files the index was built from
+     * @param lengths: file sizes when the corpus was listed
+     * @param lastModified: file mtimes when the corpus was listed
+     * @param snapshot: snapshot file the published index was mapped from or written to,
+     *                  or null; contributions are stored next to it
+     * @param quietMillis: time to wait for further events before reading changed files
+     */
+	public CorpusWatcher(ServletContext context, File directory, WordCountOverlay overlay,
+			File[] corpus, long[] lengths, long[] lastModified, File snapshot, long quietMillis)
+	{
+		if (quietMillis < 0)
+			throw new IllegalArgumentException("Not a valid quiet period: "+quietMillis);
+		this.context = context;
+		this.directory = directory;
+		this.overlay = overlay;
+		this.corpus = corpus;
+		this.lengths = lengths;
+		this.lastModified = lastModified;
+		this.snapshot = snapshot;
+		this.quietMillis = quietMillis;
+	}
+
+    /**
+     * watch the corpus until close() is called
+     */
+	@Override
+	public void run()
+	{
+		try
+		{
+			watcher = FileSystems.getDefault().newWatchService();
+			if (closed)
+			{
+				// close() came first
+				watcher.close();
+				return;
+			}
+			// watch first, so changes made while contributions are recorded are not missed
+			register(directory);
+			track();
+			log("watching "+directory.getAbsolutePath()+", "+files.size()+" files tracked");
+
+			while (true)
+			{
+				Set<File> changed = new LinkedHashSet<File>();
+				boolean overflow = collect(watcher.take(), changed);
+				Thread.sleep(quietMillis);
+				WatchKey key;
+				while ((key = watcher.poll()) != null)
+					overflow |= collect(key, changed);
+
+				if (overflow)
+				{
+					rescan();
+					continue;
+				}
+				for (File file : changed)
+					update(file);
+			}
+		}
+		catch(ClosedWatchServiceException e)
+		{
+			// closed by close()
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(IOException e)
+		{
+			log("corpus watching stopped: "+e);
+		}
+		finally
+		{
+			closeStored();
+		}
+	}
+
+    /**
+     * stop watching
+     */
+	public void close() throws IOException
+	{
+		closed = true;
+		WatchService current = watcher;
+		if (current != null)
+			current.close();
+	}
+
+    /**
+     * record the contribution of every file the index was built from, then
+     * apply files that appeared since the corpus was listed. contributions
+     * stored with the snapshot are taken as they are; without them every
+     * file is read once and they are stored for the next start
+     */
+	private void track() throws IOException
+	{
+		File contributions = snapshot != null ? new File(snapshot.getPath()+".contributions") : null;
+		if (contributions != null)
+		{
+			boolean loaded = false;
+			try
+			{
+				loaded = load(contributions);
+			}
+			catch(IOException e)
+			{
+				log("unreadable contributions, reading the corpus: "+contributions.getAbsolutePath()+" "+e);
+			}
+			if (!loaded)
+			{
+				closeStored();
+				files.clear();
+				try
+				{
+					store(contributions);
+					if (!load(contributions))
+						throw new IOException("stored contributions do not match the snapshot");
+					log("contributions stored: "+contributions.getAbsolutePath());
+				}
+				catch(IOException e)
+				{
+					log("cannot store contributions: "+contributions.getAbsolutePath()+" "+e);
+					closeStored();
+					files.clear();
+				}
+			}
+		}
+
+		for (int i = 0; i < corpus.length; i++)
+		{
+			File file = corpus[i];
+			Contribution known = files.get(file.getAbsolutePath());
+			if (known != null && known.length == lengths[i] && known.lastModified == lastModified[i])
+				continue;
+			if (file.length() != lengths[i] || file.lastModified() != lastModified[i])
+				log("changed while indexing, word_count may be off until restart: "+file.getAbsolutePath());
+			try
+			{
+				files.put(file.getAbsolutePath(), read(file));
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+			}
+		}
+		rescan();
+	}
+
+    /**
+     * compare the whole tree against the tracked files, after lost events
+     */
+	private void rescan() throws IOException
+	{
+		List<File> current = new ArrayList<File>();
+		list(directory, current);
+		Set<String> seen = new LinkedHashSet<String>();
+		for (File file : current)
+		{
+			seen.add(file.getAbsolutePath());
+			update(file);
+		}
+
+		List<String> gone = new ArrayList<String>();
+		for (String path : files.keySet())
+		{
+			if (!seen.contains(path))
+				gone.add(path);
+		}
+		for (String path : gone)
+			update(new File(path));
+	}
+
+    /**
+     * bring one path up to date: a new, modified or deleted file, or a
+     * deleted directory whose files were tracked
+     *
+     * @param file: changed path
+     */
+	private void update(File file) throws IOException
+	{
+		String path = file.getAbsolutePath();
+		if (file.isDirectory())
+			return;
+
+		if (!file.exists())
+		{
+			// a deleted directory only reports itself
+			String prefix = path + File.separator;
+			List<String> removed = new ArrayList<String>();
+			for (String tracked : files.keySet())
+			{
+				if (tracked.equals(path) || tracked.startsWith(prefix))
+					removed.add(tracked);
+			}
+			for (String tracked : removed)
+			{
+				apply(entries(files.remove(tracked)), null);
+				log("removed: "+tracked);
+			}
+			return;
+		}
+
+		Contribution old = files.get(path);
+		if (old != null && old.length == file.length() && old.lastModified == file.lastModified())
+			return;
+		Contribution current;
+		try
+		{
+			current = read(file);
+		}
+		catch(IOException e)
+		{
+			// still being written or already gone, a later event brings it up to date
+			log("unreadable file:"+path+" "+e);
+			return;
+		}
+		apply(entries(old), current.entries);
+		files.put(path, current);
+		log((old == null ? "added: " : "updated: ")+path);
+	}
+
+    /**
+     * add the difference between two contributions of a file to the overlay
+     *
+     * @param old: entries counted so far, or null
+     * @param current: new entries, or null when the file is gone
+     */
+	private void apply(byte[] old, byte[] current)
+	{
+		Decoder before = new Decoder(old);
+		Decoder after = new Decoder(current);
+		while (before.hasNext() || after.hasNext())
+		{
+			if (!after.hasNext() || (before.hasNext() && before.id < after.id))
+			{
+				overlay.add(before.id, -before.count);
+				before.next();
+			}
+			else if (!before.hasNext() || after.id < before.id)
+			{
+				overlay.add(after.id, after.count);
+				after.next();
+			}
+			else
+			{
+				overlay.add(after.id, after.count - before.count);
+				before.next();
+				after.next();
+			}
+		}
+		overlay.advance();
+	}
+
+    /**
+     * count the words of a file and encode them as a contribution
+     *
+     * @param file: file to read
+     */
+	private Contribution read(File file) throws IOException
+	{
+		long length = file.length();
+		long modified = file.lastModified();
+		batch.clear();
+		WordTokenizer.Sink sink = new WordTokenizer.Sink()
+		{
+			@Override
+			public void word(byte[] bytes, int offset, int length)
+			{
+				batch.add(bytes, offset, length);
+			}
+		};
+		if (ArchiveCorpus.isArchive(file))
+		{
+			ArchiveCorpus.tokenize(file, tokenizer, sink);
+		}
+		else if (GzipCorpus.isGzip(file))
+		{
+			GzipCorpus.tokenize(file, sink, false);
+		}
+		else
+		{
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try
+			{
+				tokenizer.tokenize(in.getChannel(), 0, in.length(), sink);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		// sort entries by word id, the entry number rides in the low half
+		int size = batch.size();
+		long[] order = new long[size];
+		byte[] keys = batch.getKeys();
+		for (int entry = 0; entry < size; entry++)
+		{
+			int id = overlay.id(keys, batch.getKeyOffset(entry), batch.getKeyLength(entry));
+			order[entry] = ((long) id << 32) | entry;
+		}
+		Arrays.sort(order);
+
+		Encoder encoder = new Encoder(size * 3 + 5);
+		encoder.write(size);
+		int previous = 0;
+		for (long value : order)
+		{
+			int id = (int) (value >>> 32);
+			encoder.write(id - previous);
+			encoder.write(batch.getCount((int) value));
+			previous = id;
+		}
+		batch.clear();
+		return new Contribution(length, modified, encoder.toByteArray());
+	}
+
+    /**
+     * entries of a contribution, read from the stored contributions when
+     * they are not in memory
+     *
+     * @param contribution: contribution, or null
+     * @return entries, or null for no contribution
+     */
+	private byte[] entries(Contribution contribution) throws IOException
+	{
+		if (contribution == null || contribution.entries != null)
+			return contribution != null ? contribution.entries : null;
+		byte[] entries = new byte[contribution.size];
+		stored.seek(contribution.offset);
+		stored.readFully(entries);
+		return entries;
+	}
+
+    /**
+     * read every corpus file and store its contribution next to the snapshot,
+     * replacing the file atomically. a file that changed since the corpus
+     * was listed may hold words outside the index, it is stored stale
+     *
+     * @param file: contributions file
+     */
+	private void store(File file) throws IOException
+	{
+		File temp = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(snapshot.length());
+			out.writeLong(snapshot.lastModified());
+			out.writeInt(overlay.getIndex().size());
+			out.writeInt(corpus.length);
+			for (int i = 0; i < corpus.length; i++)
+			{
+				Contribution contribution;
+				try
+				{
+					contribution = read(corpus[i]);
+				}
+				catch(IOException e)
+				{
+					log("unreadable file:"+corpus[i].getAbsolutePath()+" "+e);
+					contribution = null;
+				}
+				boolean stale = contribution == null || contribution.length != lengths[i]
+						|| contribution.lastModified != lastModified[i];
+				byte[] path = corpus[i].getAbsolutePath().getBytes(Utf8.UTF8);
+				byte[] entries = stale ? new byte[1] : contribution.entries;
+				out.writeInt(path.length);
+				out.write(path);
+				out.writeLong(stale ? -1 : lengths[i]);
+				out.writeLong(lastModified[i]);
+				out.writeInt(entries.length);
+				out.write(entries);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if (file.exists() && !file.delete())
+			throw new IOException("cannot replace contributions: "+file.getAbsolutePath());
+		if (!temp.renameTo(file))
+			throw new IOException("cannot rename contributions: "+temp.getAbsolutePath());
+	}
+
+    /**
+     * track the stored contributions when they belong to the snapshot,
+     * keeping only their position in memory
+     *
+     * @param file: contributions file
+     * @return false when there are none or they belong to another snapshot
+     */
+	private boolean load(File file) throws IOException
+	{
+		if (!file.isFile())
+			return false;
+
+		long total = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try
+		{
+			if (total < HEADER || in.readInt() != MAGIC || in.readInt() != VERSION)
+				return false;
+			if (in.readLong() != snapshot.length() || in.readLong() != snapshot.lastModified()
+					|| in.readInt() != overlay.getIndex().size())
+				return false;
+
+			int count = in.readInt();
+			long position = HEADER;
+			for (int i = 0; i < count; i++)
+			{
+				int pathLength = in.readInt();
+				if (pathLength < 0 || position + 4 + pathLength + 20 > total)
+					throw new EOFException("truncated contributions");
+				byte[] path = new byte[pathLength];
+				in.readFully(path);
+				long length = in.readLong();
+				long modified = in.readLong();
+				int size = in.readInt();
+				long offset = position + 4 + pathLength + 20;
+				if (size <= 0 || offset + size > total)
+					throw new EOFException("truncated contributions");
+				skip(in, size);
+				files.put(new String(path, Utf8.UTF8), new Contribution(length, modified, offset, size));
+				position = offset + size;
+			}
+			if (position != total)
+				throw new IOException("trailing bytes in contributions");
+		}
+		finally
+		{
+			in.close();
+		}
+		stored = new RandomAccessFile(file, "r");
+		return true;
+	}
+
+    /**
+     * skip bytes of a stream
+     *
+     * @param in: stream
+     * @param count: number of bytes to skip
+     */
+	private static void skip(DataInputStream in, int count) throws IOException
+	{
+		while (count > 0)
+		{
+			int skipped = in.skipBytes(count);
+			if (skipped <= 0)
+				throw new EOFException("truncated contributions");
+			count -= skipped;
+		}
+	}
+
+    /**
+     * close the stored contributions, if open
+     */
+	private void closeStored()
+	{
+		if (stored == null)
+			return;
+		try
+		{
+			stored.close();
+		}
+		catch(IOException e)
+		{
+			log("cannot close contributions: "+e);
+		}
+		stored = null;
+	}
+
+    /**
+     * watch a directory and its subdirectories
+     *
+     * @param dir: directory to register
+     */
+	private void register(File dir) throws IOException
+	{
+		Path path = dir.toPath();
+		WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		directories.put(key, path);
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (File entry : entries)
+		{
+			if (entry.isDirectory())
+				register(entry);
+		}
+	}
+
+    /**
+     * gather the changed paths of one signalled key
+     *
+     * @param key: signalled watch key
+     * @param changed: set receiving changed paths
+     * @return true when events were lost and the tree must be rescanned
+     */
+	private boolean collect(WatchKey key, Set<File> changed) throws IOException
+	{
+		boolean overflow = false;
+		Path dir = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+			{
+				overflow = true;
+				continue;
+			}
+			File file = dir.resolve((Path) event.context()).toFile();
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory())
+			{
+				// a new directory may already hold files written before it was registered
+				register(file);
+				List<File> inside = new ArrayList<File>();
+				list(file, inside);
+				changed.addAll(inside);
+				continue;
+			}
+			changed.add(file);
+		}
+		if (!key.reset())
+		{
+			directories.remove(key);
+			Iterator<Map.Entry<WatchKey, Path>> it = directories.entrySet().iterator();
+			while (it.hasNext())
+			{
+				if (!it.next().getKey().isValid())
+					it.remove();
+			}
+		}
+		return overflow;
+	}
+
+    /**
+     * collect the regular files of a directory and its subdirectories
+     *
+     * @param dir: directory to walk
+     * @param out: list receiving the files
+     */
+	private static void list(File dir, List<File> out)
+	{
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (File entry : entries)
+		{
+			if (entry.isDirectory())
+				list(entry, out);
+			else if (entry.isFile())
+				out.add(entry);
+		}
+	}
+
+    /**
+     * Log a message to the servlet context application log.
+     *
+     * @param message Message to be logged
+     */
+	private void log(String message)
+	{
+		if (context != null)
+			context.log("CorpusWatcher: " + message);
+		else
+			System.out.println("CorpusWatcher: " + message);
+	}
+
+	/**
+	 * Encoder:
+	 *   growing buffer of unsigned varints
+	 */
+	private static class Encoder
+	{
+		private byte[] bytes;
+		private int size = 0;
+
+		private Encoder(int capacity)
+		{
+			bytes = new byte[capacity];
+		}
+
+		private void write(long value)
+		{
+			if (size + 10 > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(size + 10, bytes.length * 2));
+			while ((value & ~0x7FL) != 0)
+			{
+				bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		private byte[] toByteArray()
+		{
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+
+	/**
+	 * Decoder:
+	 *   cursor over the entries of a contribution
+	 */
+	private static class Decoder
+	{
+		private final byte[] bytes;
+		private int position = 0;
+		private long remaining;
+		private int id = 0;
+		private long count = 0;
+
+		private Decoder(byte[] bytes)
+		{
+			this.bytes = bytes;
+			this.remaining = bytes != null ? read() : 0;
+			if (remaining > 0)
+				next();
+			else
+				remaining = -1;
+		}
+
+		private boolean hasNext()
+		{
+			return remaining >= 0;
+		}
+
+		private void next()
+		{
+			if (remaining == 0)
+			{
+				remaining = -1;
+				return;
+			}
+			id += (int) read();
+			count = read();
+			remaining--;
+		}
+
+		private long read()
+		{
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do
+			{
+				b = bytes[position++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+}
@@ -1,55 +1,192 @@
 package wordcountservice;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-
 import javax.servlet.ServletContext;
 
 public class Functions {
     /**
-     * generate hash value according input string and digest algorithm 
+     * create word count store from context init parameters
+     *   wordCountStore: heap (default) or offheap
+     *   wordCountStripes: stripe or segment count
+     *   wordHasher: murmur3 (default), xxhash, md5 or a WordHasher class name
+     *   offHeapSegmentCapacity: initial slot count of each off-heap segment
      *
-     * @param input: string to hash
-     * @param md: message-digesting algorithm object 
+     * @param context: ServeletContext, providing init parameters
      */
-	private static String getModulo(String input, MessageDigest md) throws NoSuchAlgorithmException
+	public static WordCountStore createWordCountStore(ServletContext context)
 	{
-		//System.out.println(input);
-		String hashtext = null;
+		int stripes = getIntParameter(context, "wordCountStripes", WordCountStore.DEFAULT_STRIPES);
+		WordHasher hasher = WordHasher.create(context.getInitParameter("wordHasher"));
+		String type = context.getInitParameter("wordCountStore");
+		if (type == null || type.trim().length() == 0 || type.trim().equals("heap"))
+			return new StripedWordCountStore(stripes, hasher);
+		if (type.trim().equals("offheap"))
+			return new OffHeapWordCountStore(stripes, getIntParameter(context,
+					"offHeapSegmentCapacity", OffHeapWordCountStore.DEFAULT_SEGMENT_CAPACITY), hasher);
+		throw new IllegalArgumentException("Not a valid word count store: "+type);
+	}
 
-		byte[] messageDigest = md.digest(input.getBytes());
-		BigInteger number = new BigInteger(1, messageDigest);
-		hashtext = number.toString(16);
+    /**
+     * read an integer context init parameter
+     *
+     * @param context: ServeletContext, providing init parameters
+     * @param name: parameter name
+     * @param defaultValue: value used when the parameter is not set
+     */
+	public static int getIntParameter(ServletContext context, String name, int defaultValue)
+	{
+		String configured = context.getInitParameter(name);
+		if (configured == null || configured.trim().length() == 0)
+			return defaultValue;
+		return Integer.parseInt(configured.trim());
+	}
 
-		while (hashtext.length() < 32)
-		{
-			hashtext = "0" + hashtext;
-		}
-		
-		return hashtext;
-    }
+    /**
+     * retrieve query_count store shared through ServeletContext
+     *
+     * @param context: ServeletContext, storing query_count store
+     */
+	public static WordCountStore getQueryCountStore(ServletContext context)
+	{
+		return (WordCountStore) context.getAttribute("queryCountStore");
+	}
+
+    /**
+     * retrieve frozen word_count index shared through ServeletContext
+     *
+     * @param context: ServeletContext, storing word_count index
+     */
+	public static WordCountIndex getWordCountIndex(ServletContext context)
+	{
+		return (WordCountIndex) context.getAttribute("wordCountIndex");
+	}
 
     /**
-     * retrieve hashMap based on input string's digested hash value
+     * retrieve word_count changes made after the index was built, shared through ServeletContext
      *
-     * @param input: string to hash
-     * @param context: ServeletContext, storing message-digesting algorithm object 
+     * @param context: ServeletContext, storing word_count overlay
+     * @return overlay, or null while the index is not published
      */
-	@SuppressWarnings("unchecked")
-	public synchronized static HashMap<String , String > getHashMap(String key, ServletContext context) throws NoSuchAlgorithmException
+	public static WordCountOverlay getWordCountOverlay(ServletContext context)
 	{
-		HashMap<String, String> wordCountMap = null;
-		
-		String digestKey = Functions.getModulo(key, (MessageDigest) context.getAttribute("messageDigest"));
+		return (WordCountOverlay) context.getAttribute("wordCountOverlay");
+	}
 
-		wordCountMap = (HashMap<String, String>) context.getAttribute(digestKey);
-		if (wordCountMap == null)
+    /**
+     * retrieve store still being filled by corpus ingestion, shared through ServeletContext
+     *
+     * @param context: ServeletContext, storing ingestion store
+     * @return store, or null when no ingestion is running
+     */
+	public static WordCountStore getIngestionStore(ServletContext context)
+	{
+		return (WordCountStore) context.getAttribute("ingestionStore");
+	}
+
+    /**
+     * retrieve progress of the word_count index build shared through ServeletContext
+     *
+     * @param context: ServeletContext, storing indexing status
+     */
+	public static IndexingStatus getIndexingStatus(ServletContext context)
+	{
+		return (IndexingStatus) context.getAttribute("indexingStatus");
+	}
+
+    /**
+     * retrieve query_count journal shared through ServeletContext
+     *
+     * @param context: ServeletContext, storing query_count journal
+     * @return journal, or null when query_count is kept in memory only
+     */
+	public static QueryCountJournal getQueryCountJournal(ServletContext context)
+	{
+		return (QueryCountJournal) context.getAttribute("queryCountJournal");
+	}
+
+    /**
+     * retrieve access log shared through ServeletContext
+     *
+     * @param context: ServeletContext, storing access log
+     * @return access log, or null when requests are not logged
+     */
+	public static AccessLog getAccessLog(ServletContext context)
+	{
+		return (AccessLog) context.getAttribute("accessLog");
+	}
+
+    /**
+     * increase query_count of a word, log it to the query_count journal if any,
+     * and pair it with the word's corpus word_count, including files changed
+     * since the index was built. while the index is not built yet, word_count
+     * is what ingestion has counted so far
+     *
+     * @param context: ServeletContext, storing query_count store and word_count index
+     * @param word: queried word
+     */
+	public static WordCount query(ServletContext context, String word)
+	{
+		return query(context, word, null);
+	}
+
+    /**
+     * query a word like query(context, word), filling a record owned by the
+     * caller so that a query allocates nothing
+     *
+     * @param context: ServeletContext, storing query_count store and word_count index
+     * @param word: queried word
+     * @param into: record receiving query_count and word_count, or null for a new one
+     * @return the filled record
+     */
+	public static WordCount query(ServletContext context, String word, WordCount into)
+	{
+		WordCount counts = getQueryCountStore(context).query(word, into);
+		QueryCountJournal journal = getQueryCountJournal(context);
+		if (journal != null)
+			journal.append(word, counts);
+		return withWordCount(context, counts, word);
+	}
+
+    /**
+     * look up the word_count of a word without touching query_count, from
+     * the index and its overlay without locking once the index is published.
+     * query_count of the result is zero
+     *
+     * @param context: ServeletContext, storing word_count index
+     * @param word: peeked word
+     * @param into: record receiving word_count, or null for a new one
+     * @return the filled record
+     */
+	public static WordCount peek(ServletContext context, String word, WordCount into)
+	{
+		WordCount counts = into != null ? into.set(0, null, 0, null) : new WordCount(0, 0);
+		return withWordCount(context, counts, word);
+	}
+
+    /**
+     * fill in the current word_count of a word, leaving query_count as it is
+     *
+     * @param context: ServeletContext, storing word_count index
+     * @param counts: record receiving word_count
+     * @param word: looked up word
+     * @return counts
+     */
+	private static WordCount withWordCount(ServletContext context, WordCount counts, String word)
+	{
+		WordCountOverlay overlay = getWordCountOverlay(context);
+		if (overlay != null)
+			return overlay.apply(counts, word);
+		WordCountIndex index = getWordCountIndex(context);
+		if (index == null)
 		{
-			wordCountMap = new HashMap<String, String>();
-			context.setAttribute(digestKey, wordCountMap);
+			WordCountStore partial = getIngestionStore(context);
+			WordCount seen = partial != null ? partial.get(word) : null;
+			if (seen == null)
+				return counts;
+			return counts.setWordCount(seen.getWordCountLong(), seen.getWordCountOverflow());
 		}
-		return wordCountMap;
+		int slot = index.find(word);
+		if (slot < 0)
+			return counts;
+		return counts.setWordCount(index.getWordCount(slot), index.getWordCountOverflow(slot));
 	}
 }
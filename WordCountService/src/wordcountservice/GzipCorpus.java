@@ -0,0 +1,765 @@
+package wordcountservice;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * GzipCorpus:
+ *   tokenizing of gzip-compressed corpus files (.gz), including files made
+ *   of several concatenated members, without inflating them to disk.
+ *   members can only be found without inflating when each one records its
+ *   compressed size, as BGZF (blocked gzip, written by bgzip) does; such a
+ *   file is cut into ranges of whole members by split() and the ranges are
+ *   inflated and tokenized independently. a range does not start or end at
+ *   whitespace, so the word pieces at its edges are kept as Edges and
+ *   joined by stitch() once all ranges are done. any other gzip file is a
+ *   single stream, which tokenize() inflates on its own thread, handing
+ *   chunks to the tokenizing thread through a small queue so both run at
+ *   the same time.
+ *   both ways can resume part way: the tokenizer reports offsets into the
+ *   inflated bytes, and a resumed read inflates and drops the bytes before
+ *   the given offset instead of tokenizing them again.
+ */
+public class GzipCorpus
+{
+	// bytes read from the compressed file at once
+	private static final int INPUT_SIZE = 1 << 16;
+	// bytes handed from the inflating to the tokenizing thread at once
+	private static final int CHUNK_SIZE = 1 << 18;
+	// chunks in flight between the two threads
+	private static final int CHUNKS = 4;
+
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final int FHCRC = 2;
+
+	private static final byte[] MARK = new byte[] { 'x' };
+	private static final byte[] SPACE = new byte[] { ' ' };
+
+	/**
+	 * Edges:
+	 *   word pieces at the edges of a range: the bytes before its first
+	 *   whitespace and after its last one, or all of its bytes when it has
+	 *   no whitespace
+	 */
+	public static class Edges
+	{
+		private byte[] head = null;
+		private byte[] tail = new byte[0];
+		private boolean whole = false;
+
+		public Edges()
+		{
+		}
+
+	    /**
+	     * constructor Edges, for edges kept from an earlier read
+	     *
+	     * @param head: bytes before the first whitespace
+	     * @param tail: bytes after the last whitespace
+	     * @param whole: whether the range has no whitespace, head then holds all of it
+	     */
+		public Edges(byte[] head, byte[] tail, boolean whole)
+		{
+			this.head = head;
+			this.tail = tail;
+			this.whole = whole;
+		}
+
+	    /**
+	     * bytes before the first whitespace, null until the first one was read
+	     */
+		public byte[] getHead()
+		{
+			return head;
+		}
+
+	    /**
+	     * bytes after the last whitespace
+	     */
+		public byte[] getTail()
+		{
+			return tail;
+		}
+
+	    /**
+	     * whether the range has no whitespace
+	     */
+		public boolean isWhole()
+		{
+			return whole;
+		}
+	}
+
+    /**
+     * whether a corpus file is gzip-compressed, judged by its name
+     *
+     * @param file: corpus file
+     */
+	public static boolean isGzip(File file)
+	{
+		return file.getName().endsWith(".gz");
+	}
+
+    /**
+     * cut a gzip file into ranges of whole members
+     *
+     * @param channel: file to cut
+     * @param rangeSize: wanted compressed range length in bytes
+     * @return ascending offsets, starting with 0 and ending with the file size,
+     *         or null when not every member records its size
+     */
+	public static long[] split(FileChannel channel, long rangeSize) throws IOException
+	{
+		if (rangeSize <= 0)
+			throw new IllegalArgumentException("Not a valid range size: "+rangeSize);
+
+		long size = channel.size();
+		List<Long> cuts = new ArrayList<Long>();
+		cuts.add(0L);
+		ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		long position = 0;
+		long rangeStart = 0;
+		while (position < size)
+		{
+			if (!readFully(channel, header, position)
+					|| header.get(0) != 0x1f || header.get(1) != (byte) 0x8b || header.get(2) != 8
+					|| (header.get(3) & FEXTRA) == 0)
+				return null;
+			int extraLength = header.getShort(10) & 0xFFFF;
+			ByteBuffer extra = ByteBuffer.allocate(extraLength).order(ByteOrder.LITTLE_ENDIAN);
+			if (!readFully(channel, extra, position + 12))
+				return null;
+			int blockSize = blockSize(extra);
+			if (blockSize < 0)
+				return null;
+
+			position += blockSize;
+			if (position - rangeStart >= rangeSize && position < size)
+			{
+				cuts.add(position);
+				rangeStart = position;
+			}
+		}
+		if (position != size)
+			return null;
+		cuts.add(size);
+
+		long[] result = new long[cuts.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = cuts.get(i);
+		return result;
+	}
+
+    /**
+     * inflate and tokenize a range of whole members produced by split(),
+     * handing out only the words that lie completely inside the range
+     *
+     * @param channel: file to read
+     * @param start: first byte of the range
+     * @param end: end of the range, exclusive
+     * @param sink: receiver of the inner words
+     * @return word pieces at the range edges, to be passed to stitch()
+     */
+	public static Edges tokenize(FileChannel channel, long start, long end, WordTokenizer.Sink sink)
+			throws IOException
+	{
+		return tokenize(channel, start, end, new WordTokenizer(), new Edges(), 0, sink);
+	}
+
+    /**
+     * inflate and tokenize a range of whole members produced by split(),
+     * possibly resuming an earlier read of it. the tokenizer's position is
+     * the offset into the inflated bytes of the range
+     *
+     * @param channel: file to read
+     * @param start: first byte of the range
+     * @param end: end of the range, exclusive
+     * @param tokenizer: fresh tokenizer
+     * @param edges: edges to fill, empty to read from the start or holding the
+     *               head found by the earlier read; the head is set once known
+     * @param skip: inflated bytes already read by the earlier read, right after a word
+     * @param sink: receiver of the inner words
+     * @return the edges, to be passed to stitch()
+     */
+	public static Edges tokenize(FileChannel channel, long start, long end, WordTokenizer tokenizer,
+			final Edges edges, long skip, final WordTokenizer.Sink sink) throws IOException
+	{
+		if (edges.head == null && skip != 0)
+			throw new IllegalArgumentException("Not a valid resume offset without head: "+skip);
+
+		// a mark ahead of the range makes the first word its head, whether or not
+		// the range starts with whitespace
+		boolean resumed = edges.head != null;
+		WordTokenizer.Sink inner = new WordTokenizer.Sink()
+		{
+			@Override
+			public void word(byte[] bytes, int offset, int length)
+			{
+				if (edges.head == null)
+					edges.head = copy(bytes, offset + 1, length - 1);
+				else
+					sink.word(bytes, offset, length);
+			}
+		};
+		if (!resumed)
+		{
+			tokenizer.setPosition(-MARK.length);
+			tokenizer.feed(MARK, 0, MARK.length, inner);
+		}
+		else
+		{
+			tokenizer.setPosition(skip);
+		}
+		inflate(new RangeInputStream(channel, start, end),
+				new SkippingOutputStream(new TokenizingOutputStream(tokenizer, inner), skip));
+		tokenizer.finish(new WordTokenizer.Sink()
+		{
+			@Override
+			public void word(byte[] bytes, int offset, int length)
+			{
+				if (edges.head != null)
+				{
+					edges.tail = copy(bytes, offset, length);
+					return;
+				}
+				// no whitespace at all
+				edges.head = copy(bytes, offset + 1, length - 1);
+				edges.whole = true;
+			}
+		});
+		return edges;
+	}
+
+    /**
+     * hand out the words formed by the edges of consecutive ranges
+     *
+     * @param edges: edges of all ranges of a file, in file order
+     * @param sink: receiver of the words
+     */
+	public static void stitch(List<Edges> edges, WordTokenizer.Sink sink)
+	{
+		WordTokenizer tokenizer = new WordTokenizer();
+		for (Edges range : edges)
+		{
+			tokenizer.feed(range.head, 0, range.head.length, sink);
+			if (range.whole)
+				continue;
+			tokenizer.feed(SPACE, 0, 1, sink);
+			tokenizer.feed(range.tail, 0, range.tail.length, sink);
+		}
+		tokenizer.finish(sink);
+	}
+
+    /**
+     * inflate and tokenize a whole gzip file
+     *
+     * @param file: file to read
+     * @param sink: receiver of the words
+     * @param pipelined: whether to inflate on a separate thread
+     */
+	public static void tokenize(File file, WordTokenizer.Sink sink, boolean pipelined) throws IOException
+	{
+		tokenize(file, new WordTokenizer(), 0, sink, pipelined);
+	}
+
+    /**
+     * inflate and tokenize a whole gzip file, possibly resuming an earlier
+     * read of it. the tokenizer's position is the offset into the inflated
+     * bytes of the file
+     *
+     * @param file: file to read
+     * @param tokenizer: fresh tokenizer
+     * @param skip: inflated bytes already read by the earlier read, right after a word, or 0
+     * @param sink: receiver of the words
+     * @param pipelined: whether to inflate on a separate thread
+     */
+	public static void tokenize(File file, WordTokenizer tokenizer, long skip, WordTokenizer.Sink sink,
+			boolean pipelined) throws IOException
+	{
+		tokenizer.setPosition(skip);
+		inflate(file, new SkippingOutputStream(new TokenizingOutputStream(tokenizer, sink), skip), pipelined);
+		tokenizer.finish(sink);
+	}
+
+    /**
+     * inflate a whole gzip file into a stream
+     *
+     * @param file: file to read
+     * @param out: receiver of the inflated bytes, written by the calling thread
+     * @param pipelined: whether to inflate on a separate thread
+     */
+	public static void inflate(File file, OutputStream out, boolean pipelined) throws IOException
+	{
+		if (!pipelined)
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				inflate(in, out);
+			}
+			finally
+			{
+				in.close();
+			}
+			return;
+		}
+
+		Pipeline pipeline = new Pipeline(file);
+		Thread inflater = new Thread(pipeline, "gzip-inflater");
+		inflater.setDaemon(true);
+		inflater.start();
+		try
+		{
+			while (true)
+			{
+				Chunk chunk;
+				try
+				{
+					chunk = pipeline.full.take();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while inflating "+file.getAbsolutePath());
+				}
+				if (chunk.length < 0)
+					break;
+				out.write(chunk.bytes, 0, chunk.length);
+				pipeline.empty.offer(chunk);
+			}
+		}
+		finally
+		{
+			// stops the inflating thread when the receiver failed
+			inflater.interrupt();
+		}
+		if (pipeline.failure != null)
+			throw pipeline.failure;
+	}
+
+	/**
+	 * Chunk:
+	 *   inflated bytes on their way to the tokenizing thread, a negative
+	 *   length marks the end of the file
+	 */
+	private static class Chunk
+	{
+		private final byte[] bytes;
+		private int length = 0;
+
+		private Chunk(int capacity)
+		{
+			bytes = new byte[capacity];
+		}
+	}
+
+	/**
+	 * Pipeline:
+	 *   inflating side of inflate(File), filling recycled chunks
+	 */
+	private static class Pipeline extends OutputStream implements Runnable
+	{
+		private final File file;
+		private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(CHUNKS + 1);
+		private final BlockingQueue<Chunk> empty = new ArrayBlockingQueue<Chunk>(CHUNKS);
+		private volatile IOException failure = null;
+		private Chunk current = null;
+
+		private Pipeline(File file)
+		{
+			this.file = file;
+			for (int i = 0; i < CHUNKS; i++)
+				empty.add(new Chunk(CHUNK_SIZE));
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				InputStream in = new FileInputStream(file);
+				try
+				{
+					inflate(in, this);
+				}
+				finally
+				{
+					in.close();
+				}
+				flush();
+			}
+			catch(IOException e)
+			{
+				failure = e;
+			}
+			// the end marker needs no recycled chunk, so it always fits
+			Chunk end = new Chunk(0);
+			end.length = -1;
+			full.offer(end);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			while (length > 0)
+			{
+				if (current == null)
+				{
+					try
+					{
+						current = empty.take();
+					}
+					catch(InterruptedException e)
+					{
+						throw new InterruptedIOException("tokenizing stopped");
+					}
+					current.length = 0;
+				}
+				int count = Math.min(length, current.bytes.length - current.length);
+				System.arraycopy(bytes, offset, current.bytes, current.length, count);
+				current.length += count;
+				offset += count;
+				length -= count;
+				if (current.length == current.bytes.length)
+					flush();
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+			if (current != null && current.length > 0)
+				full.add(current);
+			current = null;
+		}
+	}
+
+	/**
+	 * TokenizingOutputStream:
+	 *   feeds inflated bytes straight into a tokenizer
+	 */
+	private static class TokenizingOutputStream extends OutputStream
+	{
+		private final WordTokenizer tokenizer;
+		private final WordTokenizer.Sink sink;
+
+		private TokenizingOutputStream(WordTokenizer tokenizer, WordTokenizer.Sink sink)
+		{
+			this.tokenizer = tokenizer;
+			this.sink = sink;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+		{
+			tokenizer.feed(bytes, offset, length, sink);
+		}
+	}
+
+	/**
+	 * SkippingOutputStream:
+	 *   drops the first bytes written, passing on the rest
+	 */
+	private static class SkippingOutputStream extends OutputStream
+	{
+		private final OutputStream out;
+		private long skip;
+
+		private SkippingOutputStream(OutputStream out, long skip)
+		{
+			this.out = out;
+			this.skip = skip;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (skip > 0)
+			{
+				int count = (int) Math.min(skip, length);
+				skip -= count;
+				offset += count;
+				length -= count;
+			}
+			if (length > 0)
+				out.write(bytes, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+	}
+
+	/**
+	 * RangeInputStream:
+	 *   reads a range of a file channel by absolute position, so ranges of
+	 *   one file can be read by several threads
+	 */
+	private static class RangeInputStream extends InputStream
+	{
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		private RangeInputStream(FileChannel channel, long start, long end)
+		{
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (position >= end)
+				return -1;
+			length = (int) Math.min(length, end - position);
+			int count = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+			if (count < 0)
+				return -1;
+			position += count;
+			return count;
+		}
+	}
+
+    /**
+     * inflate all members of a gzip stream, checking each member's CRC and
+     * length; bytes after the last member that do not start another member
+     * are ignored, like java.util.zip.GZIPInputStream does
+     *
+     * @param in: compressed bytes
+     * @param out: receiver of the inflated bytes
+     * @return number of inflated bytes
+     */
+	private static long inflate(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] input = new byte[INPUT_SIZE];
+		byte[] output = new byte[INPUT_SIZE];
+		int[] window = new int[] { 0, 0 }; // position, limit
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		long total = 0;
+		try
+		{
+			boolean first = true;
+			while (true)
+			{
+				int id1 = next(in, input, window);
+				if (id1 < 0 && !first)
+					break;
+				int id2 = next(in, input, window);
+				if (id1 != 0x1f || id2 != 0x8b)
+				{
+					if (first)
+						throw new ZipException("Not in GZIP format");
+					break;
+				}
+				if (next(in, input, window) != 8)
+					throw new ZipException("Unsupported compression method");
+				int flags = next(in, input, window);
+				skip(in, input, window, 6);
+				if ((flags & FEXTRA) != 0)
+					skip(in, input, window, nextRequired(in, input, window) | (nextRequired(in, input, window) << 8));
+				if ((flags & FNAME) != 0)
+					while (nextRequired(in, input, window) != 0);
+				if ((flags & FCOMMENT) != 0)
+					while (nextRequired(in, input, window) != 0);
+				if ((flags & FHCRC) != 0)
+					skip(in, input, window, 2);
+
+				inflater.reset();
+				crc.reset();
+				long length = 0;
+				while (!inflater.finished())
+				{
+					if (inflater.needsInput())
+					{
+						if (window[0] == window[1] && !fill(in, input, window))
+							throw new EOFException("Unexpected end of ZLIB input stream");
+						inflater.setInput(input, window[0], window[1] - window[0]);
+						window[0] = window[1];
+					}
+					int count;
+					try
+					{
+						count = inflater.inflate(output);
+					}
+					catch(DataFormatException e)
+					{
+						throw new ZipException("Invalid deflate data: "+e.getMessage());
+					}
+					if (count > 0)
+					{
+						crc.update(output, 0, count);
+						out.write(output, 0, count);
+						length += count;
+					}
+					else if (inflater.needsDictionary())
+					{
+						throw new ZipException("Unexpected preset dictionary");
+					}
+				}
+				// give back what the inflater did not use
+				window[0] = window[1] - inflater.getRemaining();
+
+				long expectedCrc = readInt(in, input, window) & 0xFFFFFFFFL;
+				long expectedLength = readInt(in, input, window) & 0xFFFFFFFFL;
+				if (expectedCrc != crc.getValue() || expectedLength != (length & 0xFFFFFFFFL))
+					throw new ZipException("Corrupt GZIP trailer");
+				total += length;
+				first = false;
+			}
+		}
+		finally
+		{
+			inflater.end();
+		}
+		return total;
+	}
+
+    /**
+     * refill the input buffer once it is used up
+     *
+     * @return false at the end of the stream
+     */
+	private static boolean fill(InputStream in, byte[] input, int[] window) throws IOException
+	{
+		int count = in.read(input, 0, input.length);
+		if (count <= 0)
+			return false;
+		window[0] = 0;
+		window[1] = count;
+		return true;
+	}
+
+    /**
+     * next input byte, or -1 at the end of the stream
+     */
+	private static int next(InputStream in, byte[] input, int[] window) throws IOException
+	{
+		if (window[0] == window[1] && !fill(in, input, window))
+			return -1;
+		return input[window[0]++] & 0xFF;
+	}
+
+    /**
+     * next input byte of a member header or trailer
+     */
+	private static int nextRequired(InputStream in, byte[] input, int[] window) throws IOException
+	{
+		int b = next(in, input, window);
+		if (b < 0)
+			throw new EOFException("Unexpected end of GZIP member");
+		return b;
+	}
+
+    /**
+     * skip input bytes of a member header
+     */
+	private static void skip(InputStream in, byte[] input, int[] window, int count) throws IOException
+	{
+		for (int i = 0; i < count; i++)
+			nextRequired(in, input, window);
+	}
+
+    /**
+     * little-endian int of a member trailer
+     */
+	private static int readInt(InputStream in, byte[] input, int[] window) throws IOException
+	{
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+			value |= nextRequired(in, input, window) << (8 * i);
+		return value;
+	}
+
+    /**
+     * total size of a BGZF member from the BC subfield of its extra field
+     *
+     * @param extra: extra field of the member header
+     * @return member size in bytes, or -1 when the member does not record it
+     */
+	private static int blockSize(ByteBuffer extra)
+	{
+		int i = 0;
+		while (i + 4 <= extra.limit())
+		{
+			int length = extra.getShort(i + 2) & 0xFFFF;
+			if (extra.get(i) == 'B' && extra.get(i + 1) == 'C' && length == 2 && i + 6 <= extra.limit())
+				return (extra.getShort(i + 4) & 0xFFFF) + 1;
+			i += 4 + length;
+		}
+		return -1;
+	}
+
+    /**
+     * read a buffer completely at a position
+     *
+     * @return false when the file ends first
+     */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		buffer.clear();
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * copy of a word handed to a sink
+     */
+	private static byte[] copy(byte[] bytes, int offset, int length)
+	{
+		byte[] word = new byte[length];
+		System.arraycopy(bytes, offset, word, 0, length);
+		return word;
+	}
+}
@@ -0,0 +1,311 @@
+package wordcountservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * IndexSnapshot:
+ *   versioned binary file holding a WordCountIndex together with the
+ *   fingerprint of the corpus it was built from (path, size, mtime and
+ *   CRC32 of every file). on startup the index is memory-mapped back
+ *   instead of re-reading the corpus when the fingerprint still matches:
+ *   a file whose size changed is stale, a file with equal size and mtime
+ *   is fresh, and only a file with equal size but a new mtime is read
+ *   again to compare its CRC32, so a warm start does not depend on corpus
+ *   size unless files were touched. the fingerprint records each file as
+ *   it was listed for ingestion; a file that changed before the snapshot
+ *   is written is recorded stale, so the next start reads it again.
+ */
+public class IndexSnapshot
+{
+	private static final int MAGIC = 0x57434958; // "WCIX"
+	// bump whenever the file layout, index placement or the way corpus files are read changes
+	private static final int VERSION = 4;
+	// oldest version still read, 2 added the sorted layout, 3 reads .gz
+	// files inflated and 4 reads the entries of .zip, .tar, .tar.gz and .tgz
+	// archives, so the word_count of older snapshots is stale
+	private static final int MIN_VERSION = 4;
+
+    /**
+     * map the index of a snapshot if it was built from the given corpus
+     *
+     * @param snapshot: snapshot file
+     * @param corpus: corpus files the index should cover
+     * @return mapped index, or null when the snapshot is missing or stale
+     */
+	public static WordCountIndex load(File snapshot, File[] corpus) throws IOException
+	{
+		return open(snapshot, corpus);
+	}
+
+    /**
+     * map the index of a snapshot whatever corpus it was built from
+     *
+     * @param snapshot: snapshot file
+     */
+	public static WordCountIndex map(File snapshot) throws IOException
+	{
+		WordCountIndex index = open(snapshot, null);
+		if (index == null)
+			throw new IOException("not an index snapshot: "+snapshot.getAbsolutePath());
+		return index;
+	}
+
+    /**
+     * map the index of a snapshot
+     *
+     * @param snapshot: snapshot file
+     * @param corpus: corpus files the index should cover, or null to skip the check
+     * @return mapped index, or null when the snapshot is missing or stale
+     */
+	private static WordCountIndex open(File snapshot, File[] corpus) throws IOException
+	{
+		if (!snapshot.isFile())
+			return null;
+
+		RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			ByteBuffer prefix = ByteBuffer.allocate(12);
+			while (prefix.hasRemaining())
+			{
+				if (channel.read(prefix) < 0)
+					return null;
+			}
+			if (prefix.getInt(0) != MAGIC || prefix.getInt(4) < MIN_VERSION || prefix.getInt(4) > VERSION)
+				return null;
+
+			ByteBuffer fingerprint = ByteBuffer.allocate(prefix.getInt(8));
+			while (fingerprint.hasRemaining())
+			{
+				if (channel.read(fingerprint) < 0)
+					return null;
+			}
+			if (corpus != null && !matches(new DataInputStream(new ByteArrayInputStream(fingerprint.array())), sorted(corpus)))
+				return null;
+
+			// mapped sections stay valid once the file is closed
+			return WordCountIndex.map(channel);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+    /**
+     * write an index and the fingerprint of its corpus, replacing the snapshot atomically
+     *
+     * @param snapshot: snapshot file
+     * @param index: index built from the corpus
+     * @param corpus: corpus files the index covers
+     * @param lengths: file sizes when the corpus was listed for ingestion
+     * @param lastModified: file mtimes when the corpus was listed for ingestion
+     */
+	public static void write(File snapshot, final WordCountIndex index, File[] corpus, long[] lengths,
+			long[] lastModified) throws IOException
+	{
+		write(snapshot, corpus, lengths, lastModified, new Body()
+		{
+			@Override
+			public void write(FileChannel channel) throws IOException
+			{
+				index.write(channel);
+			}
+		});
+	}
+
+    /**
+     * merge the runs of a spilling store into a sorted layout index and
+     * write it with the fingerprint of its corpus, replacing the snapshot
+     * atomically; the index never has to fit in memory
+     *
+     * @param snapshot: snapshot file
+     * @param store: store that counted the corpus
+     * @param corpus: corpus files the index covers
+     * @param lengths: file sizes when the corpus was listed for ingestion
+     * @param lastModified: file mtimes when the corpus was listed for ingestion
+     * @return number of words in the index
+     */
+	public static int write(File snapshot, SpillingWordCountStore store, File[] corpus, long[] lengths,
+			long[] lastModified) throws IOException
+	{
+		File directory = store.getDirectory();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create spill directory: "+directory.getAbsolutePath());
+		final WordCountIndex.SortedWriter writer = new WordCountIndex.SortedWriter(directory);
+		try
+		{
+			store.writeIndex(writer);
+			write(snapshot, corpus, lengths, lastModified, new Body()
+			{
+				@Override
+				public void write(FileChannel channel) throws IOException
+				{
+					writer.write(channel);
+				}
+			});
+			return writer.size();
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Body:
+	 *   writer of the index part of a snapshot
+	 */
+	private interface Body
+	{
+		public void write(FileChannel channel) throws IOException;
+	}
+
+    /**
+     * write a snapshot: prefix, fingerprint, then the index
+     *
+     * @param snapshot: snapshot file
+     * @param corpus: corpus files the index covers
+     * @param lengths: file sizes when the corpus was listed for ingestion
+     * @param lastModified: file mtimes when the corpus was listed for ingestion
+     * @param body: writer of the index
+     */
+	private static void write(File snapshot, final File[] corpus, long[] lengths, long[] lastModified, Body body)
+			throws IOException
+	{
+		if (lengths.length != corpus.length || lastModified.length != corpus.length)
+			throw new IllegalArgumentException("Not a valid corpus state: "+lengths.length+" sizes, "
+					+lastModified.length+" mtimes for "+corpus.length+" files");
+
+		// stable order, keeping each file with the state it was ingested in
+		Integer[] order = new Integer[corpus.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return corpus[a].compareTo(corpus[b]);
+			}
+		});
+
+		ByteArrayOutputStream fingerprint = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(fingerprint);
+		out.writeInt(order.length);
+		for (int i : order)
+		{
+			File f = corpus[i];
+			long crc = crc(f);
+			// checked after the CRC, so a change while summing is caught too; a
+			// stale file gets a size no file has and never matches
+			boolean changed = f.length() != lengths[i] || f.lastModified() != lastModified[i];
+			out.writeUTF(f.getAbsolutePath());
+			out.writeLong(changed ? -1 : lengths[i]);
+			out.writeLong(lastModified[i]);
+			out.writeLong(crc);
+		}
+		out.flush();
+
+		File temp = new File(snapshot.getPath()+".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try
+		{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer prefix = ByteBuffer.allocate(12);
+			prefix.putInt(0, MAGIC);
+			prefix.putInt(4, VERSION);
+			prefix.putInt(8, fingerprint.size());
+			while (prefix.hasRemaining())
+				channel.write(prefix);
+			ByteBuffer stamp = ByteBuffer.wrap(fingerprint.toByteArray());
+			while (stamp.hasRemaining())
+				channel.write(stamp);
+			body.write(channel);
+			channel.force(true);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if (snapshot.exists() && !snapshot.delete())
+			throw new IOException("cannot replace snapshot: "+snapshot.getAbsolutePath());
+		if (!temp.renameTo(snapshot))
+			throw new IOException("cannot rename snapshot: "+temp.getAbsolutePath());
+	}
+
+    /**
+     * compare a stored fingerprint against the current corpus
+     *
+     * @param in: stored fingerprint
+     * @param files: current corpus files, sorted
+     */
+	private static boolean matches(DataInputStream in, File[] files) throws IOException
+	{
+		if (in.readInt() != files.length)
+			return false;
+		for (File f : files)
+		{
+			String path = in.readUTF();
+			long size = in.readLong();
+			long mtime = in.readLong();
+			long crc = in.readLong();
+			if (!path.equals(f.getAbsolutePath()) || size != f.length())
+				return false;
+			if (mtime != f.lastModified() && crc != crc(f))
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * corpus files in a stable order
+     *
+     * @param corpus: corpus files
+     */
+	private static File[] sorted(File[] corpus)
+	{
+		File[] files = corpus.clone();
+		Arrays.sort(files);
+		return files;
+	}
+
+    /**
+     * CRC32 of a file's content
+     *
+     * @param f: file to checksum
+     */
+	private static long crc(File f) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[65536];
+		InputStream in = new FileInputStream(f);
+		try
+		{
+			int count;
+			while ((count = in.read(chunk)) != -1)
+				crc.update(chunk, 0, count);
+		}
+		finally
+		{
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,135 @@
+package wordcountservice;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IndexingStatus:
+ *   progress of the background build of the word_count index, shared with
+ *   the readiness endpoint. the indexing thread moves it through starting,
+ *   loading (snapshot), ingesting (corpus), building (index) and finally
+ *   ready or failed; ingestion workers add the files and bytes they
+ *   finished.
+ */
+public class IndexingStatus
+{
+	public static final String STARTING = "starting";
+	public static final String LOADING = "loading";
+	public static final String INGESTING = "ingesting";
+	public static final String BUILDING = "building";
+	public static final String READY = "ready";
+	public static final String FAILED = "failed";
+
+	private volatile String state = STARTING;
+	private volatile int totalFiles = 0;
+	private volatile long totalBytes = 0;
+	private final AtomicInteger doneFiles = new AtomicInteger();
+	private final AtomicLong doneBytes = new AtomicLong();
+
+    /**
+     * set the size of the corpus to index
+     *
+     * @param files: number of corpus files
+     * @param bytes: total size of the corpus files
+     */
+	public void setTotal(int files, long bytes)
+	{
+		totalFiles = files;
+		totalBytes = bytes;
+	}
+
+    /**
+     * move to the next indexing state
+     *
+     * @param state: one of the state constants
+     */
+	public void setState(String state)
+	{
+		if (state.equals(READY))
+		{
+			// a mapped snapshot covers the whole corpus without reading it
+			doneFiles.set(totalFiles);
+			doneBytes.set(totalBytes);
+		}
+		this.state = state;
+	}
+
+    /**
+     * count a file whose ranges were all read
+     */
+	public void addFile()
+	{
+		doneFiles.incrementAndGet();
+	}
+
+    /**
+     * count bytes read from the corpus
+     *
+     * @param bytes: bytes just read
+     */
+	public void addBytes(long bytes)
+	{
+		doneBytes.addAndGet(bytes);
+	}
+
+    /**
+     * current state
+     */
+	public String getState()
+	{
+		return state;
+	}
+
+    /**
+     * whether the index is complete and published
+     */
+	public boolean isReady()
+	{
+		return state.equals(READY);
+	}
+
+    /**
+     * number of corpus files
+     */
+	public int getTotalFiles()
+	{
+		return totalFiles;
+	}
+
+    /**
+     * total size of the corpus files
+     */
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+    /**
+     * number of corpus files read completely
+     */
+	public int getDoneFiles()
+	{
+		return doneFiles.get();
+	}
+
+    /**
+     * number of corpus bytes read
+     */
+	public long getDoneBytes()
+	{
+		return doneBytes.get();
+	}
+
+    /**
+     * share of corpus bytes read, 0 to 100
+     */
+	public int getPercent()
+	{
+		if (state.equals(READY))
+			return 100;
+		long total = totalBytes;
+		if (total == 0)
+			return 0;
+		return (int) Math.min(100, doneBytes.get() * 100 / total);
+	}
+}
@@ -0,0 +1,818 @@
+package wordcountservice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletContext;
+
+/**
+ * IngestCheckpoint:
+ *   progress of a corpus ingestion, written to disk as it goes so that a
+ *   restart resumes it instead of reading the corpus from zero. the
+ *   corpus is read in units (a small file, a range of a large file, a
+ *   whole gzip file, an archive entry) and every merge of a worker's batch into the store
+ *   commits, together with the words, how far the units it covers were
+ *   read: the offset right after the last word merged, or done. the file
+ *   is a header followed by frames, each with its length and a CRC32, and
+ *   nothing ever rewrites the store as a whole. with a store kept in
+ *   memory each commit becomes one frame holding its progress and the
+ *   words of its batch, encoded by the worker and appended by the writer
+ *   thread, which forces the file to disk every interval; as a frame
+ *   pairs words with offsets, any run of frames from the start is a state
+ *   to resume from. a commit to a SpillingWordCountStore runs under a read
+ *   lock, and every interval the writer takes the write lock just long
+ *   enough to have the store detach its tables, then writes them as a run
+ *   and appends a frame with the progress since the last one and the runs
+ *   holding every word so far. a restore adds up the words of every frame,
+ *   lets later progress replace earlier, and adopts the runs named by the
+ *   last frame. a frame cut short by a crash is ignored and overwritten.
+ *   a write error stops the checkpoints, the file keeps the frames before.
+ *   the file of a store kept in memory grows with every commit, about the
+ *   distinct words of each batch, until the index is built and it is
+ *   deleted; a restore replays it, which still beats reading the corpus.
+ */
+public class IngestCheckpoint
+{
+	private static final int MAGIC = 0x57434350; // "WCCP"
+	private static final int VERSION = 2;
+	private static final int BUFFER_SIZE = 1 << 16;
+	// frames waiting for the writer, commits wait beyond that
+	private static final int QUEUED_FRAMES = 16;
+	// queued by close() to wake the writer
+	private static final byte[] CLOSING = new byte[0];
+	// word_count of Long.MAX_VALUE, followed by its BigInteger bytes
+	private static final byte[] LONG_LIMIT = BigInteger.valueOf(Long.MAX_VALUE).toByteArray();
+
+	private final ServletContext context;
+	private final File file;
+	private final WordCountSink store;
+	private final File[] corpus;
+	private final long rangeSize;
+	private final long intervalMillis;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// committed progress by unit
+	private final Map<String, Progress> units = new ConcurrentHashMap<String, Progress>();
+	// frames of commits to a store kept in memory, in commit order
+	private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<byte[]>(QUEUED_FRAMES);
+	// progress committed to a spilling store since its last frame, swapped under the write lock
+	private volatile Map<String, Progress> changed = new ConcurrentHashMap<String, Progress>();
+	// end of the frames written or restored, used by the writer thread once started
+	private long end = 0;
+	private RandomAccessFile output = null;
+	private Thread writer = null;
+	// whether the writer takes frames, false once it stopped
+	private volatile boolean writing = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Progress:
+	 *   how far one unit was read, with the edges of a gzip range
+	 */
+	public static class Progress
+	{
+		// unit read completely, without edges
+		public static final Progress DONE = new Progress(null);
+
+		private final long position;
+		private final boolean done;
+		private final byte[] head;
+		private final byte[] tail;
+		private final boolean whole;
+
+	    /**
+	     * constructor Progress, for a unit read part way
+	     *
+	     * @param position: offset right after the last word merged
+	     * @param head: head of a gzip range, or null
+	     */
+		public Progress(long position, byte[] head)
+		{
+			this(position, false, head, null, false);
+		}
+
+	    /**
+	     * constructor Progress, for a unit read completely
+	     *
+	     * @param edges: edges of a gzip range, or null
+	     */
+		public Progress(GzipCorpus.Edges edges)
+		{
+			this(-1, true, edges != null ? edges.getHead() : null, edges != null ? edges.getTail() : null,
+					edges != null && edges.isWhole());
+		}
+
+		private Progress(long position, boolean done, byte[] head, byte[] tail, boolean whole)
+		{
+			this.position = position;
+			this.done = done;
+			this.head = head;
+			this.tail = tail;
+			this.whole = whole;
+		}
+
+	    /**
+	     * offset right after the last word merged, for a unit read part way
+	     */
+		public long getPosition()
+		{
+			return position;
+		}
+
+	    /**
+	     * whether the unit was read completely
+	     */
+		public boolean isDone()
+		{
+			return done;
+		}
+
+	    /**
+	     * edges of a gzip range as far as known, empty when there are none
+	     */
+		public GzipCorpus.Edges getEdges()
+		{
+			if (head == null)
+				return new GzipCorpus.Edges();
+			return new GzipCorpus.Edges(head, tail != null ? tail : new byte[0], whole);
+		}
+	}
+
+    /**
+     * constructor IngestCheckpoint
+     *
+     * @param context: ServletContext, used for logging
+     * @param file: checkpoint file
+     * @param store: store receiving word_count, empty until restore()
+     * @param corpus: corpus files being ingested
+     * @param rangeSize: range size of the ingestion, units differ with it
+     * @param intervalMillis: time between two checkpoints
+     */
+	public IngestCheckpoint(ServletContext context, File file, WordCountSink store, File[] corpus, long rangeSize,
+			long intervalMillis)
+	{
+		if (intervalMillis <= 0)
+			throw new IllegalArgumentException("Not a valid checkpoint interval: "+intervalMillis);
+
+		this.context = context;
+		this.file = file;
+		this.store = store;
+		this.corpus = corpus;
+		this.rangeSize = rangeSize;
+		this.intervalMillis = intervalMillis;
+	}
+
+    /**
+     * unit of a whole file
+     *
+     * @param file: corpus file
+     */
+	public static String unit(File file)
+	{
+		return file.getAbsolutePath();
+	}
+
+    /**
+     * unit of a range of a large file
+     *
+     * @param file: corpus file
+     * @param start: first byte of the range
+     */
+	public static String unit(File file, long start)
+	{
+		return file.getAbsolutePath()+"#"+start;
+	}
+
+    /**
+     * unit of a zip entry
+     *
+     * @param file: zip archive
+     * @param entry: entry name
+     */
+	public static String unit(File file, String entry)
+	{
+		return file.getAbsolutePath()+"!"+entry;
+	}
+
+    /**
+     * progress of a unit restored from the checkpoint file
+     *
+     * @param unit: unit name
+     * @return progress, or null when the unit was not started
+     */
+	public Progress get(String unit)
+	{
+		return units.get(unit);
+	}
+
+    /**
+     * merge a worker's batch into the store together with the progress it
+     * covers; neither is written to the file without the other
+     *
+     * @param batch: words read since the worker's last commit
+     * @param progress: units the batch covers, with how far they were read
+     */
+	public void commit(WordCountBatch batch, Map<String, Progress> progress)
+	{
+		if (store instanceof SpillingWordCountStore)
+		{
+			lock.readLock().lock();
+			try
+			{
+				if (batch.size() > 0)
+					store.addWords(batch);
+				units.putAll(progress);
+				changed.putAll(progress);
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+			return;
+		}
+
+		byte[] frame = writing ? frame(progress, batch) : null;
+		if (batch.size() > 0)
+			store.addWords(batch);
+		units.putAll(progress);
+		if (frame == null)
+			return;
+		try
+		{
+			// waits while the writer is behind, a writer that stopped takes nothing
+			while (writing && !frames.offer(frame, 100, TimeUnit.MILLISECONDS))
+				continue;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+    /**
+     * load the store and the progress of the checkpoint file when it was
+     * taken over the same corpus; any other checkpoint file is deleted.
+     * spilled runs of the store that the file does not name are deleted
+     *
+     * @return whether the ingestion resumes
+     */
+	public boolean restore() throws IOException
+	{
+		List<File> runs = new ArrayList<File>();
+		long valid;
+		boolean resumed;
+		try
+		{
+			valid = file.isFile() ? verify() : 0;
+			resumed = valid > 0 && read(valid, runs);
+		}
+		catch(IOException e)
+		{
+			// the store may hold part of the file, the next start begins from zero
+			delete();
+			throw e;
+		}
+		if (store instanceof SpillingWordCountStore)
+			((SpillingWordCountStore) store).adopt(runs);
+		if (!resumed)
+		{
+			units.clear();
+			delete();
+			valid = 0;
+		}
+		end = valid;
+		return resumed;
+	}
+
+    /**
+     * start writing the commits and taking checkpoints periodically
+     */
+	public synchronized void start()
+	{
+		writing = true;
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					follow();
+				}
+				catch(IOException e)
+				{
+					// ingestion goes on, a restart resumes from the frames written so far
+					log("cannot write ingestion checkpoint, no further checkpoints: "+file.getAbsolutePath()+" "+e);
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					writing = false;
+					frames.clear();
+					closeOutput();
+				}
+			}
+		}, "ingest-checkpoint");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+    /**
+     * stop taking checkpoints once the queued commits are written; the
+     * file stays until delete()
+     */
+	public void close()
+	{
+		Thread current;
+		synchronized (this)
+		{
+			closed = true;
+			current = writer;
+			writer = null;
+		}
+		if (current == null)
+			return;
+		// not interrupted, that would close the file channel mid-frame
+		frames.offer(CLOSING);
+		try
+		{
+			current.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+    /**
+     * delete the checkpoint file, once the index no longer depends on it
+     */
+	public void delete()
+	{
+		file.delete();
+	}
+
+    /**
+     * append the frames as they are committed, and take a checkpoint every
+     * interval, until close()
+     */
+	private void follow() throws IOException, InterruptedException
+	{
+		output = new RandomAccessFile(file, "rw");
+		// a frame cut short by a crash is overwritten
+		output.setLength(end);
+		output.seek(end);
+		if (end == 0)
+			append(header());
+
+		long due = System.currentTimeMillis() + intervalMillis;
+		while (true)
+		{
+			long wait = due - System.currentTimeMillis();
+			byte[] frame = wait > 0 ? frames.poll(wait, TimeUnit.MILLISECONDS) : frames.poll();
+			if (frame != null && frame != CLOSING)
+				append(frame);
+			if (closed && frames.isEmpty())
+			{
+				output.getChannel().force(true);
+				return;
+			}
+			if (System.currentTimeMillis() >= due)
+			{
+				checkpoint();
+				due = System.currentTimeMillis() + intervalMillis;
+			}
+		}
+	}
+
+    /**
+     * force the frames appended so far to disk, after appending a frame
+     * of a spilling store; its workers are held only while it detaches
+     * its tables
+     */
+	private void checkpoint() throws IOException
+	{
+		long started = System.nanoTime();
+		long held = 0;
+		if (store instanceof SpillingWordCountStore)
+		{
+			SpillingWordCountStore spilling = (SpillingWordCountStore) store;
+			Map<String, Progress> progress;
+			SpillingWordCountStore.Detached detached;
+			lock.writeLock().lock();
+			try
+			{
+				progress = changed;
+				changed = new ConcurrentHashMap<String, Progress>();
+				detached = spilling.detach();
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+			held = System.nanoTime() - started;
+			append(frame(progress, spilling.checkpoint(detached)));
+		}
+		output.getChannel().force(true);
+		log("ingestion checkpoint, "+units.size()+" units, "+(end >> 20)+" MB, workers held "
+				+TimeUnit.NANOSECONDS.toMillis(held)+" ms, "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+				+" ms: "+file.getAbsolutePath());
+	}
+
+    /**
+     * append one frame: the length of its body, the body and its CRC32
+     *
+     * @param body: body of the frame
+     */
+	private void append(byte[] body) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer length = ByteBuffer.allocate(8);
+		length.putLong(body.length);
+		length.flip();
+		ByteBuffer trailer = ByteBuffer.allocate(4);
+		trailer.putInt((int) crc.getValue());
+		trailer.flip();
+
+		ByteBuffer[] buffers = { length, ByteBuffer.wrap(body), trailer };
+		FileChannel channel = output.getChannel();
+		long remaining = body.length + 12L;
+		while (remaining > 0)
+			remaining -= channel.write(buffers);
+		end += body.length + 12L;
+	}
+
+    /**
+     * close the file the writer appended to
+     */
+	private void closeOutput()
+	{
+		if (output == null)
+			return;
+		try
+		{
+			output.close();
+		}
+		catch(IOException e)
+		{
+			log("cannot close ingestion checkpoint: "+file.getAbsolutePath()+" "+e);
+		}
+		output = null;
+	}
+
+    /**
+     * body of the first frame
+     */
+	private byte[] header() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeHeader(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+    /**
+     * version and the corpus the progress refers to: path, size and mtime
+     * of every file, the range size and the kind of store
+     */
+	private void writeHeader(DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(rangeSize);
+		out.writeBoolean(store instanceof SpillingWordCountStore);
+		out.writeInt(corpus.length);
+		for (File f : corpus)
+		{
+			out.writeUTF(f.getAbsolutePath());
+			out.writeLong(f.length());
+			out.writeLong(f.lastModified());
+		}
+	}
+
+    /**
+     * frame of a commit to a store kept in memory: the progress, then every
+     * word of the batch with its word_count, followed by -1
+     *
+     * @param progress: units the batch covers
+     * @param batch: words of the commit
+     */
+	private static byte[] frame(Map<String, Progress> progress, WordCountBatch batch)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try
+		{
+			writeProgress(new DataOutputStream(bytes), progress);
+		}
+		catch(IOException e)
+		{
+			// a byte array stream does not fail
+			throw new IllegalStateException(e);
+		}
+
+		// sized up front, the words of a full batch are put without a stream
+		int size = batch.size();
+		long length = bytes.size() + 4L;
+		for (int entry = 0; entry < size; entry++)
+		{
+			length += 12 + batch.getKeyLength(entry);
+			if (batch.getCount(entry) == Long.MAX_VALUE)
+				length += 4 + LONG_LIMIT.length;
+		}
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalStateException("batch too large for a checkpoint frame: "+length+" bytes");
+
+		ByteBuffer frame = ByteBuffer.allocate((int) length);
+		frame.put(bytes.toByteArray());
+		byte[] keys = batch.getKeys();
+		for (int entry = 0; entry < size; entry++)
+		{
+			frame.putInt(batch.getKeyLength(entry));
+			frame.put(keys, batch.getKeyOffset(entry), batch.getKeyLength(entry));
+			frame.putLong(batch.getCount(entry));
+			if (batch.getCount(entry) == Long.MAX_VALUE)
+			{
+				frame.putInt(LONG_LIMIT.length);
+				frame.put(LONG_LIMIT);
+			}
+		}
+		frame.putInt(-1);
+		return frame.array();
+	}
+
+    /**
+     * frame of a spilling store: the progress, then the names of the runs
+     *
+     * @param progress: units committed since the last frame
+     * @param runs: runs holding every word committed so far
+     */
+	private static byte[] frame(Map<String, Progress> progress, List<File> runs) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeProgress(out, progress);
+		out.writeInt(runs.size());
+		for (File run : runs)
+			out.writeUTF(run.getName());
+		return bytes.toByteArray();
+	}
+
+    /**
+     * number of units, then each unit with its progress
+     */
+	private static void writeProgress(DataOutputStream out, Map<String, Progress> progress) throws IOException
+	{
+		out.writeInt(progress.size());
+		for (Map.Entry<String, Progress> entry : progress.entrySet())
+		{
+			Progress reached = entry.getValue();
+			out.writeUTF(entry.getKey());
+			out.writeBoolean(reached.done);
+			out.writeLong(reached.position);
+			writeBytes(out, reached.head);
+			writeBytes(out, reached.tail);
+			out.writeBoolean(reached.whole);
+		}
+	}
+
+    /**
+     * check the CRC32 of every frame before anything is loaded
+     *
+     * @return offset right after the last intact frame, 0 when the header is not intact
+     */
+	private long verify() throws IOException
+	{
+		long length = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long valid = 0;
+			while (length - valid >= 12)
+			{
+				long size = in.readLong();
+				if (size < 0 || size > length - valid - 12)
+					break;
+				CRC32 crc = new CRC32();
+				long remaining = size;
+				while (remaining > 0)
+				{
+					int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (count < 0)
+						return valid;
+					crc.update(buffer, 0, count);
+					remaining -= count;
+				}
+				if (in.readInt() != (int) crc.getValue())
+					break;
+				valid += size + 12;
+			}
+			return valid;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+    /**
+     * load the intact frames of a verified checkpoint file
+     *
+     * @param valid: offset right after the last intact frame
+     * @param runs: list receiving the spilled runs named by the last frame
+     * @return false when it was taken over another corpus or range size
+     */
+	private boolean read(long valid, List<File> runs) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try
+		{
+			long position = in.readLong() + 12;
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != rangeSize
+					|| in.readBoolean() != (store instanceof SpillingWordCountStore) || in.readInt() != corpus.length)
+				return false;
+			for (File f : corpus)
+			{
+				if (!in.readUTF().equals(f.getAbsolutePath()) || in.readLong() != f.length()
+						|| in.readLong() != f.lastModified())
+					return false;
+			}
+			in.readInt();
+
+			while (position < valid)
+			{
+				position += in.readLong() + 12;
+				readFrame(in, runs);
+				in.readInt();
+			}
+
+			// the runs are gone when a merge had started
+			for (File run : runs)
+			{
+				if (!run.isFile())
+				{
+					runs.clear();
+					return false;
+				}
+			}
+			return true;
+		}
+		catch(EOFException e)
+		{
+			return false;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+    /**
+     * load the body of a frame: progress replacing that of earlier frames,
+     * then the names of the runs or the words to add to the store
+     *
+     * @param runs: list receiving the spilled runs, replacing those of earlier frames
+     */
+	private void readFrame(DataInputStream in, List<File> runs) throws IOException
+	{
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			String unit = in.readUTF();
+			boolean done = in.readBoolean();
+			long position = in.readLong();
+			byte[] head = readBytes(in);
+			byte[] tail = readBytes(in);
+			units.put(unit, new Progress(position, done, head, tail, in.readBoolean()));
+		}
+
+		if (store instanceof SpillingWordCountStore)
+		{
+			File directory = ((SpillingWordCountStore) store).getDirectory();
+			runs.clear();
+			count = in.readInt();
+			for (int i = 0; i < count; i++)
+				runs.add(new File(directory, in.readUTF()));
+			return;
+		}
+		readStore(in);
+	}
+
+    /**
+     * add the saved words to the store, in batches
+     */
+	private void readStore(DataInputStream in) throws IOException
+	{
+		try
+		{
+			readWords(in);
+		}
+		catch(EOFException e)
+		{
+			throw new IOException("truncated checkpoint: "+file.getAbsolutePath(), e);
+		}
+	}
+
+    /**
+     * add the saved words to the store, up to the -1 ending them
+     */
+	private void readWords(DataInputStream in) throws IOException
+	{
+		WordCountBatch batch = new WordCountBatch();
+		byte[] word = new byte[64];
+		while (true)
+		{
+			int length = in.readInt();
+			if (length < 0)
+				break;
+			if (length > word.length)
+				word = new byte[Math.max(length, word.length * 2)];
+			in.readFully(word, 0, length);
+			long count = in.readLong();
+			if (count == Long.MAX_VALUE)
+			{
+				// a batch counts in longs, so an overflowed word_count goes in pieces
+				BigInteger remaining = new BigInteger(readBytes(in));
+				BigInteger most = BigInteger.valueOf(Long.MAX_VALUE);
+				while (remaining.signum() > 0)
+				{
+					WordCountBatch piece = new WordCountBatch();
+					piece.add(word, 0, length, remaining.min(most).longValue());
+					store.addWords(piece);
+					remaining = remaining.subtract(most);
+				}
+				continue;
+			}
+			batch.add(word, 0, length, count);
+			if (batch.size() >= WordCountBatch.DEFAULT_LIMIT)
+			{
+				store.addWords(batch);
+				batch.clear();
+			}
+		}
+		if (batch.size() > 0)
+			store.addWords(batch);
+	}
+
+    /**
+     * length-prefixed bytes, -1 for null
+     */
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		if (bytes == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+    /**
+     * bytes written by writeBytes
+     */
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+    /**
+     * Log a message to the servlet context application log.
+     *
+     * @param message Message to be logged
+     */
+	private void log(String message)
+	{
+		if (context != null)
+			context.log("IngestCheckpoint: " + message);
+		else
+			System.out.println("IngestCheckpoint: " + message);
+	}
+}
+
@@ -0,0 +1,888 @@
+package wordcountservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.servlet.ServletContext;
+
+/**
+ * IngestScheduler:
+ *   fork/join scheduling of corpus ingestion over a pool sized to the
+ *   machine. a file of at least one range size is cut into ranges by
+ *   WordTokenizer.split and each range becomes a task, smaller files are
+ *   grouped into tasks of about one range size, so every task carries a
+ *   similar amount of bytes whatever the file sizes are. idle workers steal
+ *   pending tasks, and wall-clock time follows total bytes over cores
+ *   rather than the largest file. each worker counts into its own
+ *   WordCountBatch and merges it into the store per task.
+ *   gzip files are read through GzipCorpus: a large one is cut into ranges
+ *   of whole members when its members record their size, otherwise it is
+ *   inflated on a separate thread while the worker tokenizes.
+ *   archives are read in place through ArchiveCorpus and their entries
+ *   scheduled like files: zip entries grouped into tasks and inflated in
+ *   parallel, tar entries as ranges of the archive, grouped when small and
+ *   cut when large. a compressed tar can only be read in order, by one task.
+ *   with an IngestCheckpoint, each merge also commits how far the files
+ *   and ranges behind the batch were read, and a resumed ingestion skips
+ *   what the checkpoint covers and reads the rest from the recorded offsets.
+ *   cancel() stops an ingestion at the next task or merge.
+ */
+public class IngestScheduler
+{
+	// most small files handled by one task
+	private static final int MAX_FILES_PER_TASK = 1024;
+	// most bytes of a tar archive mapped at once for a group of small entries
+	private static final long MAX_SPANS_MAPPING = 1L << 30;
+
+	private final ServletContext context;
+	private final WordCountSink store;
+	private final int parallelism;
+	private final long rangeSize;
+	private final int batchLimit;
+	private final IndexingStatus status;
+	private final AtomicLong tokens = new AtomicLong();
+	private IngestCheckpoint checkpoint = null;
+	private volatile ForkJoinPool pool = null;
+	private volatile boolean cancelled = false;
+
+	//private word_count table of each worker
+	private final ThreadLocal<WordCountBatch> batches = new ThreadLocal<WordCountBatch>()
+	{
+		@Override
+		protected WordCountBatch initialValue()
+		{
+			return new WordCountBatch();
+		}
+	};
+
+	//progress covered by each worker's batch, committed with it
+	private final ThreadLocal<Map<String, IngestCheckpoint.Progress>> progress =
+			new ThreadLocal<Map<String, IngestCheckpoint.Progress>>()
+	{
+		@Override
+		protected Map<String, IngestCheckpoint.Progress> initialValue()
+		{
+			return new HashMap<String, IngestCheckpoint.Progress>();
+		}
+	};
+
+    /**
+     * constructor IngestScheduler
+     *
+     * @param context: ServeletContext, used for logging unreadable files
+     * @param store: sink receiving word_count
+     * @param parallelism: number of worker threads
+     * @param rangeSize: bytes per task, files at least this large are cut into ranges
+     * @param batchLimit: distinct words a worker counts before merging into the store
+     * @param status: progress receiving finished files and bytes, or null
+     */
+	public IngestScheduler(ServletContext context, WordCountSink store, int parallelism, long rangeSize, int batchLimit,
+			IndexingStatus status)
+	{
+		if (parallelism <= 0)
+			throw new IllegalArgumentException("Not a valid ingest thread count: "+parallelism);
+		if (rangeSize <= 0)
+			throw new IllegalArgumentException("Not a valid range size: "+rangeSize);
+		if (batchLimit <= 0)
+			throw new IllegalArgumentException("Not a valid batch size: "+batchLimit);
+
+		this.context = context;
+		this.store = store;
+		this.parallelism = parallelism;
+		this.rangeSize = rangeSize;
+		this.batchLimit = batchLimit;
+		this.status = status != null ? status : new IndexingStatus();
+	}
+
+    /**
+     * read all files into the store, returning once every task finished
+     *
+     * @param corpus: corpus files
+     * @return number of tokens read
+     */
+	public long ingest(File[] corpus)
+	{
+		return ingest(corpus, null);
+	}
+
+    /**
+     * read all files into the store, resuming where a checkpoint left off
+     *
+     * @param corpus: corpus files
+     * @param checkpoint: restored checkpoint merging into the store, or null
+     * @return number of tokens read
+     */
+	public long ingest(File[] corpus, IngestCheckpoint checkpoint)
+	{
+		this.checkpoint = checkpoint;
+		tokens.set(0);
+		ForkJoinPool current = new ForkJoinPool(parallelism);
+		pool = current;
+		try
+		{
+			// cancel() may have come before the pool was published
+			if (cancelled)
+				throw new CancellationException("ingestion cancelled");
+			current.invoke(new CorpusTask(corpus));
+		}
+		finally
+		{
+			current.shutdown();
+			pool = null;
+		}
+		if (cancelled)
+			throw new CancellationException("ingestion cancelled");
+		return tokens.get();
+	}
+
+    /**
+     * stop a running ingestion: queued tasks are dropped and running ones
+     * stop at their next merge, ingest() then throws CancellationException
+     */
+	public void cancel()
+	{
+		cancelled = true;
+		ForkJoinPool current = pool;
+		if (current != null)
+			current.shutdownNow();
+	}
+
+	/**
+	 * CorpusTask:
+	 *   root task, turning the file list into balanced subtasks
+	 */
+	@SuppressWarnings("serial")
+	private class CorpusTask extends RecursiveAction
+	{
+		private final File[] corpus;
+
+		private CorpusTask(File[] corpus)
+		{
+			this.corpus = corpus;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			List<File> small = new ArrayList<File>();
+			long smallBytes = 0;
+			for (File file : corpus)
+			{
+				long length = file.length();
+				if (ArchiveCorpus.isZip(file))
+				{
+					tasks.add(new ZipTask(file));
+					continue;
+				}
+				if (ArchiveCorpus.isTar(file))
+				{
+					tasks.add(new TarTask(file));
+					continue;
+				}
+				if (ArchiveCorpus.isCompressedTar(file) && length >= rangeSize)
+				{
+					tasks.add(new FilesTask(new File[] { file }));
+					continue;
+				}
+				if (length >= rangeSize)
+				{
+					tasks.add(GzipCorpus.isGzip(file) ? new GzipFileTask(file) : new FileTask(file));
+					continue;
+				}
+				small.add(file);
+				smallBytes += length;
+				if (smallBytes >= rangeSize || small.size() >= MAX_FILES_PER_TASK)
+				{
+					tasks.add(new FilesTask(small.toArray(new File[small.size()])));
+					small.clear();
+					smallBytes = 0;
+				}
+			}
+			if (!small.isEmpty())
+				tasks.add(new FilesTask(small.toArray(new File[small.size()])));
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * FileTask:
+	 *   large file, cut into ranges that are read in parallel
+	 */
+	@SuppressWarnings("serial")
+	private class FileTask extends RecursiveAction
+	{
+		private final File file;
+
+		private FileTask(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		protected void compute()
+		{
+			long[] cuts;
+			try
+			{
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try
+				{
+					cuts = WordTokenizer.split(in.getChannel(), rangeSize);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+				status.addFile();
+				return;
+			}
+
+			List<RangeTask> ranges = new ArrayList<RangeTask>();
+			for (int i = 0; i + 1 < cuts.length; i++)
+				ranges.add(new RangeTask(file, cuts[i], cuts[i + 1]));
+			invokeAll(ranges);
+			status.addFile();
+		}
+	}
+
+	/**
+	 * RangeTask:
+	 *   one range of a large file
+	 */
+	@SuppressWarnings("serial")
+	private class RangeTask extends RecursiveAction
+	{
+		private final File file;
+		private final long start;
+		private final long end;
+
+		private RangeTask(File file, long start, long end)
+		{
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			WordCountBatch batch = batches.get();
+			read(file, start, end, IngestCheckpoint.unit(file, start), batch);
+			merge(batch);
+		}
+	}
+
+	/**
+	 * GzipFileTask:
+	 *   large gzip file, cut into ranges of members read in parallel, or
+	 *   inflated as one stream when its members cannot be located
+	 */
+	@SuppressWarnings("serial")
+	private class GzipFileTask extends RecursiveAction
+	{
+		private final File file;
+
+		private GzipFileTask(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		protected void compute()
+		{
+			String unit = IngestCheckpoint.unit(file);
+			if (wasRead(unit))
+			{
+				status.addBytes(file.length());
+				status.addFile();
+				return;
+			}
+
+			long[] cuts;
+			try
+			{
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try
+				{
+					cuts = GzipCorpus.split(in.getChannel(), rangeSize);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+				status.addFile();
+				return;
+			}
+
+			if (cuts == null)
+			{
+				WordCountBatch batch = batches.get();
+				read(file, 0, -1, unit, batch);
+				merge(batch);
+				status.addFile();
+				return;
+			}
+
+			List<GzipRangeTask> ranges = new ArrayList<GzipRangeTask>();
+			for (int i = 0; i + 1 < cuts.length; i++)
+				ranges.add(new GzipRangeTask(file, cuts[i], cuts[i + 1]));
+			invokeAll(ranges);
+
+			// words across range edges, once every range is known
+			List<GzipCorpus.Edges> edges = new ArrayList<GzipCorpus.Edges>();
+			for (GzipRangeTask range : ranges)
+			{
+				if (range.edges == null)
+				{
+					status.addFile();
+					return;
+				}
+				edges.add(range.edges);
+			}
+			WordCountBatch batch = batches.get();
+			GzipCorpus.stitch(edges, sink(batch, unit, null, null));
+			reached(unit, IngestCheckpoint.Progress.DONE);
+			merge(batch);
+			status.addFile();
+		}
+	}
+
+	/**
+	 * GzipRangeTask:
+	 *   one range of whole members of a large gzip file
+	 */
+	@SuppressWarnings("serial")
+	private class GzipRangeTask extends RecursiveAction
+	{
+		private final File file;
+		private final long start;
+		private final long end;
+		private GzipCorpus.Edges edges = null;
+
+		private GzipRangeTask(File file, long start, long end)
+		{
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			String unit = IngestCheckpoint.unit(file, start);
+			IngestCheckpoint.Progress resumed = resumed(unit);
+			if (resumed != null && resumed.isDone())
+			{
+				edges = resumed.getEdges();
+				status.addBytes(end - start);
+				return;
+			}
+
+			WordCountBatch batch = batches.get();
+			try
+			{
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try
+				{
+					WordTokenizer tokenizer = new WordTokenizer();
+					GzipCorpus.Edges found = resumed != null ? resumed.getEdges() : new GzipCorpus.Edges();
+					GzipCorpus.tokenize(in.getChannel(), start, end, tokenizer, found,
+							resumed != null ? resumed.getPosition() : 0, sink(batch, unit, tokenizer, found));
+					edges = found;
+					reached(unit, new IngestCheckpoint.Progress(found));
+					status.addBytes(end - start);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+			}
+			merge(batch);
+		}
+	}
+
+	/**
+	 * ZipTask:
+	 *   zip archive, its entries grouped into tasks read in parallel
+	 */
+	@SuppressWarnings("serial")
+	private class ZipTask extends RecursiveAction
+	{
+		private final File file;
+
+		private ZipTask(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		protected void compute()
+		{
+			ZipFile zip;
+			try
+			{
+				zip = new ZipFile(file);
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+				status.addFile();
+				return;
+			}
+
+			try
+			{
+				List<ZipEntriesTask> groups = new ArrayList<ZipEntriesTask>();
+				List<ZipEntry> group = new ArrayList<ZipEntry>();
+				long groupBytes = 0;
+				long compressed = 0;
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements())
+				{
+					ZipEntry entry = entries.nextElement();
+					if (entry.isDirectory())
+						continue;
+					group.add(entry);
+					groupBytes += Math.max(0, entry.getSize());
+					compressed += Math.max(0, entry.getCompressedSize());
+					if (groupBytes >= rangeSize || group.size() >= MAX_FILES_PER_TASK)
+					{
+						groups.add(new ZipEntriesTask(zip, file, group.toArray(new ZipEntry[group.size()])));
+						group.clear();
+						groupBytes = 0;
+					}
+				}
+				if (!group.isEmpty())
+					groups.add(new ZipEntriesTask(zip, file, group.toArray(new ZipEntry[group.size()])));
+				invokeAll(groups);
+				// headers and central directory
+				status.addBytes(Math.max(0, file.length() - compressed));
+			}
+			finally
+			{
+				try
+				{
+					zip.close();
+				}
+				catch(IOException e)
+				{
+					log("cannot close file:"+file.getAbsolutePath()+" "+e);
+				}
+			}
+			status.addFile();
+		}
+	}
+
+	/**
+	 * ZipEntriesTask:
+	 *   group of entries of one zip archive read one after the other
+	 */
+	@SuppressWarnings("serial")
+	private class ZipEntriesTask extends RecursiveAction
+	{
+		private final ZipFile zip;
+		private final File file;
+		private final ZipEntry[] entries;
+
+		private ZipEntriesTask(ZipFile zip, File file, ZipEntry[] entries)
+		{
+			this.zip = zip;
+			this.file = file;
+			this.entries = entries;
+		}
+
+		@Override
+		protected void compute()
+		{
+			WordCountBatch batch = batches.get();
+			for (ZipEntry entry : entries)
+			{
+				String unit = IngestCheckpoint.unit(file, entry.getName());
+				IngestCheckpoint.Progress resumed = resumed(unit);
+				try
+				{
+					if (resumed == null || !resumed.isDone())
+					{
+						WordTokenizer tokenizer = new WordTokenizer();
+						ArchiveCorpus.tokenize(zip, entry, tokenizer, resumed != null ? resumed.getPosition() : 0,
+								sink(batch, unit, tokenizer, null));
+						reached(unit, IngestCheckpoint.Progress.DONE);
+					}
+				}
+				catch(IOException e)
+				{
+					log("unreadable entry:"+file.getAbsolutePath()+"!"+entry.getName()+" "+e);
+				}
+				status.addBytes(Math.max(0, entry.getCompressedSize()));
+			}
+			merge(batch);
+		}
+	}
+
+	/**
+	 * TarTask:
+	 *   uncompressed tar archive, its entries read in parallel as ranges of
+	 *   the archive: small ones grouped, large ones cut
+	 */
+	@SuppressWarnings("serial")
+	private class TarTask extends RecursiveAction
+	{
+		private final File file;
+
+		private TarTask(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			long data = 0;
+			try
+			{
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try
+				{
+					long[] spans = ArchiveCorpus.entries(in.getChannel());
+					long groupSize = Math.min(rangeSize, MAX_SPANS_MAPPING);
+					List<Long> small = new ArrayList<Long>();
+					for (int i = 0; i < spans.length; i += 2)
+					{
+						long length = spans[i + 1] - spans[i];
+						data += length;
+						if (length >= groupSize)
+						{
+							long[] cuts = WordTokenizer.split(in.getChannel(), spans[i], spans[i + 1], rangeSize);
+							for (int j = 0; j + 1 < cuts.length; j++)
+								tasks.add(new RangeTask(file, cuts[j], cuts[j + 1]));
+							continue;
+						}
+						// a group is mapped as a whole, headers between its entries included
+						if (!small.isEmpty() && spans[i + 1] - small.get(0) > groupSize)
+						{
+							tasks.add(new SpansTask(file, small));
+							small.clear();
+						}
+						small.add(spans[i]);
+						small.add(spans[i + 1]);
+						if (small.size() >= 2 * MAX_FILES_PER_TASK)
+						{
+							tasks.add(new SpansTask(file, small));
+							small.clear();
+						}
+					}
+					if (!small.isEmpty())
+						tasks.add(new SpansTask(file, small));
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+				status.addFile();
+				return;
+			}
+
+			invokeAll(tasks);
+			// headers and padding
+			status.addBytes(Math.max(0, file.length() - data));
+			status.addFile();
+		}
+	}
+
+	/**
+	 * SpansTask:
+	 *   group of small tar entries, ranges of one archive read one after the
+	 *   other through a single mapping
+	 */
+	@SuppressWarnings("serial")
+	private class SpansTask extends RecursiveAction
+	{
+		private final File file;
+		private final long[] spans;
+
+		private SpansTask(File file, List<Long> spans)
+		{
+			this.file = file;
+			this.spans = new long[spans.size()];
+			for (int i = 0; i < this.spans.length; i++)
+				this.spans[i] = spans.get(i);
+		}
+
+		@Override
+		protected void compute()
+		{
+			WordCountBatch batch = batches.get();
+			try
+			{
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try
+				{
+					long base = spans[0];
+					MappedByteBuffer mapping = in.getChannel().map(FileChannel.MapMode.READ_ONLY, base,
+							spans[spans.length - 1] - base);
+					for (int i = 0; i < spans.length; i += 2)
+					{
+						String unit = IngestCheckpoint.unit(file, spans[i]);
+						IngestCheckpoint.Progress resumed = resumed(unit);
+						if (resumed == null || !resumed.isDone())
+						{
+							long start = resumed != null ? resumed.getPosition() : spans[i];
+							ByteBuffer entry = mapping.duplicate();
+							entry.limit((int) (spans[i + 1] - base));
+							entry.position((int) (start - base));
+							WordTokenizer tokenizer = new WordTokenizer();
+							tokenizer.tokenize(entry, base, sink(batch, unit, tokenizer, null));
+							reached(unit, IngestCheckpoint.Progress.DONE);
+						}
+						status.addBytes(spans[i + 1] - spans[i]);
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch(IOException e)
+			{
+				log("unreadable file:"+file.getAbsolutePath()+" "+e);
+			}
+			merge(batch);
+		}
+	}
+
+	/**
+	 * FilesTask:
+	 *   group of small files read one after the other
+	 */
+	@SuppressWarnings("serial")
+	private class FilesTask extends RecursiveAction
+	{
+		private final File[] files;
+
+		private FilesTask(File[] files)
+		{
+			this.files = files;
+		}
+
+		@Override
+		protected void compute()
+		{
+			WordCountBatch batch = batches.get();
+			for (File file : files)
+			{
+				read(file, 0, -1, IngestCheckpoint.unit(file), batch);
+				status.addFile();
+			}
+			merge(batch);
+		}
+	}
+
+    /**
+     * tokenize a range of a file into a worker's batch
+     *
+     * @param file: file to read
+     * @param start: first byte of the range
+     * @param end: end of the range, exclusive, or -1 for the whole file
+     * @param unit: checkpoint unit of the range
+     * @param batch: the worker's batch
+     */
+	private void read(File file, long start, long end, String unit, WordCountBatch batch)
+	{
+		if (cancelled)
+			throw new CancellationException("ingestion cancelled");
+		IngestCheckpoint.Progress resumed = resumed(unit);
+		try
+		{
+			if (ArchiveCorpus.isCompressedTar(file))
+			{
+				if (resumed == null || !resumed.isDone())
+				{
+					// read in order, so a large one is inflated on its own thread
+					WordTokenizer tokenizer = new WordTokenizer();
+					ArchiveCorpus.tokenizeTar(file, tokenizer, resumed != null ? resumed.getPosition() : 0,
+							sink(batch, unit, tokenizer, null), file.length() >= rangeSize);
+					reached(unit, IngestCheckpoint.Progress.DONE);
+				}
+				status.addBytes(file.length());
+				return;
+			}
+
+			if (GzipCorpus.isGzip(file))
+			{
+				if (resumed == null || !resumed.isDone())
+				{
+					// a large single-stream file is inflated on its own thread
+					WordTokenizer tokenizer = new WordTokenizer();
+					GzipCorpus.tokenize(file, tokenizer, resumed != null ? resumed.getPosition() : 0,
+							sink(batch, unit, tokenizer, null), file.length() >= rangeSize);
+					reached(unit, IngestCheckpoint.Progress.DONE);
+				}
+				status.addBytes(file.length());
+				return;
+			}
+
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try
+			{
+				if (end < 0)
+					end = in.length();
+				if (resumed == null || !resumed.isDone())
+				{
+					WordTokenizer tokenizer = new WordTokenizer();
+					tokenizer.tokenize(in.getChannel(), resumed != null ? resumed.getPosition() : start, end,
+							sink(batch, unit, tokenizer, null));
+					reached(unit, IngestCheckpoint.Progress.DONE);
+				}
+				status.addBytes(end - start);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException e)
+		{
+			log("unreadable file:"+file.getAbsolutePath()+" "+e);
+		}
+	}
+
+    /**
+     * sink counting words into a worker's batch, merging it when full
+     *
+     * @param batch: the worker's batch
+     * @param unit: checkpoint unit being read
+     * @param tokenizer: tokenizer handing out the words, telling how far the unit was read, or null
+     * @param edges: edges of a gzip range being read, or null
+     */
+	private WordTokenizer.Sink sink(final WordCountBatch batch, final String unit, final WordTokenizer tokenizer,
+			final GzipCorpus.Edges edges)
+	{
+		return new WordTokenizer.Sink()
+		{
+			@Override
+			public void word(byte[] bytes, int offset, int length)
+			{
+				batch.add(bytes, offset, length);
+				if (batch.size() < batchLimit)
+					return;
+				if (checkpoint != null)
+				{
+					// words without offsets, such as stitched edges, are merged at the unit's end
+					if (tokenizer == null)
+						return;
+					reached(unit, new IngestCheckpoint.Progress(tokenizer.getPosition(),
+							edges != null ? edges.getHead() : null));
+				}
+				merge(batch);
+			}
+		};
+	}
+
+    /**
+     * progress of a unit restored from the checkpoint
+     *
+     * @param unit: checkpoint unit
+     * @return progress, or null when the unit was not started or there is no checkpoint
+     */
+	private IngestCheckpoint.Progress resumed(String unit)
+	{
+		return checkpoint != null ? checkpoint.get(unit) : null;
+	}
+
+    /**
+     * whether the checkpoint covers a unit completely
+     *
+     * @param unit: checkpoint unit
+     */
+	private boolean wasRead(String unit)
+	{
+		IngestCheckpoint.Progress resumed = resumed(unit);
+		return resumed != null && resumed.isDone();
+	}
+
+    /**
+     * note how far a unit was read, committed with the worker's next merge
+     *
+     * @param unit: checkpoint unit
+     * @param reached: progress of the unit
+     */
+	private void reached(String unit, IngestCheckpoint.Progress reached)
+	{
+		if (checkpoint != null)
+			progress.get().put(unit, reached);
+	}
+
+    /**
+     * merge a worker's batch into the store and empty it, committing the
+     * progress it covers when there is a checkpoint
+     *
+     * @param batch: the worker's batch
+     */
+	private void merge(WordCountBatch batch)
+	{
+		if (cancelled)
+			throw new CancellationException("ingestion cancelled");
+		if (checkpoint != null)
+		{
+			Map<String, IngestCheckpoint.Progress> covered = progress.get();
+			if (batch.size() == 0 && covered.isEmpty())
+				return;
+			checkpoint.commit(batch, covered);
+			covered.clear();
+		}
+		else
+		{
+			if (batch.size() == 0)
+				return;
+			store.addWords(batch);
+		}
+		tokens.addAndGet(batch.getTokens());
+		batch.clear();
+	}
+
+    /**
+     * Log a message to the servlet context application log.
+     *
+     * @param message Message to be logged
+     */
+	private void log(String message)
+	{
+		if (context != null)
+			context.log("IngestScheduler: " + message);
+		else
+			System.out.println("IngestScheduler: " + message);
+	}
+}
@@ -0,0 +1,48 @@
+package wordcountservice;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Md5WordHasher:
+ *   compatibility hasher taking the first four bytes of the MD5 digest of
+ *   a word, as the original stripe selection did. MessageDigest is not
+ *   thread-safe, so every thread digests with its own copy. it allocates a
+ *   digest per call, prefer murmur3 or xxhash.
+ */
+public class Md5WordHasher extends WordHasher
+{
+	private final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance("MD5");
+			}
+			catch(NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException("unknow algorithm for modulo", e);
+			}
+		}
+	};
+
+    /**
+     * constructor Md5WordHasher, fails early when MD5 is unavailable
+     */
+	public Md5WordHasher()
+	{
+		messageDigest.get();
+	}
+
+	@Override
+	public int hash(byte[] bytes, int offset, int length)
+	{
+		MessageDigest md = messageDigest.get();
+		md.update(bytes, offset, length);
+		byte[] digest = md.digest();
+		return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+				| ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+	}
+}
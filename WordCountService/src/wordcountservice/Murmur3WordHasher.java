@@ -0,0 +1,74 @@
+package wordcountservice;
+
+/**
+ * Murmur3WordHasher:
+ *   32-bit MurmurHash3 (x86 variant) over the UTF-8 bytes of a word
+ */
+public class Murmur3WordHasher extends WordHasher
+{
+	private static final int C1 = 0xcc9e2d51;
+	private static final int C2 = 0x1b873593;
+
+	private final int seed;
+
+    /**
+     * constructor Murmur3WordHasher, zero seed
+     */
+	public Murmur3WordHasher()
+	{
+		this(0);
+	}
+
+    /**
+     * constructor Murmur3WordHasher
+     *
+     * @param seed: hash seed
+     */
+	public Murmur3WordHasher(int seed)
+	{
+		this.seed = seed;
+	}
+
+	// the tail switch falls through on purpose, like the reference implementation
+	@Override
+	@SuppressWarnings("fallthrough")
+	public int hash(byte[] bytes, int offset, int length)
+	{
+		int h = seed;
+		int end = offset + (length & ~3);
+		for (int i = offset; i < end; i += 4)
+		{
+			int k = (bytes[i] & 0xff) | ((bytes[i + 1] & 0xff) << 8)
+					| ((bytes[i + 2] & 0xff) << 16) | (bytes[i + 3] << 24);
+			k *= C1;
+			k = Integer.rotateLeft(k, 15);
+			k *= C2;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+
+		int k = 0;
+		switch (length & 3)
+		{
+			case 3:
+				k ^= (bytes[end + 2] & 0xff) << 16;
+			case 2:
+				k ^= (bytes[end + 1] & 0xff) << 8;
+			case 1:
+				k ^= bytes[end] & 0xff;
+				k *= C1;
+				k = Integer.rotateLeft(k, 15);
+				k *= C2;
+				h ^= k;
+		}
+
+		h ^= length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,509 @@
+package wordcountservice;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * OffHeapWordCountStore:
+ *   <word, WordCount> store kept in direct memory so that large vocabularies
+ *   do not cost a String, a map node and a counter object per word on the
+ *   heap. each segment is an open-addressing table of fixed size slots that
+ *   point into an append-only entry area holding the counters and the UTF-8
+ *   key bytes inline. segments are guarded by their own monitors, like the
+ *   stripes of StripedWordCountStore.
+ */
+public class OffHeapWordCountStore implements WordCountStore
+{
+	// default initial slot count of each segment
+	public static final int DEFAULT_SEGMENT_CAPACITY = 1024;
+
+	// entry layout: [long query_count][long word_count][int hash][int key length][key bytes, padded to 8]
+	private static final int QUERY_COUNT = 0;
+	private static final int WORD_COUNT = 8;
+	private static final int HASH = 16;
+	private static final int KEY_LENGTH = 20;
+	private static final int KEY = 24;
+
+	// slot layout: [int hash][int entry offset + 1], zero offset marks a free slot
+	private static final int SLOT_SIZE = 8;
+
+	private final Segment[] segments;
+	private final int mask;
+	private final WordHasher hasher;
+
+	/**
+	 * Segment:
+	 *   one open-addressing table with linear probing, only touched while
+	 *   holding the segment monitor
+	 */
+	private static class Segment
+	{
+		private ByteBuffer slots;
+		private int capacity;
+		private int shift;
+		private int size = 0;
+
+		private ByteBuffer entries;
+		private int used = 0;
+
+		// counters that outgrew a long, looked up before the table
+		private HashMap<String, WordCount> overflow = null;
+
+        /**
+         * constructor Segment
+         *
+         * @param capacity: initial slot count, a power of two
+         */
+		private Segment(int capacity)
+		{
+			this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+			this.capacity = capacity;
+			this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+			this.entries = ByteBuffer.allocateDirect(capacity * (KEY + 8));
+		}
+
+        /**
+         * find the slot holding a key, or the free slot where it belongs
+         *
+         * @param hash: hash value of the key
+         * @param key: buffer holding UTF-8 key bytes
+         * @param offset: first byte of the key
+         * @param length: key length in bytes
+         */
+		private int probe(int hash, byte[] key, int offset, int length)
+		{
+			int slot = (hash * 0x9E3779B9) >>> shift;
+			while (true)
+			{
+				int entry = slots.getInt(slot * SLOT_SIZE + 4) - 1;
+				if (entry < 0)
+					return slot;
+				if (slots.getInt(slot * SLOT_SIZE) == hash && keyEquals(entry, key, offset, length))
+					return slot;
+				slot = (slot + 1) & (capacity - 1);
+			}
+		}
+
+        /**
+         * entry offset stored in a slot, -1 when the slot is free
+         *
+         * @param slot: slot index
+         */
+		private int entryAt(int slot)
+		{
+			return slots.getInt(slot * SLOT_SIZE + 4) - 1;
+		}
+
+        /**
+         * compare stored key bytes of an entry against a key
+         *
+         * @param entry: entry offset
+         * @param key: buffer holding UTF-8 key bytes
+         * @param offset: first byte of the key
+         * @param length: key length in bytes
+         */
+		private boolean keyEquals(int entry, byte[] key, int offset, int length)
+		{
+			if (entries.getInt(entry + KEY_LENGTH) != length)
+				return false;
+			for (int i = 0; i < length; i++)
+			{
+				if (entries.get(entry + KEY + i) != key[offset + i])
+					return false;
+			}
+			return true;
+		}
+
+        /**
+         * append a new entry and link it from a free slot
+         *
+         * @param slot: free slot returned by probe
+         * @param hash: hash value of the key
+         * @param key: buffer holding UTF-8 key bytes
+         * @param offset: first byte of the key
+         * @param keyLength: key length in bytes
+         * @param queryCount: initial query_count
+         * @param wordCount: initial word_count
+         */
+		private void insert(int slot, int hash, byte[] key, int offset, int keyLength, long queryCount, long wordCount)
+		{
+			long length = KEY + ((keyLength + 7L) & ~7L);
+			if (used + length > Integer.MAX_VALUE)
+				throw new IllegalStateException("off-heap segment full");
+			if (used + length > entries.capacity())
+				growEntries((int) (used + length));
+
+			int entry = used;
+			entries.putLong(entry + QUERY_COUNT, queryCount);
+			entries.putLong(entry + WORD_COUNT, wordCount);
+			entries.putInt(entry + HASH, hash);
+			entries.putInt(entry + KEY_LENGTH, keyLength);
+			for (int i = 0; i < keyLength; i++)
+				entries.put(entry + KEY + i, key[offset + i]);
+			used += (int) length;
+
+			slots.putInt(slot * SLOT_SIZE, hash);
+			slots.putInt(slot * SLOT_SIZE + 4, entry + 1);
+			if (++size * 2 > capacity)
+				rehash();
+		}
+
+        /**
+         * move entries into a larger direct buffer
+         *
+         * @param needed: minimum capacity in bytes
+         */
+		private void growEntries(int needed)
+		{
+			long grown = Math.max((long) entries.capacity() * 2, needed);
+			ByteBuffer larger = ByteBuffer.allocateDirect((int) Math.min(grown, Integer.MAX_VALUE));
+			ByteBuffer old = entries.duplicate();
+			old.position(0);
+			old.limit(used);
+			larger.put(old);
+			entries = larger;
+		}
+
+        /**
+         * double the slot table, entries stay where they are
+         */
+		private void rehash()
+		{
+			ByteBuffer old = slots;
+			int oldCapacity = capacity;
+
+			capacity = oldCapacity * 2;
+			shift--;
+			slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+			for (int i = 0; i < oldCapacity; i++)
+			{
+				int entry = old.getInt(i * SLOT_SIZE + 4);
+				if (entry == 0)
+					continue;
+				int hash = old.getInt(i * SLOT_SIZE);
+				int slot = (hash * 0x9E3779B9) >>> shift;
+				while (slots.getInt(slot * SLOT_SIZE + 4) != 0)
+					slot = (slot + 1) & (capacity - 1);
+				slots.putInt(slot * SLOT_SIZE, hash);
+				slots.putInt(slot * SLOT_SIZE + 4, entry);
+			}
+		}
+	}
+
+    /**
+     * constructor OffHeapWordCountStore
+     *
+     * @param segments: requested segment count, rounded up to a power of two
+     * @param segmentCapacity: initial slot count of each segment, rounded up to a power of two
+     * @param hasher: hash function picking a word's segment and slot
+     */
+	public OffHeapWordCountStore(int segments, int segmentCapacity, WordHasher hasher)
+	{
+		if (segments <= 0)
+			throw new IllegalArgumentException("Not a valid segment count: "+segments);
+		if (segmentCapacity <= 0)
+			throw new IllegalArgumentException("Not a valid segment capacity: "+segmentCapacity);
+
+		int size = 1;
+		while (size < segments && size < (1 << 30))
+			size <<= 1;
+		int capacity = 2;
+		while (capacity < segmentCapacity && capacity < (1 << 26))
+			capacity <<= 1;
+
+		this.segments = new Segment[size];
+		for (int i = 0; i < size; i++)
+			this.segments[i] = new Segment(capacity);
+		this.mask = size - 1;
+		this.hasher = hasher;
+	}
+
+	@Override
+	public WordCount query(String key)
+	{
+		return increment(key, QUERY_COUNT, true, null);
+	}
+
+	@Override
+	public WordCount query(String key, WordCount into)
+	{
+		return increment(key, QUERY_COUNT, true, into);
+	}
+
+	@Override
+	public WordCount get(String key)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Segment segment = segments[hash & mask];
+
+		synchronized (segment)
+		{
+			if (segment.overflow != null)
+			{
+				WordCount value = segment.overflow.get(key);
+				if (value != null)
+					return new WordCount(value);
+			}
+
+			int entry = segment.entryAt(segment.probe(hash, bytes, 0, length));
+			if (entry < 0)
+				return null;
+			return new WordCount(segment.entries.getLong(entry + QUERY_COUNT),
+					segment.entries.getLong(entry + WORD_COUNT));
+		}
+	}
+
+	@Override
+	public void addWord(String key)
+	{
+		increment(key, WORD_COUNT, false, null);
+	}
+
+	@Override
+	public void addWords(WordCountBatch batch)
+	{
+		// order the entries by segment so each segment is locked once per batch
+		int size = batch.size();
+		byte[] keys = batch.getKeys();
+		int[] hashes = new int[size];
+		int[] starts = new int[segments.length + 1];
+		for (int entry = 0; entry < size; entry++)
+		{
+			hashes[entry] = hasher.hash(keys, batch.getKeyOffset(entry), batch.getKeyLength(entry));
+			starts[(hashes[entry] & mask) + 1]++;
+		}
+		for (int i = 0; i < segments.length; i++)
+			starts[i + 1] += starts[i];
+		int[] order = new int[size];
+		int[] next = starts.clone();
+		for (int entry = 0; entry < size; entry++)
+			order[next[hashes[entry] & mask]++] = entry;
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			if (starts[i] == starts[i + 1])
+				continue;
+			Segment segment = segments[i];
+			synchronized (segment)
+			{
+				for (int k = starts[i]; k < starts[i + 1]; k++)
+				{
+					int entry = order[k];
+					add(segment, hashes[entry], keys, batch.getKeyOffset(entry),
+							batch.getKeyLength(entry), batch.getCount(entry));
+				}
+			}
+		}
+	}
+
+	@Override
+	public void restoreQueryCount(String key, long queryCount, BigInteger queryCountOverflow)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Segment segment = segments[hash & mask];
+
+		synchronized (segment)
+		{
+			WordCount value = segment.overflow != null ? segment.overflow.get(key) : null;
+			if (value != null)
+			{
+				BigInteger current = value.getQueryCountOverflow();
+				boolean lower = queryCountOverflow != null
+						? current == null || current.compareTo(queryCountOverflow) < 0
+						: current == null && value.getQueryCountLong() < queryCount;
+				if (lower)
+					segment.overflow.put(key, new WordCount(queryCount, queryCountOverflow,
+							value.getWordCountLong(), value.getWordCountOverflow()));
+				return;
+			}
+
+			int slot = segment.probe(hash, bytes, 0, length);
+			int entry = segment.entryAt(slot);
+			if (queryCountOverflow != null)
+			{
+				// a count past a long only fits the heap overflow map
+				long wordCount = entry < 0 ? 0 : segment.entries.getLong(entry + WORD_COUNT);
+				if (segment.overflow == null)
+					segment.overflow = new HashMap<String, WordCount>();
+				segment.overflow.put(key, new WordCount(0, queryCountOverflow, wordCount, null));
+			}
+			else if (entry < 0)
+			{
+				segment.insert(slot, hash, bytes, 0, length, queryCount, 0);
+			}
+			else if (segment.entries.getLong(entry + QUERY_COUNT) < queryCount)
+			{
+				segment.entries.putLong(entry + QUERY_COUNT, queryCount);
+			}
+		}
+	}
+
+	@Override
+	public void visit(Visitor visitor)
+	{
+		byte[] bytes = new byte[256];
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				int entry = 0;
+				while (entry < segment.used)
+				{
+					int length = segment.entries.getInt(entry + KEY_LENGTH);
+					if (length > bytes.length)
+						bytes = new byte[Math.max(length, bytes.length * 2)];
+					for (int i = 0; i < length; i++)
+						bytes[i] = segment.entries.get(entry + KEY + i);
+
+					// words moved to the overflow map are visited from there
+					if (segment.overflow == null || !segment.overflow.containsKey(new String(bytes, 0, length, Utf8.UTF8)))
+						visitor.visit(bytes, 0, length, new WordCount(segment.entries.getLong(entry + QUERY_COUNT),
+								segment.entries.getLong(entry + WORD_COUNT)));
+					entry += KEY + ((length + 7) & ~7);
+				}
+
+				if (segment.overflow != null)
+				{
+					for (Map.Entry<String, WordCount> overflow : segment.overflow.entrySet())
+					{
+						byte[] key = overflow.getKey().getBytes(Utf8.UTF8);
+						visitor.visit(key, 0, key.length, new WordCount(overflow.getValue()));
+					}
+				}
+			}
+		}
+	}
+
+    /**
+     * add occurrences to the word_count of a word, called under the segment monitor
+     *
+     * @param segment: segment owning the word
+     * @param hash: hash value of the word
+     * @param bytes: buffer holding UTF-8 word bytes
+     * @param offset: first byte of the word
+     * @param length: word length in bytes
+     * @param count: number of occurrences
+     */
+	private static void add(Segment segment, int hash, byte[] bytes, int offset, int length, long count)
+	{
+		String key = null;
+		if (segment.overflow != null)
+		{
+			key = new String(bytes, offset, length, Utf8.UTF8);
+			WordCount value = segment.overflow.get(key);
+			if (value != null)
+			{
+				value.addWordCount(count);
+				return;
+			}
+		}
+
+		int slot = segment.probe(hash, bytes, offset, length);
+		int entry = segment.entryAt(slot);
+		if (entry < 0)
+		{
+			segment.insert(slot, hash, bytes, offset, length, 0, count);
+			return;
+		}
+
+		long current = segment.entries.getLong(entry + WORD_COUNT);
+		if (current > Long.MAX_VALUE - count)
+		{
+			// the long would wrap, keep this word on the heap from now on
+			WordCount value = new WordCount(segment.entries.getLong(entry + QUERY_COUNT), current);
+			value.addWordCount(count);
+			if (segment.overflow == null)
+				segment.overflow = new HashMap<String, WordCount>();
+			segment.overflow.put(key != null ? key : new String(bytes, offset, length, Utf8.UTF8), value);
+			return;
+		}
+		segment.entries.putLong(entry + WORD_COUNT, current + count);
+	}
+
+    /**
+     * add one to a counter of a word, creating its entry on first use
+     *
+     * @param key: word to update
+     * @param field: QUERY_COUNT or WORD_COUNT
+     * @param snapshot: whether the caller needs the counters afterwards
+     * @param into: record receiving the counters, or null for a new one
+     */
+	private WordCount increment(String key, int field, boolean snapshot, WordCount into)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Segment segment = segments[hash & mask];
+
+		synchronized (segment)
+		{
+			if (segment.overflow != null)
+			{
+				WordCount value = segment.overflow.get(key);
+				if (value != null)
+				{
+					if (field == QUERY_COUNT)
+						return fill(value.incrementQueryCount(), into);
+					value.incrementWordCount();
+					return null;
+				}
+			}
+
+			int slot = segment.probe(hash, bytes, 0, length);
+			int entry = segment.entryAt(slot);
+			if (entry < 0)
+			{
+				long queryCount = field == QUERY_COUNT ? 1 : 0;
+				long wordCount = field == WORD_COUNT ? 1 : 0;
+				segment.insert(slot, hash, bytes, 0, length, queryCount, wordCount);
+				if (!snapshot)
+					return null;
+				return into != null ? into.set(queryCount, null, wordCount, null) : new WordCount(queryCount, wordCount);
+			}
+
+			long count = segment.entries.getLong(entry + field);
+			if (count == Long.MAX_VALUE)
+			{
+				// the long would wrap, keep this word on the heap from now on
+				WordCount value = new WordCount(segment.entries.getLong(entry + QUERY_COUNT),
+						segment.entries.getLong(entry + WORD_COUNT));
+				if (segment.overflow == null)
+					segment.overflow = new HashMap<String, WordCount>();
+				segment.overflow.put(key, value);
+				if (field == QUERY_COUNT)
+					return fill(value.incrementQueryCount(), into);
+				value.incrementWordCount();
+				return null;
+			}
+
+			segment.entries.putLong(entry + field, count + 1);
+			if (!snapshot)
+				return null;
+			if (into != null)
+				return into.set(segment.entries.getLong(entry + QUERY_COUNT), null,
+						segment.entries.getLong(entry + WORD_COUNT), null);
+			return new WordCount(segment.entries.getLong(entry + QUERY_COUNT),
+					segment.entries.getLong(entry + WORD_COUNT));
+		}
+	}
+
+    /**
+     * copy a snapshot of a heap counter into the caller's record
+     *
+     * @param snapshot: snapshot just produced
+     * @param into: record to fill, or null to keep the snapshot
+     */
+	private static WordCount fill(WordCount snapshot, WordCount into)
+	{
+		if (into == null)
+			return snapshot;
+		return into.set(snapshot.getQueryCountLong(), snapshot.getQueryCountOverflow(),
+				snapshot.getWordCountLong(), snapshot.getWordCountOverflow());
+	}
+}
@@ -0,0 +1,537 @@
+package wordcountservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * QueryCountJournal:
+ *   write-ahead log keeping query_count across restarts. every query
+ *   stores the absolute query_count it produced in a preallocated ring,
+ *   so appending allocates nothing; a single writer thread wakes up once
+ *   per durability window, drains the ring, keeps the
+ *   highest count of each word and writes the batch as one CRC-checked
+ *   frame followed by one fsync, so many increments share a single disk
+ *   flush (group commit). replay raises each word to the highest count
+ *   seen, which makes records idempotent and their order irrelevant.
+ *   once the journal grows past its checkpoint size the whole store is
+ *   written to a snapshot and the journal starts over; startup replays the
+ *   snapshot, then the journal up to its last intact frame.
+ *   in sync mode a query returns only after its record was flushed. a
+ *   full ring makes queries wait for the writer, records are never dropped.
+ *   a failed write stops the journal for good: every later append throws,
+ *   and the query endpoint answers 503 instead of counting in memory only,
+ *   so query_count never silently stops being durable. a restart replays
+ *   the journal up to its last intact frame and opens a fresh one.
+ */
+public class QueryCountJournal
+{
+	private static final int MAGIC = 0x5743514a; // "WCQJ"
+	// bump whenever the record layout changes
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+
+	// record kinds
+	private static final byte LONG_COUNT = 0;
+	private static final byte BIG_COUNT = 1;
+
+	// snapshot frames are cut at about this many bytes
+	private static final int SNAPSHOT_FRAME = 1 << 16;
+	// records the ring holds, also the most records written by one journal frame
+	private static final int CAPACITY = 1 << 16;
+	// time an append waits between checks for room in a full ring
+	private static final long FULL_WAIT_NANOS = 100000;
+
+	private final WordCountStore store;
+	private final File journalFile;
+	private final File snapshotFile;
+	private final long windowMillis;
+	private final boolean sync;
+	private final long checkpointBytes;
+
+	// slot of sequence s is s & (CAPACITY - 1), a record is present while its word is not null
+	private final AtomicReferenceArray<String> words = new AtomicReferenceArray<String>(CAPACITY);
+	private final long[] queryCounts = new long[CAPACITY];
+	private final BigInteger[] queryCountOverflows = new BigInteger[CAPACITY];
+	// next sequence to claim, shared by queries
+	private final AtomicLong head = new AtomicLong();
+	// next sequence to write, every sequence below it is on disk; advanced by the writer only
+	private volatile long tail = 0;
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private volatile IOException failure = null;
+
+	// owned by the writer thread once started
+	private RandomAccessFile journal;
+	private final ByteArrayOutputStream frame = new ByteArrayOutputStream(SNAPSHOT_FRAME);
+	private final DataOutputStream out = new DataOutputStream(frame);
+
+    /**
+     * constructor QueryCountJournal, replays snapshot and journal into the store
+     * and starts the writer thread
+     *
+     * @param store: query_count store, restored in place
+     * @param base: path prefix of the .snapshot and .journal files
+     * @param windowMillis: durability window, time the writer gathers records per fsync
+     * @param sync: whether append waits until its record is flushed
+     * @param checkpointBytes: journal size that triggers a snapshot
+     */
+	public QueryCountJournal(WordCountStore store, File base, long windowMillis, boolean sync,
+			long checkpointBytes) throws IOException
+	{
+		if (windowMillis <= 0)
+			throw new IllegalArgumentException("Not a valid durability window: "+windowMillis);
+		if (checkpointBytes <= HEADER)
+			throw new IllegalArgumentException("Not a valid checkpoint size: "+checkpointBytes);
+
+		this.store = store;
+		this.journalFile = new File(base.getPath()+".journal");
+		this.snapshotFile = new File(base.getPath()+".snapshot");
+		this.windowMillis = windowMillis;
+		this.sync = sync;
+		this.checkpointBytes = checkpointBytes;
+
+		File parent = journalFile.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("cannot create journal directory: "+parent.getAbsolutePath());
+
+		replay(snapshotFile);
+		replay(journalFile);
+
+		// fold the replayed journal into a fresh snapshot and start an empty one
+		journal = new RandomAccessFile(journalFile, "rw");
+		checkpoint();
+
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "query-count-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+    /**
+     * log the query_count a query produced
+     *
+     * @param word: queried word
+     * @param counts: counters returned by the query_count store for this query
+     */
+	public void append(String word, WordCount counts)
+	{
+		if (failure != null)
+			throw new IllegalStateException("query count journal failed", failure);
+		if (closed)
+			throw new IllegalStateException("query count journal closed");
+
+		long sequence;
+		while (true)
+		{
+			sequence = head.get();
+			if (sequence - tail >= CAPACITY)
+			{
+				// the writer is a whole ring behind, wait for its next frame
+				if (failure != null || !writer.isAlive())
+					throw new IllegalStateException("query count journal failed", failure);
+				LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+			}
+			else if (head.compareAndSet(sequence, sequence + 1))
+				break;
+		}
+
+		int slot = (int) sequence & (CAPACITY - 1);
+		queryCounts[slot] = counts.getQueryCountLong();
+		queryCountOverflows[slot] = counts.getQueryCountOverflow();
+		// publishes the counts as well
+		words.set(slot, word);
+		if (!sync)
+			return;
+
+		synchronized (this)
+		{
+			while (tail <= sequence && failure == null && writer.isAlive())
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		if (tail <= sequence && failure != null)
+			throw new IllegalStateException("query count journal failed", failure);
+	}
+
+    /**
+     * the write error that stopped the journal
+     *
+     * @return write error, or null while records are still written
+     */
+	public IOException getFailure()
+	{
+		return failure;
+	}
+
+    /**
+     * flush pending records, write a final snapshot and stop the writer
+     */
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+    /**
+     * writer thread body: one frame and one fsync per durability window
+     */
+	private void writeLoop()
+	{
+		HashMap<String, Integer> batch = new HashMap<String, Integer>();
+		try
+		{
+			try
+			{
+				while (!closed)
+				{
+					// close() wakes the writer for its last flush; interrupting
+					// it instead would close the journal channel
+					synchronized (this)
+					{
+						if (!closed)
+							wait(windowMillis);
+					}
+					flush(batch);
+					if (journal.length() >= checkpointBytes)
+						checkpoint();
+				}
+				flush(batch);
+				checkpoint();
+			}
+			finally
+			{
+				journal.close();
+			}
+		}
+		catch(IOException e)
+		{
+			failure = e;
+		}
+		catch(InterruptedException e)
+		{
+			failure = new IOException("query count journal writer interrupted");
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+    /**
+     * write the records published so far as one frame, then force it to disk
+     *
+     * @param batch: reusable map keeping the slot of the highest record per word
+     */
+	private void flush(HashMap<String, Integer> batch) throws IOException
+	{
+		// a slot claimed but not yet published ends the frame, the ring bounds
+		// it so a busy ring cannot starve the fsync
+		long start = tail;
+		long end = start;
+		while (end - start < CAPACITY && words.get((int) end & (CAPACITY - 1)) != null)
+			end++;
+		if (end == start)
+			return;
+
+		for (long sequence = start; sequence < end; sequence++)
+		{
+			int slot = (int) sequence & (CAPACITY - 1);
+			String word = words.get(slot);
+			Integer seen = batch.get(word);
+			if (seen == null || higher(slot, seen))
+				batch.put(word, slot);
+		}
+
+		frame.reset();
+		for (Map.Entry<String, Integer> entry : batch.entrySet())
+		{
+			int slot = entry.getValue();
+			writeRecord(entry.getKey().getBytes(Utf8.UTF8), queryCounts[slot], queryCountOverflows[slot]);
+		}
+		batch.clear();
+
+		FileChannel channel = journal.getChannel();
+		writeFrame(channel);
+		channel.force(false);
+
+		for (long sequence = start; sequence < end; sequence++)
+		{
+			int slot = (int) sequence & (CAPACITY - 1);
+			queryCountOverflows[slot] = null;
+			words.set(slot, null);
+		}
+		tail = end;
+		if (sync)
+		{
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+    /**
+     * write the whole store to a new snapshot and empty the journal.
+     * queued records are already counted in the store, so they are covered
+     * by the snapshot even though they reach the new journal afterwards
+     */
+	private void checkpoint() throws IOException
+	{
+		File temp = new File(snapshotFile.getPath()+".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try
+		{
+			file.setLength(0);
+			final FileChannel channel = file.getChannel();
+			writeHeader(channel);
+			final IOException[] error = new IOException[1];
+			frame.reset();
+			store.visit(new WordCountStore.Visitor()
+			{
+				@Override
+				public void visit(byte[] bytes, int offset, int length, WordCount counts)
+				{
+					if (error[0] != null || (counts.getQueryCountLong() == 0 && counts.getQueryCountOverflow() == null))
+						return;
+					try
+					{
+						byte[] word = new byte[length];
+						System.arraycopy(bytes, offset, word, 0, length);
+						writeRecord(word, counts.getQueryCountLong(), counts.getQueryCountOverflow());
+						if (frame.size() >= SNAPSHOT_FRAME)
+						{
+							writeFrame(channel);
+							frame.reset();
+						}
+					}
+					catch(IOException e)
+					{
+						error[0] = e;
+					}
+				}
+			});
+			if (error[0] != null)
+				throw error[0];
+			if (frame.size() > 0)
+				writeFrame(channel);
+			channel.force(true);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if (snapshotFile.exists() && !snapshotFile.delete())
+			throw new IOException("cannot replace snapshot: "+snapshotFile.getAbsolutePath());
+		if (!temp.renameTo(snapshotFile))
+			throw new IOException("cannot rename snapshot: "+temp.getAbsolutePath());
+
+		// a crash before this point replays the old journal over the new snapshot, which is harmless
+		journal.setLength(0);
+		journal.getChannel().position(0);
+		writeHeader(journal.getChannel());
+		journal.getChannel().force(true);
+	}
+
+    /**
+     * restore query_count from a snapshot or journal file, stopping at the
+     * first torn or corrupt frame
+     *
+     * @param f: file to replay
+     */
+	private void replay(File f) throws IOException
+	{
+		if (!f.isFile())
+			return;
+
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			if (!readFully(channel, header) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+				return;
+
+			ByteBuffer prefix = ByteBuffer.allocate(8);
+			CRC32 crc = new CRC32();
+			while (true)
+			{
+				prefix.clear();
+				if (!readFully(channel, prefix))
+					return;
+				int length = prefix.getInt(0);
+				if (length <= 0 || length > channel.size() - channel.position())
+					return;
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				if (!readFully(channel, payload))
+					return;
+				crc.reset();
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != prefix.getInt(4))
+					return;
+				replayFrame(payload);
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+    /**
+     * restore every record of one frame
+     *
+     * @param payload: frame payload, positioned at its start
+     */
+	private void replayFrame(ByteBuffer payload)
+	{
+		payload.rewind();
+		while (payload.hasRemaining())
+		{
+			byte[] word = new byte[payload.getInt()];
+			payload.get(word);
+			String key = new String(word, Utf8.UTF8);
+			if (payload.get() == BIG_COUNT)
+			{
+				byte[] value = new byte[payload.getInt()];
+				payload.get(value);
+				store.restoreQueryCount(key, Long.MAX_VALUE, new BigInteger(value));
+			}
+			else
+			{
+				store.restoreQueryCount(key, payload.getLong(), null);
+			}
+		}
+	}
+
+    /**
+     * append one record to the current frame
+     *
+     * @param word: UTF-8 word bytes
+     * @param queryCount: query_count, ignored when queryCountOverflow is set
+     * @param queryCountOverflow: query_count beyond Long.MAX_VALUE, or null
+     */
+	private void writeRecord(byte[] word, long queryCount, BigInteger queryCountOverflow) throws IOException
+	{
+		out.writeInt(word.length);
+		out.write(word);
+		if (queryCountOverflow != null)
+		{
+			byte[] value = queryCountOverflow.toByteArray();
+			out.writeByte(BIG_COUNT);
+			out.writeInt(value.length);
+			out.write(value);
+		}
+		else
+		{
+			out.writeByte(LONG_COUNT);
+			out.writeLong(queryCount);
+		}
+	}
+
+    /**
+     * write the current frame with its length and CRC32
+     *
+     * @param channel: destination file
+     */
+	private void writeFrame(FileChannel channel) throws IOException
+	{
+		out.flush();
+		byte[] payload = frame.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer prefix = ByteBuffer.allocate(8);
+		prefix.putInt(0, payload.length);
+		prefix.putInt(4, (int) crc.getValue());
+		ByteBuffer[] buffers = { prefix, ByteBuffer.wrap(payload) };
+		while (buffers[1].hasRemaining())
+			channel.write(buffers);
+	}
+
+    /**
+     * write the file header
+     *
+     * @param channel: destination file, positioned at its start
+     */
+	private static void writeHeader(FileChannel channel) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		while (header.hasRemaining())
+			channel.write(header);
+	}
+
+    /**
+     * fill a buffer from a channel
+     *
+     * @param channel: source file
+     * @param buffer: buffer to fill
+     * @return false when the file ends first
+     */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) < 0)
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * whether a ring slot carries a higher query_count than another one
+     *
+     * @param a: slot of the candidate record
+     * @param b: slot of the record seen so far
+     */
+	private boolean higher(int a, int b)
+	{
+		if (queryCountOverflows[a] != null)
+			return queryCountOverflows[b] == null || queryCountOverflows[a].compareTo(queryCountOverflows[b]) > 0;
+		return queryCountOverflows[b] == null && queryCounts[a] > queryCounts[b];
+	}
+}
@@ -0,0 +1,239 @@
+package wordcountservice;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueryQueue:
+ *   bounded ring of queries waiting for a query thread. it blocks on the
+ *   queue monitor instead of a lock condition, because a condition
+ *   allocates a wait node every time an idle query thread parks, which
+ *   happens once per query whenever query threads keep up with the
+ *   requests. the executor never waits to hand a query over, so the
+ *   waiters are query threads only and notify() wakes one of them; once a
+ *   producer waits for room every waiter is woken instead.
+ */
+class QueryQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable>
+{
+	private final Runnable[] items;
+	// guarded by this
+	private int head = 0;
+	private int size = 0;
+	private int producers = 0;
+
+    /**
+     * constructor QueryQueue
+     *
+     * @param capacity: number of queries the ring holds
+     */
+	QueryQueue(int capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Not a valid query queue length: "+capacity);
+		items = new Runnable[capacity];
+	}
+
+	@Override
+	public synchronized boolean offer(Runnable query)
+	{
+		if (query == null)
+			throw new NullPointerException();
+		if (size == items.length)
+			return false;
+		items[(head + size) % items.length] = query;
+		size++;
+		wake();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean offer(Runnable query, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		producers++;
+		try
+		{
+			while (size == items.length)
+			{
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+		}
+		finally
+		{
+			producers--;
+		}
+		return offer(query);
+	}
+
+	@Override
+	public synchronized void put(Runnable query) throws InterruptedException
+	{
+		producers++;
+		try
+		{
+			while (size == items.length)
+				wait();
+		}
+		finally
+		{
+			producers--;
+		}
+		offer(query);
+	}
+
+	@Override
+	public synchronized Runnable poll()
+	{
+		if (size == 0)
+			return null;
+		Runnable query = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		size--;
+		freed();
+		return query;
+	}
+
+	@Override
+	public synchronized Runnable poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (size == 0)
+		{
+			long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return null;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return poll();
+	}
+
+	@Override
+	public synchronized Runnable take() throws InterruptedException
+	{
+		while (size == 0)
+			wait();
+		return poll();
+	}
+
+	@Override
+	public synchronized Runnable peek()
+	{
+		return size == 0 ? null : items[head];
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	@Override
+	public synchronized int remainingCapacity()
+	{
+		return items.length - size;
+	}
+
+	@Override
+	public synchronized boolean remove(Object query)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (items[(head + i) % items.length].equals(query))
+			{
+				// close the gap by moving the later queries one step forward
+				for (int k = i; k < size - 1; k++)
+					items[(head + k) % items.length] = items[(head + k + 1) % items.length];
+				items[(head + size - 1) % items.length] = null;
+				size--;
+				freed();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> to)
+	{
+		return drainTo(to, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public synchronized int drainTo(Collection<? super Runnable> to, int maxElements)
+	{
+		int drained = 0;
+		while (drained < maxElements && size > 0)
+		{
+			to.add(poll());
+			drained++;
+		}
+		return drained;
+	}
+
+	// a query was added, producers and consumers may both be waiting once a producer waits for room
+	private void wake()
+	{
+		if (producers > 0)
+			notifyAll();
+		else
+			notify();
+	}
+
+	// room was made, which only a waiting producer needs to know
+	private void freed()
+	{
+		if (producers > 0)
+			notifyAll();
+	}
+
+    /**
+     * iterator over the queries waiting at the time of the call, removing
+     * through it takes the query out of the queue
+     */
+	@Override
+	public Iterator<Runnable> iterator()
+	{
+		final List<Runnable> waiting = new ArrayList<Runnable>();
+		synchronized (this)
+		{
+			for (int i = 0; i < size; i++)
+				waiting.add(items[(head + i) % items.length]);
+		}
+		final Iterator<Runnable> snapshot = waiting.iterator();
+		return new Iterator<Runnable>()
+		{
+			private Runnable last = null;
+
+			@Override
+			public boolean hasNext()
+			{
+				return snapshot.hasNext();
+			}
+
+			@Override
+			public Runnable next()
+			{
+				last = snapshot.next();
+				return last;
+			}
+
+			@Override
+			public void remove()
+			{
+				if (last == null)
+					throw new IllegalStateException();
+				QueryQueue.this.remove(last);
+				last = null;
+			}
+		};
+	}
+}
@@ -0,0 +1,90 @@
+package wordcountservice;
+
+import java.math.BigInteger;
+
+/**
+ * ResponseBuffer:
+ *   per-thread buffer a response is encoded into as UTF-8, together with
+ *   the counter record lookups fill, so that answering a request allocates
+ *   nothing once the buffer has grown to its working size. shared by the
+ *   endpoints that write word counts.
+ */
+class ResponseBuffer
+{
+	private static final ThreadLocal<ResponseBuffer> buffers = new ThreadLocal<ResponseBuffer>()
+	{
+		@Override
+		protected ResponseBuffer initialValue()
+		{
+			return new ResponseBuffer();
+		}
+	};
+
+	byte[] bytes = new byte[1024];
+	int length = 0;
+	final WordCount counts = new WordCount(0, 0);
+
+    /**
+     * the calling thread's buffer, emptied
+     */
+	static ResponseBuffer get()
+	{
+		ResponseBuffer buffer = buffers.get();
+		buffer.length = 0;
+		return buffer;
+	}
+
+	// room for more bytes after length
+	private void ensure(int more)
+	{
+		if (length + more <= bytes.length)
+			return;
+		byte[] larger = new byte[Math.max(length + more, bytes.length * 2)];
+		System.arraycopy(bytes, 0, larger, 0, length);
+		bytes = larger;
+	}
+
+	void put(byte b)
+	{
+		ensure(1);
+		bytes[length++] = b;
+	}
+
+	void put(byte[] b)
+	{
+		ensure(b.length);
+		System.arraycopy(b, 0, bytes, length, b.length);
+		length += b.length;
+	}
+
+	void put(String text)
+	{
+		ensure(text.length() * 3);
+		length = Utf8.encode(text, bytes, length);
+	}
+
+	// decimal counter, the BigInteger only once the long overflowed
+	void put(long value, BigInteger overflow)
+	{
+		if (overflow != null)
+		{
+			put(overflow.toString());
+			return;
+		}
+		if (value < 0)
+		{
+			put((byte) '-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value; rest >= 10; rest /= 10)
+			digits++;
+		ensure(digits);
+		length += digits;
+		for (int i = length - 1; i >= length - digits; i--)
+		{
+			bytes[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,726 @@
+package wordcountservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SpillingWordCountStore:
+ *   ingestion-only word_count store with a memory budget, for corpora
+ *   whose vocabulary does not fit in the heap. words are counted in
+ *   sixteen WordCountBatch tables, one per range of the index order hash;
+ *   once the tables and the batches the ingestion workers count into hold
+ *   half the budget (the other half covers a table doubling and the sort of
+ *   a run) the tables are written to the spill directory as one run sorted
+ *   in index order and replaced by empty tables. the tables are measured by
+ *   an atomic byte count, the workers' batches by the largest one merged
+ *   so far, as a batch keeps its buffers once grown. writeIndex merges the
+ *   runs, at most 64 at a time, and streams the summed word_count into a
+ *   sorted layout WordCountIndex on disk, so peak heap stays under the
+ *   budget whatever the vocabulary size.
+ *   counting and spilling are serialized by a read/write lock, workers
+ *   wait while a run is written. this is a sink only: most counts live in
+ *   the runs until the merge, so there is nothing to answer a query from.
+ *   for a checkpoint, detach() swaps the tables for empty ones while the
+ *   caller holds the workers, and checkpoint() writes them as a run once the
+ *   workers go on, naming the runs holding every count up to the detach,
+ *   which a later store can adopt() to resume an ingestion.
+ */
+public class SpillingWordCountStore implements WordCountSink
+{
+	// tables, chosen by the top four bits of the order hash
+	private static final int STRIPES = 16;
+	// runs read at once by one merge pass
+	private static final int MAX_FAN_IN = 64;
+	// buffer of each run reader and writer
+	private static final int BUFFER_SIZE = 1 << 15;
+	// smallest budget that leaves room for the merge buffers
+	private static final long MIN_BUDGET = 8L << 20;
+	// bytes a worker batch may allocate per distinct word: slots, entry arrays
+	// and key bytes, each up to twice their use right after a doubling
+	private static final int BATCH_BYTES_PER_WORD = 80;
+
+	private final File directory;
+	private final long budget;
+	private final int workers;
+	private final WordHasher hasher = WordCountIndex.getOrderHasher();
+	private final WordCountBatch[] stripes = new WordCountBatch[STRIPES];
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// bytes allocated by the tables, and by empty ones
+	private final AtomicLong allocated = new AtomicLong();
+	private final long emptyBytes;
+	// largest batch merged so far, each worker is taken to hold one this large
+	private final AtomicLong batchBytes = new AtomicLong();
+
+	/**
+	 * Detached:
+	 *   tables taken out of the store for a checkpoint, with the runs written
+	 *   before them. they stay charged to the budget until written
+	 */
+	public static class Detached
+	{
+		private final WordCountBatch[] tables;
+		private final List<File> runs;
+		private final long bytes;
+
+		private Detached(WordCountBatch[] tables, List<File> runs, long bytes)
+		{
+			this.tables = tables;
+			this.runs = runs;
+			this.bytes = bytes;
+		}
+	}
+	// written under the write lock
+	private final List<File> runs = new ArrayList<File>();
+	private int spills = 0;
+
+    /**
+     * constructor SpillingWordCountStore
+     *
+     * @param directory: directory receiving the runs, created when missing
+     * @param budget: heap bytes the tables, their runs and the workers' batches may use
+     * @param workers: number of ingestion workers, each holding a batch
+     */
+	public SpillingWordCountStore(File directory, long budget, int workers)
+	{
+		if (budget < MIN_BUDGET)
+			throw new IllegalArgumentException("Not a valid memory budget: "+budget);
+		if (workers <= 0)
+			throw new IllegalArgumentException("Not a valid ingest thread count: "+workers);
+		this.directory = directory;
+		this.budget = budget;
+		this.workers = workers;
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new WordCountBatch(hasher);
+		emptyBytes = STRIPES * stripes[0].getAllocatedBytes();
+		allocated.set(emptyBytes);
+	}
+
+    /**
+     * distinct words a worker should count before merging, so that the
+     * batches of all workers stay within a quarter of the budget
+     *
+     * @param budget: heap bytes of the store
+     * @param workers: number of ingestion workers
+     * @param limit: configured batch limit
+     * @return the configured limit, lowered when the budget is too small for it
+     */
+	public static int batchLimit(long budget, int workers, int limit)
+	{
+		long fitting = budget / 4 / Math.max(1, workers) / BATCH_BYTES_PER_WORD;
+		return (int) Math.min(limit, Math.max(1, fitting));
+	}
+
+    /**
+     * directory receiving the runs
+     */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+    /**
+     * number of runs written so far
+     */
+	public int getSpills()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return spills;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void addWord(String key)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		lock.readLock().lock();
+		try
+		{
+			WordCountBatch stripe = stripes[hash >>> 28];
+			synchronized (stripe)
+			{
+				long before = stripe.getAllocatedBytes();
+				stripe.add(hash, bytes, 0, length, 1);
+				grown(stripe, before);
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		spillIfFull();
+	}
+
+	@Override
+	public void addWords(WordCountBatch batch)
+	{
+		long bytes = batch.getAllocatedBytes();
+		long largest;
+		while (bytes > (largest = batchBytes.get()) && !batchBytes.compareAndSet(largest, bytes))
+			continue;
+
+		int size = batch.size();
+		byte[] keys = batch.getKeys();
+		int[] hashes = new int[size];
+		for (int entry = 0; entry < size; entry++)
+			hashes[entry] = hasher.hash(keys, batch.getKeyOffset(entry), batch.getKeyLength(entry));
+
+		// group the entries by stripe so each stripe monitor is taken once
+		int[] start = new int[STRIPES + 1];
+		for (int entry = 0; entry < size; entry++)
+			start[(hashes[entry] >>> 28) + 1]++;
+		for (int i = 0; i < STRIPES; i++)
+			start[i + 1] += start[i];
+		int[] order = new int[size];
+		int[] fill = start.clone();
+		for (int entry = 0; entry < size; entry++)
+			order[fill[hashes[entry] >>> 28]++] = entry;
+
+		lock.readLock().lock();
+		try
+		{
+			for (int i = 0; i < STRIPES; i++)
+			{
+				if (start[i] == start[i + 1])
+					continue;
+				WordCountBatch stripe = stripes[i];
+				synchronized (stripe)
+				{
+					long before = stripe.getAllocatedBytes();
+					for (int k = start[i]; k < start[i + 1]; k++)
+					{
+						int entry = order[k];
+						stripe.add(hashes[entry], keys, batch.getKeyOffset(entry), batch.getKeyLength(entry),
+								batch.getCount(entry));
+					}
+					grown(stripe, before);
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		spillIfFull();
+	}
+
+    /**
+     * merge all runs into a sorted layout index; the store must no longer be written
+     *
+     * @param writer: writer receiving the words in index order
+     */
+	public void writeIndex(final WordCountIndex.SortedWriter writer) throws IOException
+	{
+		merge(new Output()
+		{
+			@Override
+			public void add(int hash, byte[] bytes, int length, long count, BigInteger overflow) throws IOException
+			{
+				writer.add(hash, bytes, 0, length, count, overflow);
+			}
+		});
+	}
+
+    /**
+     * take the tables out of the store, replacing them by empty ones; the
+     * caller keeps the store from being written meanwhile, which only lasts
+     * for the swap
+     *
+     * @return the tables, to be handed to checkpoint()
+     */
+	public Detached detach()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			WordCountBatch[] tables = stripes.clone();
+			long bytes = 0;
+			for (int i = 0; i < STRIPES; i++)
+			{
+				bytes += tables[i].getAllocatedBytes();
+				stripes[i] = new WordCountBatch(hasher);
+			}
+			allocated.addAndGet(emptyBytes);
+			return new Detached(tables, new ArrayList<File>(runs), bytes);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+    /**
+     * write detached tables as one run while the store is being written;
+     * when that fails their words go back into the store, to be spilled or
+     * detached later
+     *
+     * @param detached: tables of detach()
+     * @return the runs holding every word counted up to the detach, which
+     *         stay in place until close() or a merge
+     */
+	public List<File> checkpoint(Detached detached) throws IOException
+	{
+		File run;
+		try
+		{
+			run = writeRun(detached.tables, false);
+		}
+		catch(IOException e)
+		{
+			restore(detached);
+			throw e;
+		}
+
+		List<File> named = new ArrayList<File>(detached.runs);
+		lock.writeLock().lock();
+		try
+		{
+			if (run != null)
+			{
+				runs.add(run);
+				named.add(run);
+				spills++;
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		allocated.addAndGet(-detached.bytes);
+		return named;
+	}
+
+    /**
+     * take over the runs of an earlier store over the same directory, and
+     * delete the other runs it left behind
+     *
+     * @param kept: runs named by the earlier store's last checkpoint()
+     */
+	public void adopt(List<File> kept)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			File[] found = directory.listFiles();
+			if (found != null)
+			{
+				for (File run : found)
+				{
+					if (run.getName().endsWith(".spill") && !kept.contains(run) && !runs.contains(run))
+						run.delete();
+				}
+			}
+			runs.addAll(kept);
+			spills += kept.size();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+    /**
+     * delete the runs
+     */
+	public void close()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for (File run : runs)
+				run.delete();
+			runs.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+    /**
+     * charge the growth of a table, under its monitor
+     *
+     * @param stripe: table just written
+     * @param before: bytes it allocated before
+     */
+	private void grown(WordCountBatch stripe, long before)
+	{
+		long after = stripe.getAllocatedBytes();
+		if (after != before)
+			allocated.addAndGet(after - before);
+	}
+
+    /**
+     * write a run when the tables and the workers' batches reached half the budget
+     */
+	private void spillIfFull()
+	{
+		if (!isFull())
+			return;
+		lock.writeLock().lock();
+		try
+		{
+			// another worker may have spilled meanwhile
+			if (!isFull())
+				return;
+			spill();
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("cannot spill word_count to "+directory.getAbsolutePath()+": "+e, e);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+    /**
+     * whether the tables have words and, with the workers' batches, fill half the budget
+     */
+	private boolean isFull()
+	{
+		long tables = allocated.get();
+		return tables > emptyBytes && tables + workers * batchBytes.get() >= budget / 2;
+	}
+
+    /**
+     * write the tables as one sorted run and replace them, under the write lock
+     */
+	private void spill() throws IOException
+	{
+		File run = writeRun(stripes, true);
+		if (run == null)
+			return;
+		runs.add(run);
+		spills++;
+	}
+
+    /**
+     * write tables as one run sorted in index order
+     *
+     * @param tables: tables covering ascending ranges of the order hash
+     * @param release: whether each table of the store is replaced by an empty one once written
+     * @return the run, or null when the tables hold no word
+     */
+	private File writeRun(WordCountBatch[] tables, boolean release) throws IOException
+	{
+		int words = 0;
+		for (WordCountBatch table : tables)
+			words += table.size();
+		if (words == 0)
+			return null;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create spill directory: "+directory.getAbsolutePath());
+
+		File run = File.createTempFile("run", ".spill", directory);
+		boolean written = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+		try
+		{
+			for (int i = 0; i < STRIPES; i++)
+			{
+				WordCountBatch table = tables[i];
+				byte[] keys = table.getKeys();
+				for (int entry : sort(table))
+				{
+					write(out, table.getHash(entry), keys, table.getKeyOffset(entry), table.getKeyLength(entry),
+							table.getCount(entry), null);
+				}
+				if (release)
+				{
+					// dropping the table returns its grown arrays
+					long before = table.getAllocatedBytes();
+					tables[i] = new WordCountBatch(hasher);
+					allocated.addAndGet(tables[i].getAllocatedBytes() - before);
+				}
+			}
+			out.writeInt(-1);
+			written = true;
+		}
+		finally
+		{
+			out.close();
+			if (!written)
+				run.delete();
+		}
+		return run;
+	}
+
+    /**
+     * add the words of detached tables back into the store
+     *
+     * @param detached: tables of detach() that could not be written
+     */
+	private void restore(Detached detached)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for (int i = 0; i < STRIPES; i++)
+			{
+				WordCountBatch table = detached.tables[i];
+				WordCountBatch stripe = stripes[i];
+				long before = stripe.getAllocatedBytes();
+				byte[] keys = table.getKeys();
+				for (int entry = 0; entry < table.size(); entry++)
+				{
+					stripe.add(table.getHash(entry), keys, table.getKeyOffset(entry), table.getKeyLength(entry),
+							table.getCount(entry));
+				}
+				grown(stripe, before);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		allocated.addAndGet(-detached.bytes);
+	}
+
+    /**
+     * entries of a table in index order
+     *
+     * @param stripe: table to sort
+     */
+	private static int[] sort(final WordCountBatch stripe)
+	{
+		// unsigned hash in the high half, so a primitive sort does most of the work
+		int size = stripe.size();
+		long[] keyed = new long[size];
+		for (int entry = 0; entry < size; entry++)
+			keyed[entry] = ((long) (stripe.getHash(entry) ^ Integer.MIN_VALUE) << 32) | entry;
+		Arrays.sort(keyed);
+
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = (int) keyed[i];
+
+		// words sharing a hash are ordered by their bytes, such runs are tiny
+		byte[] keys = stripe.getKeys();
+		for (int i = 1; i < size; i++)
+		{
+			int entry = order[i];
+			int j = i;
+			while (j > 0 && stripe.getHash(order[j - 1]) == stripe.getHash(entry)
+					&& WordCountIndex.compare(stripe.getHash(entry), keys, stripe.getKeyOffset(entry), stripe.getKeyLength(entry),
+							stripe.getHash(order[j - 1]), keys, stripe.getKeyOffset(order[j - 1]), stripe.getKeyLength(order[j - 1])) < 0)
+			{
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = entry;
+		}
+		return order;
+	}
+
+    /**
+     * spill what is left, merge the runs down to at most MAX_FAN_IN, then
+     * merge those into the output
+     *
+     * @param output: receiver of the words in index order
+     */
+	private void merge(Output output) throws IOException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			spill();
+			while (runs.size() > MAX_FAN_IN)
+			{
+				List<File> group = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+				File merged = File.createTempFile("run", ".spill", directory);
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE));
+				try
+				{
+					merge(group, new Output()
+					{
+						@Override
+						public void add(int hash, byte[] bytes, int length, long count, BigInteger overflow) throws IOException
+						{
+							write(out, hash, bytes, 0, length, count, overflow);
+						}
+					});
+					out.writeInt(-1);
+				}
+				finally
+				{
+					out.close();
+				}
+				runs.removeAll(group);
+				runs.add(merged);
+				for (File run : group)
+					run.delete();
+			}
+			merge(runs, output);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+    /**
+     * k-way merge of runs, summing the word_count of equal words
+     *
+     * @param group: runs to merge
+     * @param output: receiver of the words in index order
+     */
+	private static void merge(List<File> group, Output output) throws IOException
+	{
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, group.size()), new Comparator<RunReader>()
+		{
+			@Override
+			public int compare(RunReader a, RunReader b)
+			{
+				return WordCountIndex.compare(a.hash, a.bytes, 0, a.length, b.hash, b.bytes, 0, b.length);
+			}
+		});
+		List<RunReader> readers = new ArrayList<RunReader>();
+		try
+		{
+			for (File run : group)
+			{
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			byte[] word = new byte[64];
+			while (!queue.isEmpty())
+			{
+				RunReader first = queue.poll();
+				int hash = first.hash;
+				int length = first.length;
+				if (length > word.length)
+					word = new byte[Math.max(length, word.length * 2)];
+				System.arraycopy(first.bytes, 0, word, 0, length);
+				long count = first.count;
+				BigInteger overflow = first.overflow;
+				if (first.next())
+					queue.add(first);
+
+				while (!queue.isEmpty() && WordCountIndex.compare(hash, word, 0, length,
+						queue.peek().hash, queue.peek().bytes, 0, queue.peek().length) == 0)
+				{
+					RunReader same = queue.poll();
+					if (overflow == null && same.overflow == null && count <= Long.MAX_VALUE - same.count
+							&& count + same.count != Long.MAX_VALUE)
+					{
+						count += same.count;
+					}
+					else
+					{
+						overflow = (overflow != null ? overflow : BigInteger.valueOf(count))
+								.add(same.overflow != null ? same.overflow : BigInteger.valueOf(same.count));
+						count = Long.MAX_VALUE;
+					}
+					if (same.next())
+						queue.add(same);
+				}
+				output.add(hash, word, length, count, overflow);
+			}
+		}
+		finally
+		{
+			for (RunReader reader : readers)
+				reader.close();
+		}
+	}
+
+    /**
+     * write one run record: length, hash, bytes, word_count and, once it
+     * overflowed, the BigInteger value
+     */
+	private static void write(DataOutputStream out, int hash, byte[] bytes, int offset, int length,
+			long count, BigInteger overflow) throws IOException
+	{
+		out.writeInt(length);
+		out.writeInt(hash);
+		out.write(bytes, offset, length);
+		out.writeLong(overflow != null ? Long.MAX_VALUE : count);
+		if (overflow != null || count == Long.MAX_VALUE)
+		{
+			byte[] value = (overflow != null ? overflow : BigInteger.valueOf(count)).toByteArray();
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	/**
+	 * Output:
+	 *   receiver of merged words
+	 */
+	private interface Output
+	{
+		public void add(int hash, byte[] bytes, int length, long count, BigInteger overflow) throws IOException;
+	}
+
+	/**
+	 * RunReader:
+	 *   current record of a run being merged
+	 */
+	private static class RunReader
+	{
+		private final DataInputStream in;
+		private int hash;
+		private byte[] bytes = new byte[64];
+		private int length;
+		private long count;
+		private BigInteger overflow;
+
+		private RunReader(File run) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+		}
+
+		// read the next record, false at the end of the run
+		private boolean next() throws IOException
+		{
+			length = in.readInt();
+			if (length < 0)
+				return false;
+			hash = in.readInt();
+			if (length > bytes.length)
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			in.readFully(bytes, 0, length);
+			count = in.readLong();
+			overflow = null;
+			if (count == Long.MAX_VALUE)
+			{
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				overflow = new BigInteger(value);
+			}
+			return true;
+		}
+
+		private void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package wordcountservice;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * StripedWordCountStore:
+ *   on-heap <word, WordCount> store. words are spread over a fixed number of
+ *   stripes, each one an open-addressing table of entry ids. the words
+ *   themselves live once as UTF-8 bytes in the stripe's ByteArena and counters
+ *   live in paged primitive arrays, so a distinct word costs no String,
+ *   map node or counter object. lookups compare the encoded query against
+ *   arena bytes and never lock; counters are bumped with compare-and-set.
+ *   only the first sighting of a word takes its stripe's monitor, and no
+ *   lock is shared by the whole store.
+ */
+public class StripedWordCountStore implements WordCountStore
+{
+	// entries per metadata and counter page
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private static final BigInteger LONG_LIMIT = BigInteger.valueOf(Long.MAX_VALUE);
+
+	private final Stripe[] stripes;
+	private final int mask;
+	private final WordHasher hasher;
+
+	/**
+	 * Stripe:
+	 *   one table of entry ids with its paged entry data. readers go through
+	 *   the volatile fields only, writers hold the stripe monitor and publish
+	 *   a new entry by its volatile table slot write, after its data is set.
+	 *   each stripe appends its words to its own arena, so inserting a new
+	 *   word never waits on another stripe
+	 */
+	private static class Stripe
+	{
+		private final ByteArena arena = new ByteArena();
+
+		// slot holds entry id + 1, zero marks a free slot; replaced as a whole when growing
+		private volatile AtomicIntegerArray table = new AtomicIntegerArray(16);
+
+		private volatile long[][] addresses = new long[1][];
+		private volatile int[][] hashes = new int[1][];
+		private volatile AtomicLongArray[] queryCounts = new AtomicLongArray[1];
+		private volatile AtomicLongArray[] wordCounts = new AtomicLongArray[1];
+		// guarded by this
+		private int size = 0;
+
+		// counters past Long.MAX_VALUE by entry id, written under this
+		private final ConcurrentHashMap<Integer, BigInteger> queryCountOverflow =
+				new ConcurrentHashMap<Integer, BigInteger>(4, 0.75f, 1);
+		private final ConcurrentHashMap<Integer, BigInteger> wordCountOverflow =
+				new ConcurrentHashMap<Integer, BigInteger>(4, 0.75f, 1);
+	}
+
+    /**
+     * constructor StripedWordCountStore
+     *
+     * @param stripes: requested stripe count, rounded up to a power of two
+     * @param hasher: hash function picking a word's stripe and slot
+     */
+	public StripedWordCountStore(int stripes, WordHasher hasher)
+	{
+		if (stripes <= 0)
+			throw new IllegalArgumentException("Not a valid stripe count: "+stripes);
+
+		int size = 1;
+		while (size < stripes && size < (1 << 30))
+			size <<= 1;
+
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++)
+			this.stripes[i] = new Stripe();
+		this.mask = size - 1;
+		this.hasher = hasher;
+	}
+
+	@Override
+	public WordCount query(String key)
+	{
+		return query(key, null);
+	}
+
+	@Override
+	public WordCount query(String key, WordCount into)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Stripe stripe = stripes[hash & mask];
+		int id = getOrInsert(stripe, hash, bytes, 0, length);
+
+		AtomicLongArray counts = stripe.queryCounts[id >>> PAGE_BITS];
+		while (true)
+		{
+			long current = counts.get(id & PAGE_MASK);
+			if (current == Long.MAX_VALUE)
+				return snapshot(stripe, id, 0, addOverflow(stripe, stripe.queryCountOverflow, id, 1), into);
+			if (counts.compareAndSet(id & PAGE_MASK, current, current + 1))
+				return snapshot(stripe, id, current + 1, null, into);
+		}
+	}
+
+	@Override
+	public WordCount get(String key)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Stripe stripe = stripes[hash & mask];
+		int id = find(stripe, stripe.table, hash, bytes, 0, length);
+		if (id < 0)
+			return null;
+
+		long queryCount = stripe.queryCounts[id >>> PAGE_BITS].get(id & PAGE_MASK);
+		return snapshot(stripe, id, queryCount, queryCount == Long.MAX_VALUE ? stripe.queryCountOverflow.get(id) : null,
+				null);
+	}
+
+	@Override
+	public void addWord(String key)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Stripe stripe = stripes[hash & mask];
+		int id = getOrInsert(stripe, hash, bytes, 0, length);
+
+		AtomicLongArray counts = stripe.wordCounts[id >>> PAGE_BITS];
+		while (true)
+		{
+			long current = counts.get(id & PAGE_MASK);
+			if (current == Long.MAX_VALUE)
+			{
+				addOverflow(stripe, stripe.wordCountOverflow, id, 1);
+				return;
+			}
+			if (counts.compareAndSet(id & PAGE_MASK, current, current + 1))
+				return;
+		}
+	}
+
+	@Override
+	public void addWords(WordCountBatch batch)
+	{
+		byte[] keys = batch.getKeys();
+		for (int entry = 0; entry < batch.size(); entry++)
+		{
+			int offset = batch.getKeyOffset(entry);
+			int length = batch.getKeyLength(entry);
+			long count = batch.getCount(entry);
+			int hash = hasher.hash(keys, offset, length);
+			Stripe stripe = stripes[hash & mask];
+			int id = getOrInsert(stripe, hash, keys, offset, length);
+
+			AtomicLongArray counts = stripe.wordCounts[id >>> PAGE_BITS];
+			while (true)
+			{
+				long current = counts.get(id & PAGE_MASK);
+				if (current == Long.MAX_VALUE)
+				{
+					addOverflow(stripe, stripe.wordCountOverflow, id, count);
+					break;
+				}
+				if (current > Long.MAX_VALUE - count)
+				{
+					// pin the long and carry the rest over to the overflow map
+					if (counts.compareAndSet(id & PAGE_MASK, current, Long.MAX_VALUE))
+					{
+						addOverflow(stripe, stripe.wordCountOverflow, id, count - (Long.MAX_VALUE - current));
+						break;
+					}
+					continue;
+				}
+				if (counts.compareAndSet(id & PAGE_MASK, current, current + count))
+					break;
+			}
+		}
+	}
+
+	@Override
+	public void restoreQueryCount(String key, long queryCount, BigInteger queryCountOverflow)
+	{
+		byte[] bytes = Utf8.scratch(key);
+		int length = Utf8.encode(key, bytes);
+		int hash = hasher.hash(bytes, 0, length);
+		Stripe stripe = stripes[hash & mask];
+		int id = getOrInsert(stripe, hash, bytes, 0, length);
+
+		AtomicLongArray counts = stripe.queryCounts[id >>> PAGE_BITS];
+		if (queryCountOverflow != null)
+		{
+			synchronized (stripe)
+			{
+				counts.set(id & PAGE_MASK, Long.MAX_VALUE);
+				BigInteger current = stripe.queryCountOverflow.get(id);
+				if (current == null || current.compareTo(queryCountOverflow) < 0)
+					stripe.queryCountOverflow.put(id, queryCountOverflow);
+			}
+			return;
+		}
+
+		while (true)
+		{
+			long current = counts.get(id & PAGE_MASK);
+			if (current >= queryCount || counts.compareAndSet(id & PAGE_MASK, current, queryCount))
+				return;
+		}
+	}
+
+	@Override
+	public void visit(Visitor visitor)
+	{
+		byte[] bytes = new byte[256];
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				for (int id = 0; id < stripe.size; id++)
+				{
+					long address = stripe.addresses[id >>> PAGE_BITS][id & PAGE_MASK];
+					int length = stripe.arena.length(address);
+					if (length > bytes.length)
+						bytes = new byte[Math.max(length, bytes.length * 2)];
+					stripe.arena.copy(address, bytes);
+
+					long queryCount = stripe.queryCounts[id >>> PAGE_BITS].get(id & PAGE_MASK);
+					BigInteger queryCountOverflow = queryCount == Long.MAX_VALUE ? stripe.queryCountOverflow.get(id) : null;
+					visitor.visit(bytes, 0, length, snapshot(stripe, id, queryCount, queryCountOverflow, null));
+				}
+			}
+		}
+	}
+
+    /**
+     * counters of an entry, with the query_count just produced by the caller
+     *
+     * @param stripe: stripe owning the entry
+     * @param id: entry id
+     * @param queryCount: query_count produced by the caller
+     * @param queryCountOverflow: query_count beyond Long.MAX_VALUE, or null
+     * @param into: record to fill, or null for a new one
+     */
+	private WordCount snapshot(Stripe stripe, int id, long queryCount, BigInteger queryCountOverflow, WordCount into)
+	{
+		long wordCount = stripe.wordCounts[id >>> PAGE_BITS].get(id & PAGE_MASK);
+		BigInteger wordCountOverflow = wordCount == Long.MAX_VALUE ? stripe.wordCountOverflow.get(id) : null;
+		if (into != null)
+			return into.set(queryCount, queryCountOverflow, wordCount, wordCountOverflow);
+		return new WordCount(queryCount, queryCountOverflow, wordCount, wordCountOverflow);
+	}
+
+    /**
+     * add to a counter that no longer fits a long
+     *
+     * @param stripe: stripe owning the entry
+     * @param overflow: overflow map of the counter
+     * @param id: entry id
+     * @param amount: value to add
+     */
+	private static BigInteger addOverflow(Stripe stripe, ConcurrentHashMap<Integer, BigInteger> overflow, int id, long amount)
+	{
+		synchronized (stripe)
+		{
+			BigInteger value = overflow.get(id);
+			value = (value == null ? LONG_LIMIT : value).add(BigInteger.valueOf(amount));
+			overflow.put(id, value);
+			return value;
+		}
+	}
+
+    /**
+     * entry id of a word, creating the entry on first use
+     *
+     * @param stripe: stripe owning the word
+     * @param hash: hash value of the word
+     * @param bytes: buffer holding UTF-8 word bytes
+     * @param offset: first byte of the word
+     * @param length: word length in bytes
+     */
+	private int getOrInsert(Stripe stripe, int hash, byte[] bytes, int offset, int length)
+	{
+		int id = find(stripe, stripe.table, hash, bytes, offset, length);
+		if (id >= 0)
+			return id;
+
+		synchronized (stripe)
+		{
+			// another thread may have inserted the word meanwhile
+			id = find(stripe, stripe.table, hash, bytes, offset, length);
+			if (id >= 0)
+				return id;
+
+			id = stripe.size;
+			ensurePage(stripe, id >>> PAGE_BITS);
+			stripe.addresses[id >>> PAGE_BITS][id & PAGE_MASK] = stripe.arena.append(bytes, offset, length);
+			stripe.hashes[id >>> PAGE_BITS][id & PAGE_MASK] = hash;
+
+			AtomicIntegerArray table = stripe.table;
+			if ((id + 1) * 2 > table.length())
+			{
+				// build the larger table aside, then publish it with the new entry in it
+				AtomicIntegerArray larger = new AtomicIntegerArray(table.length() * 2);
+				for (int i = 0; i <= id; i++)
+					link(larger, stripe.hashes[i >>> PAGE_BITS][i & PAGE_MASK], i);
+				stripe.table = larger;
+			}
+			else
+			{
+				link(table, hash, id);
+			}
+			stripe.size = id + 1;
+			return id;
+		}
+	}
+
+    /**
+     * probe a table for a word
+     *
+     * @param stripe: stripe owning the table
+     * @param table: table to probe
+     * @param hash: hash value of the word
+     * @param bytes: buffer holding UTF-8 word bytes
+     * @param offset: first byte of the word
+     * @param length: word length in bytes
+     * @return entry id, or -1 when absent
+     */
+	private int find(Stripe stripe, AtomicIntegerArray table, int hash, byte[] bytes, int offset, int length)
+	{
+		int capacity = table.length();
+		int slot = (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(capacity));
+		while (true)
+		{
+			int id = table.get(slot) - 1;
+			if (id < 0)
+				return -1;
+			if (stripe.hashes[id >>> PAGE_BITS][id & PAGE_MASK] == hash
+					&& stripe.arena.equals(stripe.addresses[id >>> PAGE_BITS][id & PAGE_MASK], bytes, offset, length))
+				return id;
+			slot = (slot + 1) & (capacity - 1);
+		}
+	}
+
+    /**
+     * store an entry id in the first free slot of its probe sequence
+     *
+     * @param table: table to link into
+     * @param hash: hash value of the entry
+     * @param id: entry id
+     */
+	private static void link(AtomicIntegerArray table, int hash, int id)
+	{
+		int capacity = table.length();
+		int slot = (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(capacity));
+		while (table.get(slot) != 0)
+			slot = (slot + 1) & (capacity - 1);
+		table.set(slot, id + 1);
+	}
+
+    /**
+     * make sure a page of entry data exists, called under the stripe monitor
+     *
+     * @param stripe: stripe owning the pages
+     * @param page: page index
+     */
+	private static void ensurePage(Stripe stripe, int page)
+	{
+		if (page == stripe.addresses.length)
+		{
+			int pages = page * 2;
+			long[][] addresses = new long[pages][];
+			int[][] hashes = new int[pages][];
+			AtomicLongArray[] queryCounts = new AtomicLongArray[pages];
+			AtomicLongArray[] wordCounts = new AtomicLongArray[pages];
+			System.arraycopy(stripe.addresses, 0, addresses, 0, page);
+			System.arraycopy(stripe.hashes, 0, hashes, 0, page);
+			System.arraycopy(stripe.queryCounts, 0, queryCounts, 0, page);
+			System.arraycopy(stripe.wordCounts, 0, wordCounts, 0, page);
+			stripe.addresses = addresses;
+			stripe.hashes = hashes;
+			stripe.queryCounts = queryCounts;
+			stripe.wordCounts = wordCounts;
+		}
+
+		if (stripe.addresses[page] == null)
+		{
+			stripe.addresses[page] = new long[PAGE_SIZE];
+			stripe.hashes[page] = new int[PAGE_SIZE];
+			stripe.queryCounts[page] = new AtomicLongArray(PAGE_SIZE);
+			stripe.wordCounts[page] = new AtomicLongArray(PAGE_SIZE);
+		}
+	}
+}
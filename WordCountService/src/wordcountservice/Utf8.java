@@ -0,0 +1,101 @@
+package wordcountservice;
+
+import java.nio.charset.Charset;
+
+/**
+ * Utf8:
+ *   allocation-free UTF-8 helpers shared by hashing and the byte-keyed
+ *   stores. encoding follows String.getBytes(UTF-8), so a lone surrogate
+ *   becomes '?'
+ */
+public class Utf8
+{
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// per-thread buffer words are encoded into before hashing or probing
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[256];
+		}
+	};
+
+    /**
+     * per-thread scratch buffer large enough to encode a word
+     *
+     * @param word: word about to be encoded
+     */
+	public static byte[] scratch(String word)
+	{
+		byte[] buffer = scratch.get();
+		if (buffer.length < word.length() * 3)
+		{
+			buffer = new byte[word.length() * 3];
+			scratch.set(buffer);
+		}
+		return buffer;
+	}
+
+    /**
+     * encode a word into a buffer holding at least 3 bytes per char
+     *
+     * @param word: word to encode
+     * @param out: destination buffer
+     * @return number of bytes written
+     */
+	public static int encode(String word, byte[] out)
+	{
+		return encode(word, out, 0);
+	}
+
+    /**
+     * encode a word into a buffer at an offset, with at least 3 bytes per char left
+     *
+     * @param word: word to encode
+     * @param out: destination buffer
+     * @param offset: first byte to write
+     * @return offset just after the last byte written
+     */
+	public static int encode(String word, byte[] out, int offset)
+	{
+		int length = word.length();
+		int n = offset;
+		for (int i = 0; i < length; i++)
+		{
+			char c = word.charAt(i);
+			if (c < 0x80)
+			{
+				out[n++] = (byte) c;
+			}
+			else if (c < 0x800)
+			{
+				out[n++] = (byte) (0xC0 | (c >> 6));
+				out[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if (c >= 0xD800 && c <= 0xDFFF)
+			{
+				if (c <= 0xDBFF && i + 1 < length && Character.isLowSurrogate(word.charAt(i + 1)))
+				{
+					int cp = Character.toCodePoint(c, word.charAt(++i));
+					out[n++] = (byte) (0xF0 | (cp >> 18));
+					out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					out[n++] = (byte) (0x80 | (cp & 0x3F));
+				}
+				else
+				{
+					out[n++] = (byte) '?';
+				}
+			}
+			else
+			{
+				out[n++] = (byte) (0xE0 | (c >> 12));
+				out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return n;
+	}
+}
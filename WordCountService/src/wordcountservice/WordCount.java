@@ -0,0 +1,228 @@
+package wordcountservice;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * WordCount:
+ *   counter record of one word, holding query_count and word_count as
+ *   primitive longs updated with compare-and-set, so concurrent increments
+ *   never wait on a monitor and every query_count increment yields its own
+ *   value. a counter that reaches Long.MAX_VALUE moves to BigInteger under
+ *   the record's monitor and stays there, so only that rare case locks or
+ *   allocates.
+ */
+public class WordCount
+{
+	private static final BigInteger LONG_LIMIT = BigInteger.valueOf(Long.MAX_VALUE);
+
+	private static final AtomicLongFieldUpdater<WordCount> QUERY_COUNT =
+			AtomicLongFieldUpdater.newUpdater(WordCount.class, "queryCount");
+	private static final AtomicLongFieldUpdater<WordCount> WORD_COUNT =
+			AtomicLongFieldUpdater.newUpdater(WordCount.class, "wordCount");
+
+	private volatile long queryCount;
+	private volatile long wordCount;
+	// only set once the matching long counter reached Long.MAX_VALUE, written under this
+	private volatile BigInteger queryCountOverflow;
+	private volatile BigInteger wordCountOverflow;
+
+    /**
+     * constructor WordCount
+     *
+     * @param queryCount: initial query_count
+     * @param wordCount: initial word_count
+     */
+	public WordCount(long queryCount, long wordCount)
+	{
+		this.queryCount = queryCount;
+		this.wordCount = wordCount;
+	}
+
+    /**
+     * constructor WordCount, counters that may already have overflowed
+     *
+     * @param queryCount: initial query_count, ignored when queryCountOverflow is set
+     * @param queryCountOverflow: query_count beyond Long.MAX_VALUE, or null
+     * @param wordCount: initial word_count, ignored when wordCountOverflow is set
+     * @param wordCountOverflow: word_count beyond Long.MAX_VALUE, or null
+     */
+	public WordCount(long queryCount, BigInteger queryCountOverflow, long wordCount, BigInteger wordCountOverflow)
+	{
+		this.queryCount = queryCountOverflow != null ? Long.MAX_VALUE : queryCount;
+		this.queryCountOverflow = queryCountOverflow;
+		this.wordCount = wordCountOverflow != null ? Long.MAX_VALUE : wordCount;
+		this.wordCountOverflow = wordCountOverflow;
+	}
+
+    /**
+     * constructor WordCount, snapshot of another record
+     *
+     * @param other: record to copy
+     */
+	public WordCount(WordCount other)
+	{
+		this.queryCountOverflow = other.queryCountOverflow;
+		this.queryCount = other.queryCount;
+		this.wordCountOverflow = other.wordCountOverflow;
+		this.wordCount = other.wordCount;
+	}
+
+    /**
+     * add one to query_count
+     *
+     * @return snapshot holding the query_count produced by this increment
+     */
+	public WordCount incrementQueryCount()
+	{
+		while (true)
+		{
+			long current = queryCount;
+			if (current == Long.MAX_VALUE)
+				return incrementQueryCountOverflow();
+			if (QUERY_COUNT.compareAndSet(this, current, current + 1))
+			{
+				WordCount snapshot = new WordCount(current + 1, wordCount);
+				snapshot.wordCountOverflow = wordCountOverflow;
+				return snapshot;
+			}
+		}
+	}
+
+    /**
+     * add one to word_count
+     */
+	public void incrementWordCount()
+	{
+		addWordCount(1);
+	}
+
+    /**
+     * add occurrences to word_count
+     *
+     * @param count: number of occurrences, not negative
+     */
+	public void addWordCount(long count)
+	{
+		while (true)
+		{
+			long current = wordCount;
+			if (current == Long.MAX_VALUE)
+			{
+				addWordCountOverflow(count);
+				return;
+			}
+			if (current > Long.MAX_VALUE - count)
+			{
+				// pin the long and carry the rest over to the BigInteger
+				if (WORD_COUNT.compareAndSet(this, current, Long.MAX_VALUE))
+				{
+					addWordCountOverflow(count - (Long.MAX_VALUE - current));
+					return;
+				}
+				continue;
+			}
+			if (WORD_COUNT.compareAndSet(this, current, current + count))
+				return;
+		}
+	}
+
+    /**
+     * add one to a query_count that no longer fits a long
+     */
+	private synchronized WordCount incrementQueryCountOverflow()
+	{
+		queryCountOverflow = (queryCountOverflow == null ? LONG_LIMIT : queryCountOverflow).add(BigInteger.ONE);
+		return new WordCount(this);
+	}
+
+    /**
+     * add occurrences to a word_count that no longer fits a long
+     *
+     * @param count: number of occurrences
+     */
+	private synchronized void addWordCountOverflow(long count)
+	{
+		wordCountOverflow = (wordCountOverflow == null ? LONG_LIMIT : wordCountOverflow).add(BigInteger.valueOf(count));
+	}
+
+    /**
+     * refill a snapshot owned by the caller, never a record a store still counts in
+     *
+     * @param queryCount: query_count, ignored when queryCountOverflow is set
+     * @param queryCountOverflow: query_count beyond Long.MAX_VALUE, or null
+     * @param wordCount: word_count, ignored when wordCountOverflow is set
+     * @param wordCountOverflow: word_count beyond Long.MAX_VALUE, or null
+     * @return this snapshot
+     */
+	WordCount set(long queryCount, BigInteger queryCountOverflow, long wordCount, BigInteger wordCountOverflow)
+	{
+		this.queryCount = queryCountOverflow != null ? Long.MAX_VALUE : queryCount;
+		this.queryCountOverflow = queryCountOverflow;
+		return setWordCount(wordCount, wordCountOverflow);
+	}
+
+    /**
+     * pair a snapshot owned by the caller with another word_count
+     *
+     * @param wordCount: word_count, ignored when wordCountOverflow is set
+     * @param wordCountOverflow: word_count beyond Long.MAX_VALUE, or null
+     * @return this snapshot
+     */
+	WordCount setWordCount(long wordCount, BigInteger wordCountOverflow)
+	{
+		this.wordCount = wordCountOverflow != null ? Long.MAX_VALUE : wordCount;
+		this.wordCountOverflow = wordCountOverflow;
+		return this;
+	}
+
+    /**
+     * query_count as a long, Long.MAX_VALUE once it overflowed
+     */
+	public long getQueryCountLong()
+	{
+		return queryCount;
+	}
+
+    /**
+     * query_count beyond Long.MAX_VALUE, null while it fits a long
+     */
+	public BigInteger getQueryCountOverflow()
+	{
+		return queryCountOverflow;
+	}
+
+    /**
+     * word_count as a long, Long.MAX_VALUE once it overflowed
+     */
+	public long getWordCountLong()
+	{
+		return wordCount;
+	}
+
+    /**
+     * word_count beyond Long.MAX_VALUE, null while it fits a long
+     */
+	public BigInteger getWordCountOverflow()
+	{
+		return wordCountOverflow;
+	}
+
+    /**
+     * decimal query_count, as written in query responses
+     */
+	public String getQueryCount()
+	{
+		BigInteger overflow = queryCountOverflow;
+		return overflow != null ? overflow.toString() : Long.toString(queryCount);
+	}
+
+    /**
+     * decimal word_count, as written in query responses
+     */
+	public String getWordCount()
+	{
+		BigInteger overflow = wordCountOverflow;
+		return overflow != null ? overflow.toString() : Long.toString(wordCount);
+	}
+}
@@ -0,0 +1,262 @@
+package wordcountservice;
+
+import java.util.Arrays;
+
+/**
+ * WordCountBatch:
+ *   private word_count table of one ingestion worker. tokens are counted
+ *   here without any lock or atomic operation and the distinct words are
+ *   merged into the shared store in one go, so the store sees one update
+ *   per distinct word and batch instead of one per token. words are kept
+ *   as UTF-8 bytes in a single growing buffer, entries are numbered in
+ *   insertion order. not thread-safe.
+ */
+public class WordCountBatch
+{
+	// default number of distinct words after which a batch should be merged
+	public static final int DEFAULT_LIMIT = 1 << 16;
+
+	private final WordHasher hasher;
+
+	// slot holds entry + 1, zero marks a free slot
+	private int[] table = new int[1024];
+	private int[] hashes = new int[512];
+	private int[] offsets = new int[512];
+	private int[] lengths = new int[512];
+	private long[] counts = new long[512];
+	private int size = 0;
+
+	private byte[] keys = new byte[8192];
+	private int used = 0;
+	private long tokens = 0;
+
+    /**
+     * constructor WordCountBatch, hashing with Murmur3
+     */
+	public WordCountBatch()
+	{
+		this(new Murmur3WordHasher());
+	}
+
+    /**
+     * constructor WordCountBatch
+     *
+     * @param hasher: hasher placing words in the table
+     */
+	public WordCountBatch(WordHasher hasher)
+	{
+		this.hasher = hasher;
+	}
+
+    /**
+     * count one occurrence of a word
+     *
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     */
+	public void add(byte[] bytes, int offset, int length)
+	{
+		add(hasher.hash(bytes, offset, length), bytes, offset, length, 1);
+	}
+
+    /**
+     * count occurrences of a word
+     *
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     * @param count: number of occurrences
+     */
+	public void add(byte[] bytes, int offset, int length, long count)
+	{
+		add(hasher.hash(bytes, offset, length), bytes, offset, length, count);
+	}
+
+    /**
+     * count occurrences of a word whose hash is already known
+     *
+     * @param hash: hash of the word by this batch's hasher
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     * @param count: number of occurrences
+     */
+	public void add(int hash, byte[] bytes, int offset, int length, long count)
+	{
+		tokens += count;
+		int mask = table.length - 1;
+		int slot = (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(table.length));
+		while (true)
+		{
+			int entry = table[slot] - 1;
+			if (entry < 0)
+				break;
+			if (hashes[entry] == hash && keyEquals(entry, bytes, offset, length))
+			{
+				counts[entry] += count;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (size == hashes.length)
+			growEntries();
+		if (used + length > keys.length)
+		{
+			byte[] larger = new byte[Math.max(used + length, keys.length * 2)];
+			System.arraycopy(keys, 0, larger, 0, used);
+			keys = larger;
+		}
+		System.arraycopy(bytes, offset, keys, used, length);
+		hashes[size] = hash;
+		offsets[size] = used;
+		lengths[size] = length;
+		counts[size] = count;
+		used += length;
+		table[slot] = ++size;
+		if (size * 2 > table.length)
+			rehash();
+	}
+
+    /**
+     * number of distinct words
+     */
+	public int size()
+	{
+		return size;
+	}
+
+    /**
+     * number of occurrences counted since the last clear
+     */
+	public long getTokens()
+	{
+		return tokens;
+	}
+
+    /**
+     * bytes currently allocated by the table, keys included
+     */
+	public long getAllocatedBytes()
+	{
+		return table.length * 4L + hashes.length * 20L + keys.length;
+	}
+
+    /**
+     * hash of an entry's word
+     *
+     * @param entry: entry number, below size()
+     */
+	public int getHash(int entry)
+	{
+		return hashes[entry];
+	}
+
+    /**
+     * buffer holding the words of all entries
+     */
+	public byte[] getKeys()
+	{
+		return keys;
+	}
+
+    /**
+     * first byte of an entry's word in getKeys()
+     *
+     * @param entry: entry number, below size()
+     */
+	public int getKeyOffset(int entry)
+	{
+		return offsets[entry];
+	}
+
+    /**
+     * byte length of an entry's word
+     *
+     * @param entry: entry number, below size()
+     */
+	public int getKeyLength(int entry)
+	{
+		return lengths[entry];
+	}
+
+    /**
+     * occurrences of an entry's word
+     *
+     * @param entry: entry number, below size()
+     */
+	public long getCount(int entry)
+	{
+		return counts[entry];
+	}
+
+    /**
+     * forget all words, keeping the allocated buffers
+     */
+	public void clear()
+	{
+		Arrays.fill(table, 0);
+		size = 0;
+		used = 0;
+		tokens = 0;
+	}
+
+    /**
+     * compare an entry's word against bytes
+     *
+     * @param entry: entry number
+     * @param bytes: buffer holding the other word
+     * @param offset: first byte of the other word
+     * @param length: number of bytes of the other word
+     */
+	private boolean keyEquals(int entry, byte[] bytes, int offset, int length)
+	{
+		if (lengths[entry] != length)
+			return false;
+		int start = offsets[entry];
+		for (int i = 0; i < length; i++)
+		{
+			if (keys[start + i] != bytes[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * double the per-entry arrays
+     */
+	private void growEntries()
+	{
+		int capacity = hashes.length * 2;
+		int[] grownHashes = new int[capacity];
+		int[] grownOffsets = new int[capacity];
+		int[] grownLengths = new int[capacity];
+		long[] grownCounts = new long[capacity];
+		System.arraycopy(hashes, 0, grownHashes, 0, size);
+		System.arraycopy(offsets, 0, grownOffsets, 0, size);
+		System.arraycopy(lengths, 0, grownLengths, 0, size);
+		System.arraycopy(counts, 0, grownCounts, 0, size);
+		hashes = grownHashes;
+		offsets = grownOffsets;
+		lengths = grownLengths;
+		counts = grownCounts;
+	}
+
+    /**
+     * double the slot table
+     */
+	private void rehash()
+	{
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+		int shift = 32 - Integer.numberOfTrailingZeros(table.length);
+		for (int entry = 0; entry < size; entry++)
+		{
+			int slot = (hashes[entry] * 0x9E3779B9) >>> shift;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = entry + 1;
+		}
+	}
+}
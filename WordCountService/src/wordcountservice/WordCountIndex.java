@@ -0,0 +1,723 @@
+package wordcountservice;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * WordCountIndex:
+ *   read-only <word, word_count> index frozen from the corpus once
+ *   ingestion is done. words are placed by a minimal perfect hash
+ *   (hash-and-displace: every bucket of about four words carries a pilot
+ *   that sends its words to distinct free slots, single-word buckets
+ *   name their slot directly), so slot i holds exactly one word, its
+ *   UTF-8 bytes and its word_count in packed buffers. a lookup hashes the
+ *   word twice, reads one pilot and compares one key, so it never locks,
+ *   and a word that is not in the corpus is rejected by that single
+ *   comparison.
+ *
+ *   an index too large to place in memory is instead streamed to disk by
+ *   SortedWriter in sorted layout: slots ordered by bucket hash and then
+ *   by bytes, a hash section in place of the pilots, and a lookup binary
+ *   searches the mapped hashes before comparing keys.
+ *
+ *   all sections are plain ByteBuffers, so the index can equally live on
+ *   the heap or in a mapped file. the key section is limited to 2GB.
+ *   placement uses fixed Murmur3 seeds rather than the configured
+ *   WordHasher, so an index built once is valid for any configuration.
+ */
+public class WordCountIndex
+{
+	// average words per bucket
+	private static final int BUCKET_SIZE = 4;
+	// pilots tried per bucket before giving up, far above what placement needs
+	private static final int MAX_PILOT = 1 << 24;
+	// hash seeds for bucket selection and slot placement
+	private static final Murmur3WordHasher BUCKET_HASHER = new Murmur3WordHasher(0x5bd1e995);
+	private static final Murmur3WordHasher SLOT_HASHER = new Murmur3WordHasher(0x27d4eb2f);
+
+	private final int size;
+	private final int buckets;
+	// one int per bucket: pilot when >= 0, -(slot + 1) for single-word buckets
+	private final ByteBuffer pilots;
+	// sorted layout only: bucket hash by slot, ascending unsigned
+	private final ByteBuffer hashes;
+	// size + 1 ints, word of slot i spans [offset i, offset i + 1) of keys
+	private final ByteBuffer keyOffsets;
+	private final ByteBuffer keys;
+	// one long per slot
+	private final ByteBuffer wordCounts;
+	// word_count beyond Long.MAX_VALUE by slot, rare
+	private final HashMap<Integer, BigInteger> wordCountOverflow;
+
+    /**
+     * constructor WordCountIndex, over already built sections
+     *
+     * @param size: number of words
+     * @param pilots: bucket pilot section
+     * @param keyOffsets: key offset section
+     * @param keys: UTF-8 key section
+     * @param wordCounts: word_count section
+     * @param wordCountOverflow: word_count beyond Long.MAX_VALUE by slot
+     */
+	public WordCountIndex(int size, ByteBuffer pilots, ByteBuffer keyOffsets, ByteBuffer keys,
+			ByteBuffer wordCounts, HashMap<Integer, BigInteger> wordCountOverflow)
+	{
+		this(size, pilots, null, keyOffsets, keys, wordCounts, wordCountOverflow);
+	}
+
+    /**
+     * constructor WordCountIndex, over already built sections of either layout
+     *
+     * @param size: number of words
+     * @param pilots: bucket pilot section, null for the sorted layout
+     * @param hashes: hash section of the sorted layout, null otherwise
+     * @param keyOffsets: key offset section
+     * @param keys: UTF-8 key section
+     * @param wordCounts: word_count section
+     * @param wordCountOverflow: word_count beyond Long.MAX_VALUE by slot
+     */
+	private WordCountIndex(int size, ByteBuffer pilots, ByteBuffer hashes, ByteBuffer keyOffsets, ByteBuffer keys,
+			ByteBuffer wordCounts, HashMap<Integer, BigInteger> wordCountOverflow)
+	{
+		this.size = size;
+		this.buckets = pilots != null ? pilots.capacity() / 4 : 0;
+		this.pilots = pilots;
+		this.hashes = hashes;
+		this.keyOffsets = keyOffsets;
+		this.keys = keys;
+		this.wordCounts = wordCounts;
+		this.wordCountOverflow = wordCountOverflow;
+	}
+
+    /**
+     * freeze the word_count of every word of a store into a new index
+     *
+     * @param store: store filled by ingestion, no longer written
+     */
+	public static WordCountIndex build(WordCountStore store)
+	{
+		Builder builder = new Builder();
+		store.visit(builder);
+		return builder.build();
+	}
+
+    /**
+     * hasher giving the order of the sorted layout
+     */
+	public static WordHasher getOrderHasher()
+	{
+		return BUCKET_HASHER;
+	}
+
+    /**
+     * compare two words in the order of the sorted layout: unsigned hash by
+     * getOrderHasher(), then unsigned bytes, then length
+     *
+     * @param hash: order hash of the first word
+     * @param bytes: buffer holding the first word
+     * @param offset: first byte of the first word
+     * @param length: number of bytes of the first word
+     * @param otherHash: order hash of the second word
+     * @param other: buffer holding the second word
+     * @param otherOffset: first byte of the second word
+     * @param otherLength: number of bytes of the second word
+     * @return negative, zero or positive as the first word sorts before, equal to or after the second
+     */
+	public static int compare(int hash, byte[] bytes, int offset, int length,
+			int otherHash, byte[] other, int otherOffset, int otherLength)
+	{
+		if (hash != otherHash)
+			return (hash ^ Integer.MIN_VALUE) < (otherHash ^ Integer.MIN_VALUE) ? -1 : 1;
+		int common = Math.min(length, otherLength);
+		for (int i = 0; i < common; i++)
+		{
+			int difference = (bytes[offset + i] & 0xFF) - (other[otherOffset + i] & 0xFF);
+			if (difference != 0)
+				return difference;
+		}
+		return length - otherLength;
+	}
+
+    /**
+     * number of words in the index
+     */
+	public int size()
+	{
+		return size;
+	}
+
+    /**
+     * slot of a word
+     *
+     * @param word: word to look up
+     * @return slot, or -1 when the word is not in the index
+     */
+	public int find(String word)
+	{
+		byte[] bytes = Utf8.scratch(word);
+		return find(bytes, 0, Utf8.encode(word, bytes));
+	}
+
+    /**
+     * slot of a word given as UTF-8 bytes
+     *
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     * @return slot, or -1 when the word is not in the index
+     */
+	public int find(byte[] bytes, int offset, int length)
+	{
+		if (size == 0)
+			return -1;
+
+		int hash = BUCKET_HASHER.hash(bytes, offset, length);
+		if (hashes != null)
+		{
+			// first slot whose hash is not below the word's, then the slots sharing its hash
+			long wanted = hash & 0xffffffffL;
+			int low = 0;
+			int high = size;
+			while (low < high)
+			{
+				int middle = (low + high) >>> 1;
+				if ((hashes.getInt(middle * 4) & 0xffffffffL) < wanted)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			for (int slot = low; slot < size && hashes.getInt(slot * 4) == hash; slot++)
+			{
+				if (keyEquals(slot, bytes, offset, length))
+					return slot;
+			}
+			return -1;
+		}
+
+		int pilot = pilots.getInt(bucket(hash, buckets) * 4);
+		int slot = pilot < 0 ? -(pilot + 1) : slot(SLOT_HASHER.hash(bytes, offset, length), pilot, size);
+		return keyEquals(slot, bytes, offset, length) ? slot : -1;
+	}
+
+    /**
+     * compare the key of a slot against a word
+     *
+     * @param slot: slot to compare
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     */
+	private boolean keyEquals(int slot, byte[] bytes, int offset, int length)
+	{
+		int start = keyOffsets.getInt(slot * 4);
+		if (keyOffsets.getInt(slot * 4 + 4) - start != length)
+			return false;
+		for (int i = 0; i < length; i++)
+		{
+			if (keys.get(start + i) != bytes[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+    /**
+     * word_count of a slot as a long, Long.MAX_VALUE once it overflowed
+     *
+     * @param slot: slot returned by find
+     */
+	public long getWordCount(int slot)
+	{
+		return wordCounts.getLong(slot * 8);
+	}
+
+    /**
+     * word_count of a slot beyond Long.MAX_VALUE, null while it fits a long
+     *
+     * @param slot: slot returned by find
+     */
+	public BigInteger getWordCountOverflow(int slot)
+	{
+		if (wordCountOverflow.isEmpty() || getWordCount(slot) != Long.MAX_VALUE)
+			return null;
+		return wordCountOverflow.get(slot);
+	}
+
+    /**
+     * write the index at the channel's position: a length-prefixed header,
+     * then the pilot (or hash), key offset, key and word_count sections,
+     * each section starting on an 8 byte boundary so it can be mapped back
+     *
+     * @param channel: channel to write to
+     */
+	public void write(FileChannel channel) throws IOException
+	{
+		writeHeader(channel, size, buckets, keys.capacity(), wordCountOverflow);
+		for (ByteBuffer section : new ByteBuffer[]{hashes != null ? hashes : pilots, keyOffsets, keys, wordCounts})
+		{
+			pad(channel);
+			ByteBuffer view = section.duplicate();
+			view.clear();
+			writeFully(channel, view);
+		}
+	}
+
+    /**
+     * write the length-prefixed header of an index, zero buckets marking the sorted layout
+     *
+     * @param channel: channel to write to
+     * @param size: number of words
+     * @param buckets: bucket count, 0 for the sorted layout
+     * @param keyBytes: length of the key section
+     * @param wordCountOverflow: word_count beyond Long.MAX_VALUE by slot
+     */
+	private static void writeHeader(FileChannel channel, int size, int buckets, int keyBytes,
+			HashMap<Integer, BigInteger> wordCountOverflow) throws IOException
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(size);
+		out.writeInt(buckets);
+		out.writeInt(keyBytes);
+		out.writeInt(wordCountOverflow.size());
+		for (Map.Entry<Integer, BigInteger> overflow : wordCountOverflow.entrySet())
+		{
+			byte[] value = overflow.getValue().toByteArray();
+			out.writeInt(overflow.getKey());
+			out.writeInt(value.length);
+			out.write(value);
+		}
+		out.flush();
+
+		ByteBuffer prefix = ByteBuffer.allocate(4);
+		prefix.putInt(0, header.size());
+		writeFully(channel, prefix);
+		writeFully(channel, ByteBuffer.wrap(header.toByteArray()));
+	}
+
+    /**
+     * map an index written by write, sections stay on disk and are paged in on demand
+     *
+     * @param channel: channel positioned where the index starts
+     */
+	public static WordCountIndex map(FileChannel channel) throws IOException
+	{
+		ByteBuffer prefix = ByteBuffer.allocate(4);
+		readFully(channel, prefix);
+		ByteBuffer header = ByteBuffer.allocate(prefix.getInt(0));
+		readFully(channel, header);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+		int size = in.readInt();
+		int buckets = in.readInt();
+		int keyBytes = in.readInt();
+		int overflowCount = in.readInt();
+		HashMap<Integer, BigInteger> wordCountOverflow = new HashMap<Integer, BigInteger>();
+		for (int i = 0; i < overflowCount; i++)
+		{
+			int slot = in.readInt();
+			byte[] value = new byte[in.readInt()];
+			in.readFully(value);
+			wordCountOverflow.put(slot, new BigInteger(value));
+		}
+
+		// pilots per bucket, or hashes per slot for the sorted layout
+		ByteBuffer placement = mapSection(channel, (buckets > 0 ? buckets : size) * 4L);
+		ByteBuffer keyOffsets = mapSection(channel, (size + 1) * 4L);
+		ByteBuffer keys = mapSection(channel, keyBytes);
+		ByteBuffer wordCounts = mapSection(channel, size * 8L);
+		if (buckets == 0)
+			return new WordCountIndex(size, null, placement, keyOffsets, keys, wordCounts, wordCountOverflow);
+		return new WordCountIndex(size, placement, keyOffsets, keys, wordCounts, wordCountOverflow);
+	}
+
+    /**
+     * map the next section of a channel read-only
+     *
+     * @param channel: channel positioned at or before the section's 8 byte boundary
+     * @param length: section length in bytes
+     */
+	private static ByteBuffer mapSection(FileChannel channel, long length) throws IOException
+	{
+		long position = (channel.position() + 7) & ~7L;
+		if (position + length > channel.size())
+			throw new IOException("truncated index section at "+position);
+		ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		channel.position(position + length);
+		return section;
+	}
+
+    /**
+     * write zero bytes up to the next 8 byte boundary
+     *
+     * @param channel: channel to pad
+     */
+	private static void pad(FileChannel channel) throws IOException
+	{
+		int padding = (int) (-channel.position() & 7);
+		if (padding > 0)
+			writeFully(channel, ByteBuffer.allocate(padding));
+	}
+
+    /**
+     * write a whole buffer
+     */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+    /**
+     * fill a whole buffer
+     */
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) < 0)
+				throw new IOException("truncated index header");
+		}
+	}
+
+    /**
+     * bucket of a word
+     *
+     * @param hash: bucket hash of the word
+     * @param buckets: bucket count
+     */
+	private static int bucket(int hash, int buckets)
+	{
+		return (int) ((hash & 0xffffffffL) % buckets);
+	}
+
+    /**
+     * slot a pilot sends a word to
+     *
+     * @param hash: slot hash of the word
+     * @param pilot: bucket pilot
+     * @param size: slot count
+     */
+	private static int slot(int hash, int pilot, int size)
+	{
+		int h = hash ^ (pilot * 0x9E3779B9);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return (int) ((h & 0xffffffffL) % size);
+	}
+
+	/**
+	 * SortedWriter:
+	 *   streams words arriving in the order of compare() into the sections
+	 *   of a sorted layout index, kept in temporary files until written out,
+	 *   so its memory does not depend on the number of words
+	 */
+	public static class SortedWriter
+	{
+		// hash, key offset, key and word_count sections
+		private final File[] files = new File[4];
+		private final DataOutputStream[] sections = new DataOutputStream[4];
+		private final HashMap<Integer, BigInteger> overflow = new HashMap<Integer, BigInteger>();
+		private int size = 0;
+		private long keyBytes = 0;
+
+		// last word added, to check the order
+		private int lastHash = 0;
+		private byte[] last = new byte[64];
+		private int lastLength = -1;
+
+        /**
+         * constructor SortedWriter
+         *
+         * @param directory: directory for the temporary section files
+         */
+		public SortedWriter(File directory) throws IOException
+		{
+			try
+			{
+				for (int i = 0; i < files.length; i++)
+				{
+					files[i] = File.createTempFile("index", ".section", directory);
+					sections[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), 1 << 16));
+				}
+			}
+			catch(IOException e)
+			{
+				close();
+				throw e;
+			}
+		}
+
+        /**
+         * append the next word, which must sort after the previous one
+         *
+         * @param hash: order hash of the word
+         * @param bytes: buffer holding the word
+         * @param offset: first byte of the word
+         * @param length: number of bytes of the word
+         * @param wordCount: word_count, Long.MAX_VALUE once it overflowed
+         * @param wordCountOverflow: word_count beyond Long.MAX_VALUE, or null
+         */
+		public void add(int hash, byte[] bytes, int offset, int length, long wordCount, BigInteger wordCountOverflow)
+				throws IOException
+		{
+			if (lastLength >= 0 && compare(lastHash, last, 0, lastLength, hash, bytes, offset, length) >= 0)
+				throw new IllegalStateException("words not in index order");
+			if (keyBytes + length > Integer.MAX_VALUE)
+				throw new IllegalStateException("index keys exceed 2GB: "+(keyBytes + length));
+
+			sections[0].writeInt(hash);
+			sections[1].writeInt((int) keyBytes);
+			sections[2].write(bytes, offset, length);
+			sections[3].writeLong(wordCount);
+			if (wordCountOverflow != null)
+				overflow.put(size, wordCountOverflow);
+			keyBytes += length;
+			size++;
+
+			if (length > last.length)
+				last = new byte[Math.max(length, last.length * 2)];
+			System.arraycopy(bytes, offset, last, 0, length);
+			lastLength = length;
+			lastHash = hash;
+		}
+
+        /**
+         * number of words added
+         */
+		public int size()
+		{
+			return size;
+		}
+
+        /**
+         * write the index at the channel's position, in the format read by map
+         *
+         * @param channel: channel to write to
+         */
+		public void write(FileChannel channel) throws IOException
+		{
+			sections[1].writeInt((int) keyBytes);
+			for (DataOutputStream section : sections)
+				section.close();
+
+			writeHeader(channel, size, 0, (int) keyBytes, overflow);
+			for (File file : files)
+			{
+				pad(channel);
+				FileInputStream in = new FileInputStream(file);
+				try
+				{
+					FileChannel source = in.getChannel();
+					long length = source.size();
+					long position = 0;
+					while (position < length)
+						position += source.transferTo(position, length - position, channel);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+		}
+
+        /**
+         * delete the temporary section files
+         */
+		public void close()
+		{
+			for (int i = 0; i < files.length; i++)
+			{
+				try
+				{
+					if (sections[i] != null)
+						sections[i].close();
+				}
+				catch(IOException e)
+				{
+					// the file is deleted anyway
+				}
+				if (files[i] != null)
+					files[i].delete();
+			}
+		}
+	}
+
+	/**
+	 * Builder:
+	 *   collects words from a store visit, then places them
+	 */
+	private static class Builder implements WordCountStore.Visitor
+	{
+		private final ByteArena arena = new ByteArena();
+		private long[] addresses = new long[1024];
+		private int[] bucketHashes = new int[1024];
+		private int[] slotHashes = new int[1024];
+		private long[] counts = new long[1024];
+		private HashMap<Integer, BigInteger> overflow = new HashMap<Integer, BigInteger>();
+		private int size = 0;
+		private long keyBytes = 0;
+
+		@Override
+		public void visit(byte[] bytes, int offset, int length, WordCount counts)
+		{
+			if (size == addresses.length)
+			{
+				int grown = size * 2;
+				long[] addresses = new long[grown];
+				int[] bucketHashes = new int[grown];
+				int[] slotHashes = new int[grown];
+				long[] wordCounts = new long[grown];
+				System.arraycopy(this.addresses, 0, addresses, 0, size);
+				System.arraycopy(this.bucketHashes, 0, bucketHashes, 0, size);
+				System.arraycopy(this.slotHashes, 0, slotHashes, 0, size);
+				System.arraycopy(this.counts, 0, wordCounts, 0, size);
+				this.addresses = addresses;
+				this.bucketHashes = bucketHashes;
+				this.slotHashes = slotHashes;
+				this.counts = wordCounts;
+			}
+
+			addresses[size] = arena.append(bytes, offset, length);
+			bucketHashes[size] = BUCKET_HASHER.hash(bytes, offset, length);
+			slotHashes[size] = SLOT_HASHER.hash(bytes, offset, length);
+			this.counts[size] = counts.getWordCountLong();
+			if (counts.getWordCountOverflow() != null)
+				overflow.put(size, counts.getWordCountOverflow());
+			keyBytes += length;
+			size++;
+		}
+
+        /**
+         * place the collected words and pack the sections
+         */
+		private WordCountIndex build()
+		{
+			if (keyBytes > Integer.MAX_VALUE)
+				throw new IllegalStateException("index keys exceed 2GB: "+keyBytes);
+
+			int buckets = Math.max(1, size / BUCKET_SIZE);
+
+			// group words by bucket with a counting sort
+			int[] bucketStart = new int[buckets + 1];
+			for (int i = 0; i < size; i++)
+				bucketStart[bucket(bucketHashes[i], buckets) + 1]++;
+			for (int b = 0; b < buckets; b++)
+				bucketStart[b + 1] += bucketStart[b];
+			int[] members = new int[size];
+			int[] fill = new int[buckets];
+			for (int i = 0; i < size; i++)
+			{
+				int b = bucket(bucketHashes[i], buckets);
+				members[bucketStart[b] + fill[b]++] = i;
+			}
+
+			// place larger buckets first, they are the hardest to fit
+			int maxBucket = 0;
+			for (int b = 0; b < buckets; b++)
+				maxBucket = Math.max(maxBucket, bucketStart[b + 1] - bucketStart[b]);
+			int[] bySizeStart = new int[maxBucket + 2];
+			for (int b = 0; b < buckets; b++)
+				bySizeStart[maxBucket - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+			for (int s = 0; s <= maxBucket; s++)
+				bySizeStart[s + 1] += bySizeStart[s];
+			int[] order = new int[buckets];
+			for (int b = 0; b < buckets; b++)
+				order[bySizeStart[maxBucket - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+
+			ByteBuffer pilots = ByteBuffer.allocate(buckets * 4);
+			int[] slotOf = new int[size];
+			boolean[] taken = new boolean[size];
+			int[] trial = new int[maxBucket];
+			int nextFree = 0;
+			for (int b : order)
+			{
+				int start = bucketStart[b];
+				int count = bucketStart[b + 1] - start;
+				if (count == 0)
+					break;
+
+				if (count == 1)
+				{
+					while (taken[nextFree])
+						nextFree++;
+					taken[nextFree] = true;
+					slotOf[members[start]] = nextFree;
+					pilots.putInt(b * 4, -(nextFree + 1));
+					continue;
+				}
+
+				for (int pilot = 0; ; pilot++)
+				{
+					// only two words sharing both 32-bit hashes can get here
+					if (pilot == MAX_PILOT)
+						throw new IllegalStateException("no pilot found for bucket "+b);
+
+					int placed = 0;
+					for (; placed < count; placed++)
+					{
+						int s = slot(slotHashes[members[start + placed]], pilot, size);
+						if (taken[s])
+							break;
+						taken[s] = true;
+						trial[placed] = s;
+					}
+					if (placed == count)
+					{
+						for (int k = 0; k < count; k++)
+							slotOf[members[start + k]] = trial[k];
+						pilots.putInt(b * 4, pilot);
+						break;
+					}
+					// undo the partial placement and try the next pilot
+					for (int k = 0; k < placed; k++)
+						taken[trial[k]] = false;
+				}
+			}
+
+			// lay keys and counts out in slot order
+			int[] wordAt = new int[size];
+			for (int i = 0; i < size; i++)
+				wordAt[slotOf[i]] = i;
+			ByteBuffer keyOffsets = ByteBuffer.allocate((size + 1) * 4);
+			ByteBuffer keys = ByteBuffer.allocate((int) keyBytes);
+			ByteBuffer wordCounts = ByteBuffer.allocate(size * 8);
+			HashMap<Integer, BigInteger> wordCountOverflow = new HashMap<Integer, BigInteger>();
+			byte[] bytes = new byte[256];
+			int offset = 0;
+			for (int s = 0; s < size; s++)
+			{
+				int i = wordAt[s];
+				int length = arena.length(addresses[i]);
+				if (length > bytes.length)
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				arena.copy(addresses[i], bytes);
+				keyOffsets.putInt(s * 4, offset);
+				keys.position(offset);
+				keys.put(bytes, 0, length);
+				offset += length;
+				wordCounts.putLong(s * 8, counts[i]);
+				if (overflow.containsKey(i))
+					wordCountOverflow.put(s, overflow.get(i));
+			}
+			keyOffsets.putInt(size * 4, offset);
+			keys.clear();
+
+			return new WordCountIndex(size, pilots, keyOffsets, keys, wordCounts, wordCountOverflow);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package wordcountservice;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * WordCountOverlay:
+ *   signed word_count changes applied on top of a frozen WordCountIndex
+ *   after corpus files were added, modified or deleted, or text was
+ *   streamed in. a word of the index is identified by its slot, a word the
+ *   index does not know gets an id from size() upwards, so per-file
+ *   contributions can be kept as plain int ids. deltas are written under
+ *   the overlay monitor and read by queries without locking; the
+ *   generation counts applied changes and, with the overlay's creation
+ *   time, versions the word_counts it answers.
+ */
+public class WordCountOverlay
+{
+	private final WordCountIndex index;
+
+	// delta by slot, for words of the index, null until the first one
+	private volatile SlotDeltas slotDeltas = null;
+	// delta by word, for words added after the index was built
+	private final ConcurrentHashMap<String, Long> wordDeltas = new ConcurrentHashMap<String, Long>();
+	// ids of words outside the index, guarded by this
+	private final ConcurrentHashMap<String, Integer> newIds = new ConcurrentHashMap<String, Integer>();
+	private final ArrayList<String> newWords = new ArrayList<String>();
+
+	// time the overlay was created, tells overlays of different runs apart
+	private final long created = System.currentTimeMillis();
+	private volatile long generation = 0;
+	// time of the last applied change, written before generation
+	private volatile long modified = created;
+
+	/**
+	 * SlotDeltas:
+	 *   open-addressed table of the deltas of index slots, so that a query
+	 *   reads its delta without boxing the slot. an entry holds slot + 1, 0
+	 *   marks a free one. entries are added under the overlay monitor, the
+	 *   delta before the key so that a reader finding the key sees its delta;
+	 *   a delta going back to 0 keeps its entry, which reads like no delta
+	 */
+	private static class SlotDeltas
+	{
+		private final AtomicIntegerArray keys;
+		private final AtomicLongArray deltas;
+		// entries in use, guarded by the overlay monitor
+		private int size = 0;
+
+		private SlotDeltas(int capacity)
+		{
+			keys = new AtomicIntegerArray(capacity);
+			deltas = new AtomicLongArray(capacity);
+		}
+
+		// first entry of the probe sequence of a slot
+		private int start(int slot)
+		{
+			return ((slot + 1) * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length()));
+		}
+
+		private long get(int slot)
+		{
+			int capacity = keys.length();
+			for (int entry = start(slot); ; entry = (entry + 1) & (capacity - 1))
+			{
+				int key = keys.get(entry);
+				if (key == 0)
+					return 0;
+				if (key == slot + 1)
+					return deltas.get(entry);
+			}
+		}
+
+		// returns false when the table is too full to take a new slot
+		private boolean add(int slot, long delta)
+		{
+			int capacity = keys.length();
+			for (int entry = start(slot); ; entry = (entry + 1) & (capacity - 1))
+			{
+				int key = keys.get(entry);
+				if (key == slot + 1)
+				{
+					deltas.set(entry, deltas.get(entry) + delta);
+					return true;
+				}
+				if (key == 0)
+				{
+					if ((size + 1) * 2 > capacity)
+						return false;
+					deltas.set(entry, delta);
+					keys.set(entry, slot + 1);
+					size++;
+					return true;
+				}
+			}
+		}
+
+		// a table twice as large holding the nonzero deltas
+		private SlotDeltas grow()
+		{
+			SlotDeltas larger = new SlotDeltas(keys.length() * 2);
+			for (int entry = 0; entry < keys.length(); entry++)
+			{
+				if (keys.get(entry) != 0 && deltas.get(entry) != 0)
+					larger.add(keys.get(entry) - 1, deltas.get(entry));
+			}
+			return larger;
+		}
+	}
+
+    /**
+     * constructor WordCountOverlay
+     *
+     * @param index: frozen index the deltas apply to
+     */
+	public WordCountOverlay(WordCountIndex index)
+	{
+		this.index = index;
+	}
+
+    /**
+     * frozen index the deltas apply to
+     */
+	public WordCountIndex getIndex()
+	{
+		return index;
+	}
+
+    /**
+     * id of a word: its slot in the index, or an id past the index assigned
+     * on first use
+     *
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     */
+	public synchronized int id(byte[] bytes, int offset, int length)
+	{
+		int slot = index.find(bytes, offset, length);
+		if (slot >= 0)
+			return slot;
+
+		String word = new String(bytes, offset, length, Utf8.UTF8);
+		Integer id = newIds.get(word);
+		if (id == null)
+		{
+			id = index.size() + newWords.size();
+			newWords.add(word);
+			newIds.put(word, id);
+		}
+		return id;
+	}
+
+    /**
+     * add a signed change to the word_count of a word
+     *
+     * @param id: word id returned by id()
+     * @param delta: change of word_count
+     */
+	public synchronized void add(int id, long delta)
+	{
+		if (delta == 0)
+			return;
+		if (id < index.size())
+		{
+			SlotDeltas deltas = slotDeltas;
+			if (deltas == null)
+				deltas = new SlotDeltas(16);
+			// build the larger table aside, then publish it with the new delta in it
+			while (!deltas.add(id, delta))
+				deltas = deltas.grow();
+			slotDeltas = deltas;
+			return;
+		}
+
+		String word = newWords.get(id - index.size());
+		Long current = wordDeltas.get(word);
+		long value = (current == null ? 0 : current) + delta;
+		if (value == 0)
+			wordDeltas.remove(word);
+		else
+			wordDeltas.put(word, value);
+	}
+
+    /**
+     * add the words of a batch, taking the overlay monitor once, and count
+     * it as one change
+     *
+     * @param batch: words and their occurrences, left unchanged
+     */
+	public synchronized void addWords(WordCountBatch batch)
+	{
+		byte[] keys = batch.getKeys();
+		for (int entry = 0; entry < batch.size(); entry++)
+			add(id(keys, batch.getKeyOffset(entry), batch.getKeyLength(entry)), batch.getCount(entry));
+		modified = System.currentTimeMillis();
+		generation++;
+	}
+
+    /**
+     * mark one change as fully applied
+     */
+	public synchronized void advance()
+	{
+		modified = System.currentTimeMillis();
+		generation++;
+	}
+
+    /**
+     * number of changes applied so far
+     */
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+    /**
+     * time the overlay was created, in milliseconds since the epoch
+     */
+	public long getCreated()
+	{
+		return created;
+	}
+
+    /**
+     * time of the last applied change, or of creation when there was none;
+     * read after getGeneration() it is at least as recent as that generation
+     */
+	public long getLastModified()
+	{
+		return modified;
+	}
+
+    /**
+     * pair query counters with the current word_count of a word, index plus delta
+     *
+     * @param counts: snapshot returned by the query_count store, its word_count is replaced
+     * @param word: queried word
+     * @return counts
+     */
+	public WordCount apply(WordCount counts, String word)
+	{
+		// a word of the index is looked up without boxing, an unchanged corpus skips the lookups
+		int slot = index.find(word);
+		long delta = 0;
+		if (slot >= 0)
+		{
+			SlotDeltas deltas = slotDeltas;
+			if (deltas != null)
+				delta = deltas.get(slot);
+		}
+		else if (!wordDeltas.isEmpty())
+		{
+			Long value = wordDeltas.get(word);
+			if (value != null)
+				delta = value;
+		}
+		if (slot < 0)
+			return delta == 0 ? counts : counts.setWordCount(delta, null);
+
+		long base = index.getWordCount(slot);
+		BigInteger baseOverflow = index.getWordCountOverflow(slot);
+		if (delta == 0)
+			return counts.setWordCount(base, baseOverflow);
+		if (baseOverflow == null && (delta < 0 || base <= Long.MAX_VALUE - delta))
+			return counts.setWordCount(base + delta, null);
+
+		BigInteger value = (baseOverflow != null ? baseOverflow : BigInteger.valueOf(base)).add(BigInteger.valueOf(delta));
+		if (value.bitLength() < 64 && value.longValue() != Long.MAX_VALUE)
+			return counts.setWordCount(value.longValue(), null);
+		return counts.setWordCount(Long.MAX_VALUE, value);
+	}
+}
@@ -1,22 +1,213 @@
 package wordcountservice;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-@WebServlet(urlPatterns={"/wordcountservice/query"})
+@WebServlet(urlPatterns={"/wordcountservice/query"}, asyncSupported=true)
 @SuppressWarnings("serial")
 public class WordCountServiceEndPoint extends HttpServlet 
 {
+	// default number of words one batch query may carry
+	static final int DEFAULT_BATCH_WORDS = 1000;
+
+	// default number of queries waiting for a query thread, further queries are turned away
+	private static final int DEFAULT_QUEUE = 4096;
+
+	private static final byte[] PARTIAL = " partial".getBytes(Utf8.UTF8);
+
+	// queries run here so that connector threads only parse requests and hand them over
+	private ThreadPoolExecutor executor = null;
+
+	// answered queries kept for reuse, so that handing a query over allocates nothing
+	private ArrayBlockingQueue<Query> idle = null;
+
+	// queries waiting longer than this for a query thread are turned away, 0 waits forever
+	private long timeoutMillis = 0;
+
+	private int batchWords = DEFAULT_BATCH_WORDS;
+
+	// the query_count journal failure is logged by the first query turned away only
+	private final AtomicBoolean journalFailureLogged = new AtomicBoolean();
+
+	/**
+	 * Query:
+	 *   one query handed over to the query executor, also listening to its
+	 *   async request. whoever claims it first answers it: the query thread,
+	 *   a client error or a rejection. once its request completed it is
+	 *   reused for another one, unless a client error dropped it while it
+	 *   was still waiting in the executor queue
+	 */
+	private class Query implements Runnable, AsyncListener
+	{
+		private AsyncContext async;
+		private String[] words;
+		private long queued;
+		// guarded by this
+		private boolean claimed;
+		private boolean reusable;
+
+		private synchronized void start(AsyncContext async, String[] words)
+		{
+			this.async = async;
+			this.words = words;
+			this.queued = System.nanoTime();
+			this.claimed = false;
+			this.reusable = false;
+		}
+
+		// the query thread and a rejection claim the query once the executor let go of it
+		private synchronized boolean claim(boolean reusable)
+		{
+			if (claimed)
+				return false;
+			claimed = true;
+			this.reusable = reusable;
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			if (!claim(true))
+				return;
+			try
+			{
+				HttpServletResponse response = (HttpServletResponse) async.getResponse();
+				if (timeoutMillis > 0 && System.nanoTime() - queued > timeoutMillis * 1000000L)
+					turnAway(response, "query timed out in queue");
+				else
+					answer(words, response);
+			}
+			catch(IOException e)
+			{
+				getServletContext().log("query: response failed "+e);
+			}
+			catch(RuntimeException e)
+			{
+				// nothing is written before every word was answered, so the
+				// client learns about the failure instead of an empty 200
+				getServletContext().log("query: failed", e);
+				HttpServletResponse response = (HttpServletResponse) async.getResponse();
+				if (!response.isCommitted())
+				{
+					try
+					{
+						response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "query failed");
+					}
+					catch(IOException f)
+					{
+						getServletContext().log("query: response failed "+f);
+					}
+				}
+			}
+			finally
+			{
+				async.complete();
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event)
+		{
+		}
+
+		// the container reports no more events once the request completed
+		@Override
+		public void onComplete(AsyncEvent event)
+		{
+			synchronized (this)
+			{
+				if (!reusable)
+					return;
+				async = null;
+				words = null;
+				reusable = false;
+			}
+			idle.offer(this);
+		}
+
+		// a client gone while its query waits is dropped without bumping query_count
+		@Override
+		public void onError(AsyncEvent event)
+		{
+			if (claim(false))
+				async.complete();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event)
+		{
+		}
+	}
+
     /**
-     * WordCountServiceEndPoint doGet endpoint
+     * set up the query executor from context init parameters queryThreads,
+     * queryQueue and queryTimeoutMillis, and read queryBatchWords
+     */
+	@Override
+	public void init() throws ServletException
+	{
+		ServletContext context = getServletContext();
+		int threads = Functions.getIntParameter(context, "queryThreads",
+				Runtime.getRuntime().availableProcessors());
+		if (threads <= 0)
+			throw new IllegalArgumentException("Not a valid query thread count: "+threads);
+		int queue = Functions.getIntParameter(context, "queryQueue", DEFAULT_QUEUE);
+		if (queue <= 0)
+			throw new IllegalArgumentException("Not a valid query queue length: "+queue);
+		timeoutMillis = Functions.getIntParameter(context, "queryTimeoutMillis", 10000);
+		batchWords = Functions.getIntParameter(context, "queryBatchWords", DEFAULT_BATCH_WORDS);
+		if (batchWords <= 0)
+			throw new IllegalArgumentException("Not a valid query batch size: "+batchWords);
+
+		final AtomicInteger created = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new QueryQueue(queue), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "query-"+created.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		idle = new ArrayBlockingQueue<Query>(threads + queue);
+	}
+
+    /**
+     * stop the query executor, queries already handed over still finish
+     */
+	@Override
+	public void destroy()
+	{
+		if (executor != null)
+			executor.shutdown();
+	}
+
+    /**
+     * WordCountServiceEndPoint doGet endpoint, the word parameter may be
+     * repeated to query several words in one request
      *
      * @param req: ServeletRequest object
      * @param resp: ServeletResponse object
@@ -25,67 +216,177 @@ public class WordCountServiceEndPoint extends HttpServlet
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
                         throws ServletException, IOException 
     {
-    	getServletContext().log(req.getRequestURL()+"?"+req.getQueryString());
-    	
-        PrintWriter out = resp.getWriter();
-
-        resp.setHeader("Content-Type", "text/plain");
-
-        String key = (String) req.getParameter("word");
-        String [] values = null;
- 
-        // fetch hashmap based on key
-		HashMap<String, String> wordCountMap = null;
-		try
-		{	
-			wordCountMap = Functions.getHashMap(key, getServletContext());
-		}
-		catch(NoSuchAlgorithmException e)
-    	{
-    		log("unknow algorithm for modulo");
-    	}
-        
-     
-        synchronized (wordCountMap) 
+        // the writer joins path and query string, nothing is built here
+        AccessLog access = Functions.getAccessLog(getServletContext());
+        if (access != null && access.sample())
+        	access.log(req.getRequestURI(), '?', req.getQueryString());
+
+        String[] words = req.getParameterValues("word");
+        if (words == null)
+        {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "missing word parameter");
+        	return;
+        }
+        dispatch(req, resp, words.length > batchWords ? null : words);
+    }
+
+    /**
+     * WordCountServiceEndPoint doPost endpoint, queries the words of the
+     * request body, one word per line
+     *
+     * @param req: ServeletRequest object
+     * @param resp: ServeletResponse object
+     */
+	@Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                        throws ServletException, IOException 
+    {
+        // the body is read here so that a slow client holds a connector thread, not a query thread
+        dispatch(req, resp, read(req));
+    }
+
+    /**
+     * hand a query over to the query executor and return the connector
+     * thread, or run it right here when the request cannot go async (e.g.
+     * behind a filter that does not support it)
+     *
+     * @param req: ServeletRequest object
+     * @param resp: ServeletResponse object
+     * @param words: words to query, null when the batch was too large
+     */
+    private void dispatch(HttpServletRequest req, HttpServletResponse resp, String[] words)
+    		throws IOException
+    {
+        if (!req.isAsyncSupported())
+        {
+        	answer(words, resp);
+        	return;
+        }
+
+        // the container must not time out a query a query thread is writing, the
+        // queue wait is checked by the query thread instead
+        AsyncContext async = req.startAsync();
+        Query query = idle.poll();
+        if (query == null)
+        	query = new Query();
+        query.start(async, words);
+        async.setTimeout(0);
+        async.addListener(query);
+
+        try
+        {
+        	executor.execute(query);
+        }
+        catch(RejectedExecutionException e)
         {
-        	// fetch queried key's word count and increase query_count 
-        	String value = wordCountMap.get(key);
-        	if (value != null)
+        	if (query.claim(true))
         	{
-        		//formatter: Query_countxWord_count  
-        		values = value.split("x");
-        		
-        		StringBuilder sb = new StringBuilder();
-        		int carryin = 1;
-        		boolean allNine = true;
-        		for (int i = values[0].length()-1 ; i>=0; i--)
-        		{
-        			int sum = (values[0].charAt(i)-'0' + carryin);
-        			allNine &= (values[0].charAt(i)-'0' == 9);
-        			carryin = sum/10;
-        			sb.append(sum%10);
-        		}
-        		if (allNine)
-        			sb.append(carryin);
-        		
-        		values[0] = sb.reverse().toString();
-        		sb.append('x');
-        		sb.append(values[1]);
-        		wordCountMap.put(key, sb.toString());
-        	}else{
-        		wordCountMap.put(key,"1x0");
-        		values = new String[]{"1", "0"};
+        		turnAway(resp, "too many queries");
+        		async.complete();
         	}
+        }
+    }
+
+    /**
+     * read the words of a POST body, one word per line
+     *
+     * @param req: ServeletRequest object
+     * @return the words, null when there are more than allowed in one query
+     */
+    private String[] read(HttpServletRequest req) throws IOException
+    {
+        if (req.getCharacterEncoding() == null)
+        	req.setCharacterEncoding("UTF-8");
 
+        // stop reading once the batch is known to be too large
+        List<String> words = new ArrayList<String>();
+        BufferedReader in = req.getReader();
+        String line;
+        while (words != null && (line = in.readLine()) != null)
+        {
+        	if (line.isEmpty())
+        		continue;
+        	if (words.size() == batchWords)
+        		words = null;
+        	else
+        		words.add(line);
         }
 
-        //output format, [query_string query_count word_count]
-        out.print(key);
-        out.print(" ");
-        out.print(values[0]);
-        out.print(" ");
-        out.println(values[1]);
+        AccessLog access = Functions.getAccessLog(getServletContext());
+        if (access != null && access.sample())
+        	access.log(req.getRequestURI()+" "+(words != null ? words.size() : "over "+batchWords)+" words");
+        return words != null ? words.toArray(new String[words.size()]) : null;
+    }
 
-        out.close();
+    /**
+     * bump query_count of each word and write one line per word, in order,
+     * from the thread's response buffer with an exact Content-Length
+     *
+     * @param words: words to query, null when the batch was too large
+     * @param resp: ServeletResponse object
+     */
+    private void answer(String[] words, HttpServletResponse resp) throws IOException
+    {
+        // while the index is being built, either turn the query away or answer from partial counts
+        ServletContext context = getServletContext();
+        IndexingStatus status = Functions.getIndexingStatus(context);
+        boolean partial = status != null && !status.isReady();
+        if (partial && !"partial".equals(context.getInitParameter("unreadyQueries")))
+        {
+        	turnAway(resp, "word count index not ready, "+status.getPercent()+"% indexed");
+        	return;
+        }
+        if (words == null)
+        {
+        	resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+        			"more than "+batchWords+" words in one query");
+        	return;
+        }
+
+        // once the journal cannot write, queries fail loudly rather than bump a query_count a restart would lose
+        QueryCountJournal journal = Functions.getQueryCountJournal(context);
+        if (journal != null && journal.getFailure() != null)
+        {
+        	if (journalFailureLogged.compareAndSet(false, true))
+        		context.log("query: query count journal failed, turning queries away", journal.getFailure());
+        	turnAway(resp, "query count journal unavailable");
+        	return;
+        }
+
+        ResponseBuffer response = ResponseBuffer.get();
+        for (String key : words)
+        {
+        	// bump query_count and look up corpus word_count, a word repeated in the batch is bumped once per line
+        	WordCount values = Functions.query(context, key, response.counts);
+
+        	//output format, [query_string query_count word_count], flagged with "partial" before the index is complete
+        	response.put(key);
+        	response.put((byte) ' ');
+        	response.put(values.getQueryCountLong(), values.getQueryCountOverflow());
+        	response.put((byte) ' ');
+        	response.put(values.getWordCountLong(), values.getWordCountOverflow());
+        	if (partial)
+        		response.put(PARTIAL);
+        	response.put((byte) '\n');
+        }
+
+        resp.setContentType("text/plain; charset=UTF-8");
+        resp.setContentLength(response.length);
+        if (partial)
+        	resp.setHeader("X-Word-Count-Partial", "true");
+        resp.getOutputStream().write(response.bytes, 0, response.length);
+    }
+
+    /**
+     * answer 503 with a Retry-After hint
+     *
+     * @param resp: ServeletResponse object
+     * @param message: reason shown to the client
+     */
+    private void turnAway(HttpServletResponse resp, String message) throws IOException
+    {
+        resp.setHeader("Retry-After", Integer.toString(
+        		Functions.getIntParameter(getServletContext(), "retryAfterSeconds", 10)));
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
     }
 }
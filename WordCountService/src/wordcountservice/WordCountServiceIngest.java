@@ -0,0 +1,158 @@
+package wordcountservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet(urlPatterns={"/wordcountservice/ingest"})
+@SuppressWarnings("serial")
+public class WordCountServiceIngest extends HttpServlet 
+{
+	// size of the chunks read from a request body
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	// streams ingested at the same time, further producers wait and are then turned away
+	private Semaphore streams = null;
+
+	/**
+	 * StreamSink:
+	 *   counts the words of one stream privately and merges them into the
+	 *   word_count overlay in batches
+	 */
+	private static class StreamSink implements WordTokenizer.Sink
+	{
+		private final WordCountOverlay overlay;
+		private final int batchLimit;
+		private final WordCountBatch batch = new WordCountBatch();
+		private long tokens = 0;
+
+		private StreamSink(WordCountOverlay overlay, int batchLimit)
+		{
+			this.overlay = overlay;
+			this.batchLimit = batchLimit;
+		}
+
+		@Override
+		public void word(byte[] bytes, int offset, int length)
+		{
+			batch.add(bytes, offset, length);
+			if (batch.size() >= batchLimit)
+				merge();
+		}
+
+		// a slow merge stops the reading loop, which in turn throttles the producer through TCP
+		private void merge()
+		{
+			if (batch.size() == 0)
+				return;
+			overlay.addWords(batch);
+			tokens += batch.getTokens();
+			batch.clear();
+		}
+	}
+
+    /**
+     * set up the admission limit from context init parameter ingestStreams
+     */
+	@Override
+	public void init() throws ServletException
+	{
+		int permits = Functions.getIntParameter(getServletContext(), "ingestStreams",
+				Runtime.getRuntime().availableProcessors());
+		if (permits <= 0)
+			throw new IllegalArgumentException("Not a valid ingest stream count: "+permits);
+		streams = new Semaphore(permits, true);
+	}
+
+    /**
+     * WordCountServiceIngest doPost endpoint, adds the words of the request
+     * body to word_count while it is being received, so bodies of any size
+     * (including chunked transfer) are never buffered as a whole
+     *
+     * @param req: ServeletRequest object
+     * @param resp: ServeletResponse object
+     */
+	@Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                        throws ServletException, IOException 
+    {
+        ServletContext context = getServletContext();
+        String retryAfter = Integer.toString(Functions.getIntParameter(context, "retryAfterSeconds", 10));
+
+        WordCountOverlay overlay = Functions.getWordCountOverlay(context);
+        if (overlay == null)
+        {
+        	resp.setHeader("Retry-After", retryAfter);
+        	resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "word count index not ready");
+        	return;
+        }
+
+        boolean admitted;
+        try
+        {
+        	admitted = streams.tryAcquire(Functions.getIntParameter(context, "ingestWaitMillis", 1000),
+        			TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException e)
+        {
+        	Thread.currentThread().interrupt();
+        	admitted = false;
+        }
+        if (!admitted)
+        {
+        	resp.setHeader("Retry-After", retryAfter);
+        	resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many ingest streams");
+        	return;
+        }
+
+        long started = System.currentTimeMillis();
+        long bytes = 0;
+        StreamSink sink = new StreamSink(overlay,
+        		Functions.getIntParameter(context, "ingestBatchWords", WordCountBatch.DEFAULT_LIMIT));
+        try
+        {
+        	WordTokenizer tokenizer = new WordTokenizer();
+        	InputStream in = req.getInputStream();
+        	byte[] chunk = new byte[CHUNK_SIZE];
+        	int count;
+        	while ((count = in.read(chunk)) != -1)
+        	{
+        		tokenizer.feed(chunk, 0, count, sink);
+        		bytes += count;
+        	}
+        	tokenizer.finish(sink);
+        }
+        finally
+        {
+        	// words of a broken upload stay counted up to where it broke
+        	sink.merge();
+        	streams.release();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        context.log("ingest: "+sink.tokens+" tokens, "+bytes+" bytes in "+elapsed+" ms");
+
+        resp.setHeader("Content-Type", "text/plain");
+        PrintWriter out = resp.getWriter();
+
+        //output format, [tokens bytes milliseconds tokens_per_second]
+        out.print(sink.tokens);
+        out.print(" ");
+        out.print(bytes);
+        out.print(" ");
+        out.print(elapsed);
+        out.print(" ");
+        out.println(sink.tokens * 1000 / elapsed);
+
+        out.close();
+    }
+}
@@ -1,169 +1,480 @@
 package wordcountservice;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.HashMap;
-import java.util.Scanner;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
 @WebListener
 public class WordCountServiceInitializer implements ServletContextListener
 {
+	// time contextDestroyed waits for the indexer to stop
+	private static final long STOP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
 	private ServletContext context = null;
+	private WordCountStore store = null;
+	private QueryCountJournal journal = null;
+	private AccessLog accessLog = null;
+	private IngestCheckpoint checkpoint = null;
+	private IndexingStatus status = null;
+	private volatile CorpusWatcher watcher = null;
+	private Thread indexer = null;
+	private volatile IngestScheduler scheduler = null;
+	// set under this once the context is destroyed, the indexer then publishes nothing
+	private volatile boolean closed = false;
 
-	private class WordCountFetch implements Runnable 
+    /**
+     * initialize servlet context 
+     *
+     * @param servelet context event
+     */
+    public void contextInitialized(ServletContextEvent sce)
     {
+        // prepare file for file read input
+    	log("context initialization...");
 
-		private String fname = null;
-        private CountDownLatch fetchCount = null;
+    	//prepare the query_count store shared with the query endpoint
+    	context = sce.getServletContext();
+    	WordCountStore queryCountStore = Functions.createWordCountStore(context);
+    	context.setAttribute("queryCountStore", queryCountStore);
 
-        /**
-         * constructor for Wordcount fetch thread
-         *
-         * @param fname: the file to read data
-         * @param fetchCount: job counter, help exectuorService to monitor whether a job is finished
-         */
-        public WordCountFetch(String fname, CountDownLatch fetchCount)
+    	//swar or scalar whitespace scanning for all tokenizers of this application
+    	WordTokenizer.setBackend(context.getInitParameter("wordTokenizer"));
+
+        String webAppPath = this.getClass().getClassLoader().
+        						getResource("/").getPath();
+        File directory = new File(webAppPath+"../../txtfiles");
+
+        //restore query_count of earlier runs and keep logging it
+        File journalBase = journalBase();
+        if (journalBase != null)
         {
-          this.fname = fname;
-          this.fetchCount = fetchCount;
+        	try
+        	{
+        		journal = new QueryCountJournal(queryCountStore, journalBase,
+        				Functions.getIntParameter(context, "queryCountJournalWindowMillis", 10),
+        				"true".equals(context.getInitParameter("queryCountJournalSync")),
+        				(long) Functions.getIntParameter(context, "queryCountJournalCheckpointMB", 64) << 20);
+        		context.setAttribute("queryCountJournal", journal);
+        		log("query count journal: "+journalBase.getAbsolutePath()+".journal");
+        	}
+        	catch(IOException e)
+        	{
+        		log("cannot open query count journal: "+journalBase.getAbsolutePath()+" "+e);
+        	}
         }
-        /**
-         * thread start function
-         */
-        @Override
-        public void run()
+
+        //log requests through a background writer
+        File accessLogFile = accessLogFile(directory);
+        if (accessLogFile != null)
         {
-        	File infile = new File(fname);
-        	Scanner in = null;
         	try
+        	{
+        		accessLog = new AccessLog(context, accessLogFile,
+        				Functions.getIntParameter(context, "accessLogBuffer", AccessLog.DEFAULT_CAPACITY),
+        				Functions.getIntParameter(context, "accessLogSample", 1));
+        		context.setAttribute("accessLog", accessLog);
+        		log("access log: "+accessLogFile.getAbsolutePath());
+        	}
+        	catch(IOException e)
+        	{
+        		log("cannot open access log: "+accessLogFile.getAbsolutePath()+" "+e);
+        	}
+        }
+
+        //build the word_count index in the background, queries are served meanwhile
+        final File corpusDirectory = directory;
+        status = new IndexingStatus();
+        context.setAttribute("indexingStatus", status);
+        indexer = new Thread(new Runnable()
+        {
+        	@Override
+        	public void run()
         	{
         		try
         		{
-        			in = new Scanner(infile);
-        			while (in.hasNext())
-        			{	
-        				updateMap(in.next());
-        			}
+        			buildIndex(corpusDirectory);
+        		}
+        		catch(CancellationException e)
+        		{
+        			log("word count indexing stopped");
         		}
-        		finally{
-        			in.close();
-        			fetchCount.countDown();
+        		catch(RuntimeException e)
+        		{
+        			if (closed)
+        			{
+        				log("word count indexing stopped: "+e);
+        				return;
+        			}
+        			status.setState(IndexingStatus.FAILED);
+        			log("word count indexing failed: "+e);
+        			throw e;
         		}
         	}
-            catch(FileNotFoundException e)
-            {
-            	log("ContextListener: unfound file:"+fname);
-            }
-        }
+        }, "word-count-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        log("context initialization done, indexing in background");
     }
 
     /**
-     * increase query_count for corresponding key
+     * list the corpus, then map the index snapshot or ingest the corpus,
+     * and publish the word_count index
      *
-     * @param key: look-up key
+     * @param directory: corpus directory
      */
-	private void updateMap(String key)
-	{
-		//wordCountMap store <word , query_countxword_count>
-		HashMap<String, String> wordCountMap = null;
-		try
-		{
-			wordCountMap = Functions.getHashMap(key, context);
-		}
-		catch(NoSuchAlgorithmException e)
-    	{
-    		log("unknow algorithm for modulo");
-    	}
-		
-		synchronized (wordCountMap)
-		{
-			if (wordCountMap.containsKey(key)){
-				String [] vals = wordCountMap.get(key).split("x");
-				
-	    		StringBuilder sb = new StringBuilder();
-	    		
-	    		int carryin = 1;
-	    		boolean allNight = true;
-	    		for (int i = vals[1].length()-1 ; i>=0; i--)
-	    		{
-	    			int sum = (vals[1].charAt(i)-'0' + carryin);
-	    			allNight &= (vals[1].charAt(i)-'0' == 9);
-	    			carryin = sum/10;
-	    			sb.append(sum%10);
-	    		}
-	    		if (allNight)
-	    			sb.append(carryin);
-	    		
-	    		sb.reverse();
-	    		wordCountMap.put(key,"0x"+sb.toString());
-	    		
-			}else{
-				wordCountMap.put(key,"0x1");
-			}			
-		}
-	}	
+    private void buildIndex(File directory)
+    {
+        //corpus files, including those in subdirectories
+        List<File> files = new ArrayList<File>();
+        if (directory.exists() && directory.isDirectory())
+        	listCorpus(directory, files);
+        File [] corpus = files.toArray(new File[files.size()]);
+        long [] lengths = new long[corpus.length];
+        long [] lastModified = new long[corpus.length];
+        long bytes = 0;
+        for (int i = 0; i < corpus.length; i++)
+        {
+        	lengths[i] = corpus[i].length();
+        	lastModified[i] = corpus[i].lastModified();
+        	bytes += lengths[i];
+        }
+        status.setTotal(corpus.length, bytes);
+
+        //reuse the index of the last run when the corpus did not change
+        File snapshot = snapshotFile(directory);
+        WordCountIndex index = null;
+        if (snapshot != null)
+        {
+        	status.setState(IndexingStatus.LOADING);
+        	try
+        	{
+        		index = IndexSnapshot.load(snapshot, corpus);
+        	}
+        	catch(IOException e)
+        	{
+        		log("unreadable index snapshot: "+snapshot.getAbsolutePath()+" "+e);
+        	}
+        }
+
+        boolean mapped = index != null;
+        long memoryBudget = (long) Functions.getIntParameter(context, "ingestMemoryMB", 0) << 20;
+        if (mapped)
+        	log("word count index mapped from snapshot: "+snapshot.getAbsolutePath());
+        else if (memoryBudget > 0)
+        	index = ingestBounded(corpus, lengths, lastModified, directory, snapshot, memoryBudget);
+        else
+        	index = ingest(corpus, directory);
+
+        //an undeployed application publishes and writes nothing more
+        if (closed)
+        	return;
+        //snapshot holding the published index, word ids of the watcher refer to its slots
+        File published = mapped || memoryBudget > 0 ? snapshot : null;
+        WordCountOverlay overlay = new WordCountOverlay(index);
+        context.setAttribute("wordCountOverlay", overlay);
+        context.setAttribute("wordCountIndex", index);
+        context.removeAttribute("ingestionStore");
+        status.setState(IndexingStatus.READY);
+        log("word count index: "+index.size()+" words");
+
+        //a bounded ingestion already wrote the index to disk
+        if (!mapped && memoryBudget <= 0 && snapshot != null && !closed)
+        {
+        	try
+        	{
+        		IndexSnapshot.write(snapshot, index, corpus, lengths, lastModified);
+        		published = snapshot;
+        		log("word count index snapshot written: "+snapshot.getAbsolutePath());
+        	}
+        	catch(IOException e)
+        	{
+        		log("cannot write index snapshot: "+snapshot.getAbsolutePath()+" "+e);
+        	}
+        }
+
+        //the index no longer depends on the ingestion checkpoint
+        if (checkpoint != null)
+        {
+        	checkpoint.delete();
+        	checkpoint = null;
+        }
+
+        //keep following the corpus on this thread, applying only changed files
+        if (!"false".equals(context.getInitParameter("watchCorpus")))
+        {
+        	CorpusWatcher current;
+        	synchronized (this)
+        	{
+        		//contextDestroyed closes the watcher it finds, or none is started
+        		if (closed)
+        			return;
+        		current = new CorpusWatcher(context, directory, overlay, corpus, lengths, lastModified, published,
+        				Functions.getIntParameter(context, "watchQuietMillis", 500));
+        		watcher = current;
+        	}
+        	current.run();
+        }
+    }
 
     /**
-     * initialize servlet context 
+     * read corpus files into a fresh store and freeze it into an index
      *
-     * @param servelet context event
+     * @param corpus: corpus files
+     * @param directory: corpus directory
      */
-    public void contextInitialized(ServletContextEvent sce)
+    private WordCountIndex ingest(File [] corpus, File directory)
     {
-        // prepare file for file read input
-    	log("context initialization...");
+    	store = Functions.createWordCountStore(context);
+    	log("word count store: "+store.getClass().getSimpleName());
+    	//partial answers are served from this store until the index is published
+    	context.setAttribute("ingestionStore", store);
+    	status.setState(IndexingStatus.INGESTING);
 
-    	//prepare md5 hash digest for hashmap fetching
-    	context = sce.getServletContext();
+        schedule(corpus, directory, store, ingestThreads(),
+        		Functions.getIntParameter(context, "ingestBatchWords", WordCountBatch.DEFAULT_LIMIT));
+
+        //freeze corpus word_count, the ingestion store is not needed afterwards
+        status.setState(IndexingStatus.BUILDING);
+        WordCountIndex index = WordCountIndex.build(store);
+        store = null;
+        return index;
+    }
+
+    /**
+     * read corpus files within a heap budget, spilling sorted runs to disk,
+     * and merge them into an on-disk index that is mapped back
+     *
+     * @param corpus: corpus files
+     * @param lengths: file sizes when the corpus was listed
+     * @param lastModified: file mtimes when the corpus was listed
+     * @param directory: corpus directory
+     * @param snapshot: snapshot file receiving the index, or null when snapshots are disabled
+     * @param budget: heap bytes the word_count tables and the workers' batches may use
+     */
+    private WordCountIndex ingestBounded(File [] corpus, long [] lengths, long [] lastModified, File directory,
+    		File snapshot, long budget)
+    {
+    	File spillDirectory = spillDirectory(directory);
+    	//the index has to live on disk even when snapshots are disabled
+    	File indexFile = snapshot != null ? snapshot : new File(spillDirectory, "txtfiles.index");
+    	//the workers' batches are part of the budget, a small one makes them merge more often
+    	int threads = ingestThreads();
+    	int batchWords = SpillingWordCountStore.batchLimit(budget, threads,
+    			Functions.getIntParameter(context, "ingestBatchWords", WordCountBatch.DEFAULT_LIMIT));
+    	SpillingWordCountStore spilling = new SpillingWordCountStore(spillDirectory, budget, threads);
+    	log("word count store: "+spilling.getClass().getSimpleName()+", "+(budget >> 20)+" MB, "
+    			+batchWords+" words per worker batch, spilling to "+spillDirectory.getAbsolutePath());
+    	//most counts sit in spilled runs, so partial answers carry no word_count
+    	status.setState(IndexingStatus.INGESTING);
     	try
     	{
-    		context.setAttribute("messageDigest", MessageDigest.getInstance("MD5"));
+    		schedule(corpus, directory, spilling, threads, batchWords);
+
+    		status.setState(IndexingStatus.BUILDING);
+    		long started = System.currentTimeMillis();
+    		int words = IndexSnapshot.write(indexFile, spilling, corpus, lengths, lastModified);
+    		log("merged "+spilling.getSpills()+" runs into "+words+" words in "+(System.currentTimeMillis() - started)
+    				+" ms: "+indexFile.getAbsolutePath());
+    		WordCountIndex index = IndexSnapshot.map(indexFile);
+    		//the runs are deleted below, which a later resume would miss
+    		if (checkpoint != null)
+    		{
+    			checkpoint.delete();
+    			checkpoint = null;
+    		}
+    		return index;
+    	}
+    	catch(IOException e)
+    	{
+    		throw new IllegalStateException("cannot build word count index on disk: "+e, e);
     	}
-    	catch(NoSuchAlgorithmException e)
+    	finally
     	{
-    		log("unknow algorithm for modulo");
+    		spilling.close();
     	}
+    }
 
-        //multi-thread processing  word-count related txts
-    	CountDownLatch wordCountLatch = null;
-        ExecutorService executor = Executors.newFixedThreadPool(20);
-        String webAppPath = this.getClass().getClassLoader().
-        						getResource("/").getPath();
-        File directory = new File(webAppPath+"../../txtfiles");
+    /**
+     * fork/join over ranges of large files and groups of small ones,
+     * resuming from the ingestion checkpoint of an interrupted run
+     *
+     * @param corpus: corpus files
+     * @param directory: corpus directory
+     * @param target: empty sink receiving word_count
+     * @param threads: number of worker threads
+     * @param batchWords: distinct words a worker counts before merging into the sink
+     */
+    private void schedule(File [] corpus, File directory, WordCountSink target, int threads, int batchWords)
+    {
+        long rangeSize = (long) Functions.getIntParameter(context, "ingestRangeMB", 16) << 20;
+        IngestScheduler scheduler = new IngestScheduler(context, target, threads, rangeSize, batchWords, status);
+        this.scheduler = scheduler;
+        //contextDestroyed may have missed the scheduler
+        if (closed)
+        	scheduler.cancel();
 
-        if (directory.exists() && directory.isDirectory())
+        File checkpointFile = checkpointFile(directory);
+        if (checkpointFile != null)
         {
-        	String [] fnames = directory.list();
-        	wordCountLatch = new CountDownLatch(fnames.length);
-        	for (String fname : fnames)
-        		executor.execute(new WordCountFetch(
-        				directory.getAbsolutePath()+"/"+fname,
-        				wordCountLatch
-        				));
+        	checkpoint = new IngestCheckpoint(context, checkpointFile, target, corpus, rangeSize,
+        			Functions.getIntParameter(context, "ingestCheckpointSeconds", 60) * 1000L);
+        	try
+        	{
+        		if (checkpoint.restore())
+        			log("resuming ingestion from checkpoint: "+checkpointFile.getAbsolutePath());
+        	}
+        	catch(IOException e)
+        	{
+        		//part of it may already be in the store
+        		throw new IllegalStateException("unreadable ingestion checkpoint: "+checkpointFile.getAbsolutePath()
+        				+" "+e, e);
+        	}
+        	checkpoint.start();
         }
 
-        executor.shutdown();
-
-        //wait for all processing jobs done
+        long started = System.currentTimeMillis();
+        long tokens;
         try
         {
-            if (wordCountLatch!= null)
-                wordCountLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        	tokens = scheduler.ingest(corpus, checkpoint);
         }
-        log("context initialization done");
+        finally
+        {
+        	this.scheduler = null;
+        	//a cancelled ingestion still records how far it got, to resume on the next start
+        	if (checkpoint != null)
+        		checkpoint.close();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        log("ingested "+corpus.length+" files, "+tokens+" tokens in "+elapsed+" ms, "
+        		+(tokens * 1000 / elapsed)+" tokens/s");
+    }
+
+    /**
+     * number of ingestion workers from context init parameter ingestThreads,
+     * defaulting to the number of processors
+     */
+    private int ingestThreads()
+    {
+    	return Functions.getIntParameter(context, "ingestThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * collect the regular files of a directory and its subdirectories
+     *
+     * @param directory: directory to walk
+     * @param files: list receiving the files
+     */
+    private void listCorpus(File directory, List<File> files)
+    {
+    	File [] entries = directory.listFiles();
+    	if (entries == null)
+    	{
+    		log("unreadable directory:"+directory.getAbsolutePath());
+    		return;
+    	}
+    	for (File entry : entries)
+    	{
+    		if (entry.isDirectory())
+    			listCorpus(entry, files);
+    		else if (entry.isFile())
+    			files.add(entry);
+    	}
+    }
+
+    /**
+     * index snapshot location from context init parameter indexSnapshot,
+     * defaulting to txtfiles.index next to the corpus directory
+     *
+     * @param directory: corpus directory
+     * @return snapshot file, or null when snapshots are disabled with "none"
+     */
+    private File snapshotFile(File directory)
+    {
+    	String configured = context.getInitParameter("indexSnapshot");
+    	if (configured == null || configured.trim().length() == 0)
+    		return new File(directory.getAbsoluteFile().getParentFile(), "txtfiles.index");
+    	if (configured.trim().equals("none"))
+    		return null;
+    	return new File(configured.trim());
+    }
+
+    /**
+     * ingestion checkpoint location from context init parameter ingestCheckpoint,
+     * defaulting to txtfiles.checkpoint next to the corpus directory
+     *
+     * @param directory: corpus directory
+     * @return checkpoint file, or null when checkpoints are disabled with "none"
+     */
+    private File checkpointFile(File directory)
+    {
+    	String configured = context.getInitParameter("ingestCheckpoint");
+    	if (configured == null || configured.trim().length() == 0)
+    		return new File(directory.getAbsoluteFile().getParentFile(), "txtfiles.checkpoint");
+    	if (configured.trim().equals("none"))
+    		return null;
+    	return new File(configured.trim());
+    }
+
+    /**
+     * spill directory from context init parameter ingestSpillDirectory,
+     * defaulting to txtfiles.spill next to the corpus directory
+     *
+     * @param directory: corpus directory
+     */
+    private File spillDirectory(File directory)
+    {
+    	String configured = context.getInitParameter("ingestSpillDirectory");
+    	if (configured == null || configured.trim().length() == 0)
+    		return new File(directory.getAbsoluteFile().getParentFile(), "txtfiles.spill");
+    	return new File(configured.trim());
+    }
+
+    /**
+     * query_count journal location from context init parameter queryCountJournal,
+     * defaulting to data/wordcountservice/querycount under catalina.base, or
+     * under java.io.tmpdir outside Tomcat. the corpus directory lies inside
+     * the exploded webapp, which a redeploy wipes together with the journal
+     *
+     * @return path prefix of the journal files, or null when disabled with "none"
+     */
+    private File journalBase()
+    {
+    	String configured = context.getInitParameter("queryCountJournal");
+    	if (configured == null || configured.trim().length() == 0)
+    	{
+    		String base = System.getProperty("catalina.base");
+    		File data = base != null ? new File(base, "data") : new File(System.getProperty("java.io.tmpdir"));
+    		return new File(new File(data, "wordcountservice"), "querycount");
+    	}
+    	if (configured.trim().equals("none"))
+    		return null;
+    	return new File(configured.trim());
+    }
+
+    /**
+     * access log location from context init parameter accessLog,
+     * defaulting to access.log next to the corpus directory
+     *
+     * @param directory: corpus directory
+     * @return log file, or null when requests are not logged with "none"
+     */
+    private File accessLogFile(File directory)
+    {
+    	String configured = context.getInitParameter("accessLog");
+    	if (configured == null || configured.trim().length() == 0)
+    		return new File(directory.getAbsoluteFile().getParentFile(), "access.log");
+    	if (configured.trim().equals("none"))
+    		return null;
+    	return new File(configured.trim());
     }
 
     /**
@@ -173,6 +484,71 @@ public class WordCountServiceInitializer implements ServletContextListener
      */
     public void contextDestroyed(ServletContextEvent sce)
     {
+    	//stop ingestion and keep the indexer from publishing, snapshotting or watching
+    	CorpusWatcher current;
+    	synchronized (this)
+    	{
+    		closed = true;
+    		current = watcher;
+    	}
+    	IngestScheduler running = scheduler;
+    	if (running != null)
+    		running.cancel();
+
+    	//stop following the corpus
+    	if (current != null)
+    	{
+    		try
+    		{
+    			current.close();
+    		}
+    		catch(IOException e)
+    		{
+    			log("cannot close corpus watcher: "+e);
+    		}
+    	}
+
+    	//wait for the indexer, so that no thread of this application outlives it
+    	if (indexer != null)
+    	{
+    		indexer.interrupt();
+    		try
+    		{
+    			indexer.join(STOP_MILLIS);
+    		}
+    		catch(InterruptedException e)
+    		{
+    			Thread.currentThread().interrupt();
+    		}
+    		if (indexer.isAlive())
+    			log("word count indexer still running after "+STOP_MILLIS+" ms");
+    		indexer = null;
+    	}
+
+    	//flush pending query_count and fold the journal into its snapshot
+    	if (journal != null)
+    	{
+    		context.removeAttribute("queryCountJournal");
+    		try
+    		{
+    			journal.close();
+    		}
+    		catch(IOException e)
+    		{
+    			log("cannot close query count journal: "+e);
+    		}
+    		journal = null;
+    	}
+
+    	//write the records still buffered
+    	if (accessLog != null)
+    	{
+    		context.removeAttribute("accessLog");
+    		accessLog.close();
+    		if (accessLog.getDropped() > 0)
+    			log("access log dropped "+accessLog.getDropped()+" records");
+    		accessLog = null;
+    	}
     }
 
     /**
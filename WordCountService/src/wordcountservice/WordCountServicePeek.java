@@ -0,0 +1,162 @@
+package wordcountservice;
+
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet(urlPatterns={"/wordcountservice/peek"})
+@SuppressWarnings("serial")
+public class WordCountServicePeek extends HttpServlet 
+{
+	private static final byte[] PARTIAL = " partial".getBytes(Utf8.UTF8);
+
+	private int batchWords = WordCountServiceEndPoint.DEFAULT_BATCH_WORDS;
+
+	// Cache-Control of answers carrying validators
+	private String cacheControl = "no-cache";
+
+    /**
+     * read queryBatchWords and peekMaxAgeSeconds
+     */
+	@Override
+	public void init() throws ServletException
+	{
+		ServletContext context = getServletContext();
+		batchWords = Functions.getIntParameter(context, "queryBatchWords", WordCountServiceEndPoint.DEFAULT_BATCH_WORDS);
+		if (batchWords <= 0)
+			throw new IllegalArgumentException("Not a valid query batch size: "+batchWords);
+		int maxAge = Functions.getIntParameter(context, "peekMaxAgeSeconds", 0);
+		if (maxAge < 0)
+			throw new IllegalArgumentException("Not a valid peek max age: "+maxAge);
+		// 0 lets caches keep answers but revalidate each one, which costs a 304 at most
+		if (maxAge > 0)
+			cacheControl = "max-age="+maxAge;
+	}
+
+    /**
+     * WordCountServicePeek doGet endpoint, word_count of one or more words
+     * without bumping query_count. once the index is published answers carry
+     * an ETag and Last-Modified of the overlay generation, and a conditional
+     * request for an unchanged generation is answered 304 without any lookup
+     *
+     * @param req: ServeletRequest object
+     * @param resp: ServeletResponse object
+     */
+	@Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                        throws ServletException, IOException 
+    {
+        AccessLog access = Functions.getAccessLog(getServletContext());
+        if (access != null && access.sample())
+        	access.log(req.getRequestURI(), '?', req.getQueryString());
+
+        // before the index is published word_count keeps changing without a generation to tag it with
+        ServletContext context = getServletContext();
+        WordCountOverlay overlay = Functions.getWordCountOverlay(context);
+        boolean partial = overlay == null;
+        if (partial && !"partial".equals(context.getInitParameter("unreadyQueries")))
+        {
+        	IndexingStatus status = Functions.getIndexingStatus(context);
+        	resp.setHeader("Retry-After", Integer.toString(
+        			Functions.getIntParameter(context, "retryAfterSeconds", 10)));
+        	resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "word count index not ready"
+        			+(status != null ? ", "+status.getPercent()+"% indexed" : ""));
+        	return;
+        }
+
+        String[] words = req.getParameterValues("word");
+        if (words == null)
+        {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "missing word parameter");
+        	return;
+        }
+        if (words.length > batchWords)
+        {
+        	resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+        			"more than "+batchWords+" words in one query");
+        	return;
+        }
+
+        if (partial)
+        	resp.setHeader("Cache-Control", "no-store");
+        else
+        {
+        	// the generation is read before the lookups, so an answer is never older than its tag
+        	long generation = overlay.getGeneration();
+        	long modified = overlay.getLastModified();
+        	String etag = "\""+Long.toHexString(overlay.getCreated())+"-"+generation+"\"";
+        	resp.setHeader("ETag", etag);
+        	resp.setDateHeader("Last-Modified", modified);
+        	resp.setHeader("Cache-Control", cacheControl);
+        	if (notModified(req, etag, modified))
+        	{
+        		resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        		return;
+        	}
+        }
+
+        ResponseBuffer response = ResponseBuffer.get();
+        for (String key : words)
+        {
+        	WordCount values = Functions.peek(context, key, response.counts);
+
+        	//output format, [query_string word_count], flagged with "partial" before the index is complete
+        	response.put(key);
+        	response.put((byte) ' ');
+        	response.put(values.getWordCountLong(), values.getWordCountOverflow());
+        	if (partial)
+        		response.put(PARTIAL);
+        	response.put((byte) '\n');
+        }
+
+        resp.setContentType("text/plain; charset=UTF-8");
+        resp.setContentLength(response.length);
+        if (partial)
+        	resp.setHeader("X-Word-Count-Partial", "true");
+        resp.getOutputStream().write(response.bytes, 0, response.length);
+    }
+
+    /**
+     * whether the client already holds the current answer. If-None-Match
+     * decides when present, If-Modified-Since, exact to the second only,
+     * otherwise
+     *
+     * @param req: ServeletRequest object
+     * @param etag: current entity tag
+     * @param modified: time of the last change, in milliseconds
+     */
+    private static boolean notModified(HttpServletRequest req, String etag, long modified)
+    {
+        String match = req.getHeader("If-None-Match");
+        if (match != null)
+        {
+        	// weak comparison, a proxy may have weakened the tag
+        	for (String tag : match.split(","))
+        	{
+        		tag = tag.trim();
+        		if (tag.startsWith("W/"))
+        			tag = tag.substring(2);
+        		if (tag.equals("*") || tag.equals(etag))
+        			return true;
+        	}
+        	return false;
+        }
+
+        long since;
+        try
+        {
+        	since = req.getDateHeader("If-Modified-Since");
+        }
+        catch(IllegalArgumentException e)
+        {
+        	return false;
+        }
+        // HTTP dates have whole seconds
+        return since >= 0 && modified / 1000 <= since / 1000;
+    }
+}
@@ -0,0 +1,57 @@
+package wordcountservice;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet(urlPatterns={"/wordcountservice/ready"})
+@SuppressWarnings("serial")
+public class WordCountServiceReadiness extends HttpServlet 
+{
+    /**
+     * WordCountServiceReadiness doGet endpoint, 200 once the word_count index
+     * is published, 503 with Retry-After while it is being built
+     *
+     * @param req: ServeletRequest object
+     * @param resp: ServeletResponse object
+     */
+	@Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                        throws ServletException, IOException 
+    {
+        ServletContext context = getServletContext();
+        IndexingStatus status = Functions.getIndexingStatus(context);
+        if (status == null)
+        {
+        	resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "context not initialized");
+        	return;
+        }
+
+        if (!status.isReady())
+        {
+        	resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        	resp.setHeader("Retry-After", Integer.toString(Functions.getIntParameter(context, "retryAfterSeconds", 10)));
+        }
+        resp.setHeader("Content-Type", "text/plain");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        PrintWriter out = resp.getWriter();
+
+        //output format, [state files_done/files_total files bytes_done/bytes_total bytes percent%]
+        out.print(status.getState());
+        out.print(" ");
+        out.print(status.getDoneFiles()+"/"+status.getTotalFiles()+" files");
+        out.print(" ");
+        out.print(status.getDoneBytes()+"/"+status.getTotalBytes()+" bytes");
+        out.print(" ");
+        out.println(status.getPercent()+"%");
+
+        out.close();
+    }
+}
@@ -0,0 +1,25 @@
+package wordcountservice;
+
+/**
+ * WordCountSink:
+ *   receiver of the word_count read from the corpus. the ingestion writes
+ *   into a sink only, so that a store that merely collects word_count for
+ *   the index, such as SpillingWordCountStore, does not have to answer
+ *   queries. every WordCountStore is a sink.
+ */
+public interface WordCountSink
+{
+    /**
+     * increase word_count for a word read from the corpus
+     *
+     * @param key: corpus word
+     */
+	public void addWord(String key);
+
+    /**
+     * add the word_count of every word of a batch
+     *
+     * @param batch: words and their occurrences, left unchanged
+     */
+	public void addWords(WordCountBatch batch);
+}
@@ -0,0 +1,77 @@
+package wordcountservice;
+
+import java.math.BigInteger;
+
+/**
+ * WordCountStore:
+ *   concurrent <word, WordCount> store shared by the query endpoint and
+ *   corpus ingestion, which writes into it as a WordCountSink. the
+ *   implementation is picked at startup through the wordCountStore context
+ *   parameter, see Functions.createWordCountStore
+ */
+public interface WordCountStore extends WordCountSink
+{
+	/**
+	 * Visitor:
+	 *   callback receiving every word of a store with its counters
+	 */
+	public interface Visitor
+	{
+        /**
+         * visit one word
+         *
+         * @param bytes: buffer holding the UTF-8 word, only valid during the call
+         * @param offset: first byte of the word
+         * @param length: number of bytes of the word
+         * @param counts: snapshot of the word's counters
+         */
+		public void visit(byte[] bytes, int offset, int length, WordCount counts);
+	}
+
+	// default stripe count when none is configured
+	public static final int DEFAULT_STRIPES = 256;
+
+    /**
+     * increase query_count for a queried word
+     *
+     * @param key: queried word
+     * @return snapshot of the word's counters after the increment
+     */
+	public WordCount query(String key);
+
+    /**
+     * increase query_count for a queried word, filling a record owned by the
+     * caller instead of allocating a snapshot
+     *
+     * @param key: queried word
+     * @param into: record receiving the word's counters after the increment, or null for a new one
+     * @return the filled record
+     */
+	public WordCount query(String key, WordCount into);
+
+    /**
+     * look up the counters of a word without counting a query
+     *
+     * @param key: word to look up
+     * @return snapshot of the word's counters, or null when the word is unknown
+     */
+	public WordCount get(String key);
+
+    /**
+     * raise query_count of a word to at least a persisted value, used when
+     * replaying saved query counts on startup
+     *
+     * @param key: word to restore
+     * @param queryCount: persisted query_count, ignored when queryCountOverflow is set
+     * @param queryCountOverflow: persisted query_count beyond Long.MAX_VALUE, or null
+     */
+	public void restoreQueryCount(String key, long queryCount, BigInteger queryCountOverflow);
+
+    /**
+     * walk every word of the store, each stripe or segment is visited under
+     * its lock, so callers should not run this on a store still being written
+     *
+     * @param visitor: callback receiving the words
+     */
+	public void visit(Visitor visitor);
+}
@@ -0,0 +1,71 @@
+package wordcountservice;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * WordHasher:
+ *   hashing SPI used by the word count stores to pick stripes and slots.
+ *   a word is always hashed over its UTF-8 bytes, so hashing a String and
+ *   hashing the same word read as raw bytes give the same value.
+ *   implementations must be thread-safe and should not allocate.
+ */
+public abstract class WordHasher
+{
+    /**
+     * hash UTF-8 bytes of a word
+     *
+     * @param bytes: buffer holding the word
+     * @param offset: first byte of the word
+     * @param length: number of bytes of the word
+     */
+	public abstract int hash(byte[] bytes, int offset, int length);
+
+    /**
+     * hash a word, encoding it into the calling thread's scratch buffer
+     *
+     * @param word: word to hash
+     */
+	public int hash(String word)
+	{
+		byte[] bytes = Utf8.scratch(word);
+		return hash(bytes, 0, Utf8.encode(word, bytes));
+	}
+
+    /**
+     * create hasher by name
+     *   murmur3 (default), xxhash, md5, or the class name of a WordHasher
+     *   subclass with a public no-argument constructor
+     *
+     * @param name: configured hasher name
+     */
+	public static WordHasher create(String name)
+	{
+		if (name == null || name.trim().length() == 0 || name.trim().equals("murmur3"))
+			return new Murmur3WordHasher();
+		if (name.trim().equals("xxhash"))
+			return new XxHashWordHasher();
+		if (name.trim().equals("md5"))
+			return new Md5WordHasher();
+
+		try
+		{
+			return (WordHasher) Class.forName(name.trim()).getDeclaredConstructor().newInstance();
+		}
+		catch(InvocationTargetException e)
+		{
+			throw new IllegalArgumentException("Not a valid word hasher: "+name, e.getCause());
+		}
+		catch(NoSuchMethodException e)
+		{
+			throw new IllegalArgumentException("Not a valid word hasher, no no-argument constructor: "+name, e);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			throw new IllegalArgumentException("Not a valid word hasher: "+name, e);
+		}
+		catch(ClassCastException e)
+		{
+			throw new IllegalArgumentException("Not a valid word hasher: "+name, e);
+		}
+	}
+}
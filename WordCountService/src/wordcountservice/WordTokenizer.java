@@ -0,0 +1,521 @@
+package wordcountservice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * WordTokenizer:
+ *   byte-level replacement of java.util.Scanner's default tokenizing over
+ *   UTF-8 text: a word is a maximal run of bytes that are not whitespace,
+ *   where whitespace is exactly what Character.isWhitespace accepts, i.e.
+ *   the ASCII controls 09-0D and 1C-1F, the space, and the multibyte
+ *   separators U+1680, U+2000-2006, U+2008-200A, U+2028, U+2029, U+205F
+ *   and U+3000 (no-break spaces and U+0085 are not whitespace). files are
+ *   memory-mapped and words are handed out as bytes, so no charset decoding,
+ *   regex or String is involved.
+ *   a large file can be cut into ranges with split(); each cut is moved to
+ *   the start of a whitespace character, so no word and no multibyte
+ *   character straddles two ranges and the ranges can be tokenized
+ *   independently on different threads. an instance reuses its word
+ *   buffer and belongs to one thread.
+ *   inside a word, bytes are classified eight at a time (SWAR, SIMD within
+ *   a register): one long read yields a mask of the bytes that may be
+ *   whitespace, i.e. all bytes up to 0x20 and the leads E0-E3, and the
+ *   scan jumps straight to the first of them, which is then classified
+ *   byte by byte as before. the plain byte loop is kept as the "scalar"
+ *   backend; both give exactly the same words.
+ */
+public class WordTokenizer
+{
+	// largest region mapped at once
+	private static final long MAX_MAPPING = 1 << 28;
+	// bytes read per step while looking for a cut
+	private static final int ALIGN_WINDOW = 1 << 12;
+
+	// lanes of the eight-bytes-at-a-time scan
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	// backend of new instances
+	private static volatile boolean defaultSwar = true;
+
+	// ASCII whitespace by byte value
+	private static final boolean[] ASCII_SPACE = new boolean[128];
+	static
+	{
+		for (int c = 0; c < 128; c++)
+			ASCII_SPACE[c] = Character.isWhitespace(c);
+	}
+
+	/**
+	 * Sink:
+	 *   receiver of the words of a range, called from the tokenizing thread.
+	 *   the bytes are only valid during the call
+	 */
+	public interface Sink
+	{
+	    /**
+	     * take one word
+	     *
+	     * @param bytes: buffer holding UTF-8 word bytes
+	     * @param offset: first byte of the word
+	     * @param length: number of bytes of the word
+	     */
+		public void word(byte[] bytes, int offset, int length);
+	}
+
+	private final boolean swar = defaultSwar;
+	private byte[] word = new byte[64];
+
+	// streaming state: bytes of the word cut off by the last chunk, and up to
+	// two bytes that may start a separator completed by the next chunk
+	private int pending = 0;
+	private byte[] carry = new byte[0];
+	private int carryLength = 0;
+
+	// file or stream offset just after the last word handed out
+	private long position = 0;
+	// stream offset of the next chunk, and of index 0 of the chunk being fed
+	private long fed = 0;
+	private long shift = 0;
+
+    /**
+     * choose the backend of tokenizers created from now on
+     *   swar (default) or scalar
+     *
+     * @param name: configured backend name
+     */
+	public static void setBackend(String name)
+	{
+		if (name == null || name.trim().length() == 0 || name.trim().equals("swar"))
+			defaultSwar = true;
+		else if (name.trim().equals("scalar"))
+			defaultSwar = false;
+		else
+			throw new IllegalArgumentException("Not a valid word tokenizer: "+name);
+	}
+
+    /**
+     * cut a file into ranges that can be tokenized independently
+     *
+     * @param channel: file to cut
+     * @param rangeSize: wanted range length in bytes, ranges end up slightly longer
+     * @return ascending offsets, starting with 0 and ending with the file size
+     */
+	public static long[] split(FileChannel channel, long rangeSize) throws IOException
+	{
+		return split(channel, 0, channel.size(), rangeSize);
+	}
+
+    /**
+     * cut a range of a file, such as an archive entry, into ranges that can
+     * be tokenized independently
+     *
+     * @param channel: file to cut
+     * @param start: first byte of the range
+     * @param end: end of the range, exclusive
+     * @param rangeSize: wanted range length in bytes, ranges end up slightly longer
+     * @return ascending offsets, starting with start and ending with end
+     */
+	public static long[] split(FileChannel channel, long start, long end, long rangeSize) throws IOException
+	{
+		if (rangeSize <= 0)
+			throw new IllegalArgumentException("Not a valid range size: "+rangeSize);
+
+		long size = end - start;
+		int ranges = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1, (size + rangeSize - 1) / rangeSize));
+		long[] cuts = new long[ranges + 1];
+		cuts[0] = start;
+		int count = 1;
+		for (int i = 1; i < ranges; i++)
+		{
+			long cut = align(channel, end, Math.max(start + i * rangeSize, cuts[count - 1]));
+			if (cut > cuts[count - 1] && cut < end)
+				cuts[count++] = cut;
+		}
+		cuts[count++] = end;
+
+		if (count == cuts.length)
+			return cuts;
+		long[] trimmed = new long[count];
+		System.arraycopy(cuts, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+    /**
+     * tokenize a range of a file produced by split(), mapping it piecewise
+     *
+     * @param channel: file to read
+     * @param start: first byte of the range
+     * @param end: end of the range, exclusive
+     * @param sink: receiver of the words
+     */
+	public void tokenize(FileChannel channel, long start, long end, Sink sink) throws IOException
+	{
+		long size = channel.size();
+		while (start < end)
+		{
+			long stop = end;
+			if (stop - start > MAX_MAPPING)
+				stop = Math.min(end, Math.max(start + 1, align(channel, size, start + MAX_MAPPING)));
+			tokenize(channel.map(FileChannel.MapMode.READ_ONLY, start, stop - start), start, sink);
+			start = stop;
+		}
+	}
+
+    /**
+     * tokenize the bytes of a buffer from its position to its limit
+     *
+     * @param buffer: UTF-8 text, left unchanged
+     * @param sink: receiver of the words
+     */
+	public void tokenize(ByteBuffer buffer, Sink sink)
+	{
+		tokenize(buffer, 0, sink);
+	}
+
+    /**
+     * offset just after the last word handed to the sink: a file offset
+     * while tokenizing a file, a stream offset while feeding. read it from
+     * the sink to know how far the words seen so far reach
+     */
+	public long getPosition()
+	{
+		return position;
+	}
+
+    /**
+     * set the stream offset of the next chunk fed, for a stream resumed
+     * part way or preceded by bytes that are not part of it
+     *
+     * @param position: stream offset of the next chunk
+     */
+	public void setPosition(long position)
+	{
+		if (pending > 0 || carryLength > 0)
+			throw new IllegalStateException("tokenizer holds an unfinished word");
+		this.fed = position;
+		this.position = position;
+	}
+
+    /**
+     * tokenize the bytes of a buffer from its position to its limit, such
+     * as a slice of a mapping covering several ranges of a file
+     *
+     * @param buffer: UTF-8 text, left unchanged
+     * @param base: file offset of index 0 of the buffer, for getPosition()
+     * @param sink: receiver of the words
+     */
+	public void tokenize(ByteBuffer buffer, long base, Sink sink)
+	{
+		shift = base;
+		int limit = buffer.limit();
+		int start = -1;
+		int i = buffer.position();
+		ByteBuffer lanes = swar ? buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN) : null;
+		while (i < limit)
+		{
+			if (start >= 0 && swar)
+			{
+				i = skipWord(lanes, i, limit);
+				if (i >= limit)
+					break;
+			}
+			int space = spaceLength(buffer, i, limit);
+			if (space == 0)
+			{
+				if (start < 0)
+					start = i;
+				i++;
+				continue;
+			}
+			if (start >= 0)
+			{
+				emit(buffer, start, i, sink);
+				start = -1;
+			}
+			i += space;
+		}
+		if (start >= 0)
+			emit(buffer, start, limit, sink);
+	}
+
+    /**
+     * tokenize the next chunk of a stream. a word or separator cut off at
+     * the end of the chunk is completed by the following chunks
+     *
+     * @param bytes: buffer holding the chunk
+     * @param offset: first byte of the chunk
+     * @param length: number of bytes of the chunk
+     * @param sink: receiver of the words
+     */
+	public void feed(byte[] bytes, int offset, int length, Sink sink)
+	{
+		if (carryLength > 0)
+		{
+			// rare: a chunk ended within two bytes after a possible separator lead
+			byte[] joined = new byte[carryLength + length];
+			System.arraycopy(carry, 0, joined, 0, carryLength);
+			System.arraycopy(bytes, offset, joined, carryLength, length);
+			bytes = joined;
+			offset = 0;
+			length = joined.length;
+		}
+		// the carried bytes were counted with the previous chunk
+		shift = fed - carryLength - offset;
+		fed += length - carryLength;
+		carryLength = 0;
+
+		int limit = offset + length;
+		int start = pending > 0 ? offset : -1;
+		int i = offset;
+		ByteBuffer lanes = swar ? ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN) : null;
+		while (i < limit)
+		{
+			if (start >= 0 && swar)
+			{
+				i = skipWord(lanes, i, limit);
+				if (i >= limit)
+					break;
+			}
+			byte b = bytes[i];
+			int space;
+			if (b >= 0)
+			{
+				space = ASCII_SPACE[b] ? 1 : 0;
+			}
+			else if (b >= (byte) 0xE1 && b <= (byte) 0xE3)
+			{
+				if (i + 2 >= limit)
+				{
+					// cannot tell yet, keep the bytes for the next chunk
+					carryLength = limit - i;
+					if (carry.length < carryLength)
+						carry = new byte[2];
+					System.arraycopy(bytes, i, carry, 0, carryLength);
+					limit = i;
+					break;
+				}
+				space = isSpace(b, bytes[i + 1], bytes[i + 2]) ? 3 : 0;
+			}
+			else
+			{
+				space = 0;
+			}
+
+			if (space == 0)
+			{
+				if (start < 0)
+					start = i;
+				i++;
+				continue;
+			}
+			if (start >= 0)
+			{
+				emit(bytes, start, i, sink);
+				start = -1;
+			}
+			i += space;
+		}
+
+		// keep the unfinished word
+		if (start >= 0)
+			append(bytes, start, limit);
+	}
+
+    /**
+     * end the stream, handing out a last unfinished word
+     *
+     * @param sink: receiver of the word
+     */
+	public void finish(Sink sink)
+	{
+		if (carryLength > 0)
+		{
+			// an incomplete sequence at the very end is not whitespace
+			append(carry, 0, carryLength);
+			carryLength = 0;
+		}
+		if (pending > 0)
+		{
+			position = fed;
+			sink.word(word, 0, pending);
+			pending = 0;
+		}
+	}
+
+    /**
+     * hand a word of a chunk to the sink, joined to the part left by earlier chunks
+     *
+     * @param bytes: chunk being tokenized
+     * @param start: first byte of the word in the chunk
+     * @param end: end of the word, exclusive
+     * @param sink: receiver of the word
+     */
+	private void emit(byte[] bytes, int start, int end, Sink sink)
+	{
+		position = shift + end;
+		if (pending == 0)
+		{
+			sink.word(bytes, start, end - start);
+			return;
+		}
+		append(bytes, start, end);
+		sink.word(word, 0, pending);
+		pending = 0;
+	}
+
+    /**
+     * add bytes to the unfinished word
+     *
+     * @param bytes: chunk being tokenized
+     * @param start: first byte to add
+     * @param end: end of the bytes to add, exclusive
+     */
+	private void append(byte[] bytes, int start, int end)
+	{
+		int length = end - start;
+		if (pending + length > word.length)
+		{
+			byte[] larger = new byte[Math.max(pending + length, word.length * 2)];
+			System.arraycopy(word, 0, larger, 0, pending);
+			word = larger;
+		}
+		System.arraycopy(bytes, start, word, pending, length);
+		pending += length;
+	}
+
+    /**
+     * copy a word out of the buffer and hand it to the sink
+     *
+     * @param buffer: text being tokenized
+     * @param start: first byte of the word
+     * @param end: end of the word, exclusive
+     * @param sink: receiver of the word
+     */
+	private void emit(ByteBuffer buffer, int start, int end, Sink sink)
+	{
+		int length = end - start;
+		if (length > word.length)
+			word = new byte[Math.max(length, word.length * 2)];
+		for (int i = 0; i < length; i++)
+			word[i] = buffer.get(start + i);
+		position = shift + end;
+		sink.word(word, 0, length);
+	}
+
+    /**
+     * move past the bytes of a word that cannot start whitespace, eight at a time
+     *
+     * @param lanes: text being tokenized, little-endian
+     * @param i: position inside a word
+     * @param limit: end of the readable bytes
+     * @return first position that may start whitespace, or a position
+     *         less than eight bytes before limit
+     */
+	private static int skipWord(ByteBuffer lanes, int i, int limit)
+	{
+		while (i + 8 <= limit)
+		{
+			long x = lanes.getLong(i);
+			// high bit of each byte below 0x21, and of each byte E0-E3 (E0-E3 xor E0 is below 4);
+			// the lowest flagged byte is exact, later ones may be false positives
+			long y = x ^ (0xE0 * ONES);
+			long candidates = ((x - 0x21 * ONES) & ~x | (y - 0x04 * ONES) & ~y) & HIGHS;
+			if (candidates != 0)
+				return i + (Long.numberOfTrailingZeros(candidates) >>> 3);
+			i += 8;
+		}
+		return i;
+	}
+
+    /**
+     * byte length of the whitespace character starting at a position
+     *
+     * @param buffer: text being tokenized
+     * @param i: position to test
+     * @param limit: end of the readable bytes
+     * @return 1 or 3 for whitespace, 0 for any other byte
+     */
+	private static int spaceLength(ByteBuffer buffer, int i, int limit)
+	{
+		byte b = buffer.get(i);
+		if (b >= 0)
+			return ASCII_SPACE[b] ? 1 : 0;
+		// the multibyte separators all start with E1, E2 or E3
+		if (b < (byte) 0xE1 || b > (byte) 0xE3 || i + 2 >= limit)
+			return 0;
+		return isSpace(b, buffer.get(i + 1), buffer.get(i + 2)) ? 3 : 0;
+	}
+
+    /**
+     * whether three bytes encode a multibyte whitespace character
+     *
+     * @param b0: lead byte
+     * @param b1: second byte
+     * @param b2: third byte
+     */
+	private static boolean isSpace(byte b0, byte b1, byte b2)
+	{
+		int c1 = b1 & 0xFF;
+		int c2 = b2 & 0xFF;
+		switch (b0 & 0xFF)
+		{
+		case 0xE1:
+			return c1 == 0x9A && c2 == 0x80;          // U+1680
+		case 0xE2:
+			if (c1 == 0x80)                           // U+2000-200A except U+2007, U+2028, U+2029
+				return (c2 >= 0x80 && c2 <= 0x8A && c2 != 0x87) || c2 == 0xA8 || c2 == 0xA9;
+			return c1 == 0x81 && c2 == 0x9F;          // U+205F
+		case 0xE3:
+			return c1 == 0x80 && c2 == 0x80;          // U+3000
+		default:
+			return false;
+		}
+	}
+
+    /**
+     * move a cut forward to the start of the next whitespace character, so
+     * the word it falls into stays whole; a cut inside a multibyte
+     * whitespace character moves back to that character's start
+     *
+     * @param channel: file being cut
+     * @param size: end of the bytes looked at, the file size or the end of a range
+     * @param position: wanted cut
+     * @return aligned cut, or size when no whitespace follows
+     */
+	private static long align(FileChannel channel, long size, long position) throws IOException
+	{
+		// separators are three bytes long, so a cut may sit up to two bytes into one
+		long base = Math.max(0, position - 2);
+		ByteBuffer window = ByteBuffer.allocate(ALIGN_WINDOW);
+		while (base < size)
+		{
+			window.clear();
+			while (window.hasRemaining() && base + window.position() < size)
+			{
+				if (channel.read(window, base + window.position()) < 0)
+					break;
+			}
+			int limit = window.position();
+			int i = (int) Math.max(0, position - 2 - base);
+			while (i < limit)
+			{
+				int space = spaceLength(window, i, limit);
+				if (space > 0 && base + i + space > position)
+					return base + i;
+				// a separator cut off by the window end is looked at again in the next window
+				if (space == 0 && limit - i < 3 && base + limit < size && (window.get(i) & 0xF0) == 0xE0)
+					break;
+				i += space > 0 ? space : 1;
+			}
+			if (i == 0)
+				return size;
+			base += i;
+			position = Math.max(position, base);
+		}
+		return size;
+	}
+}
@@ -0,0 +1,103 @@
+package wordcountservice;
+
+/**
+ * XxHashWordHasher:
+ *   32-bit xxHash over the UTF-8 bytes of a word
+ */
+public class XxHashWordHasher extends WordHasher
+{
+	private static final int PRIME1 = 0x9E3779B1;
+	private static final int PRIME2 = 0x85EBCA77;
+	private static final int PRIME3 = 0xC2B2AE3D;
+	private static final int PRIME4 = 0x27D4EB2F;
+	private static final int PRIME5 = 0x165667B1;
+
+	private final int seed;
+
+    /**
+     * constructor XxHashWordHasher, zero seed
+     */
+	public XxHashWordHasher()
+	{
+		this(0);
+	}
+
+    /**
+     * constructor XxHashWordHasher
+     *
+     * @param seed: hash seed
+     */
+	public XxHashWordHasher(int seed)
+	{
+		this.seed = seed;
+	}
+
+	@Override
+	public int hash(byte[] bytes, int offset, int length)
+	{
+		int i = offset;
+		int end = offset + length;
+		int h;
+
+		if (length >= 16)
+		{
+			int v1 = seed + PRIME1 + PRIME2;
+			int v2 = seed + PRIME2;
+			int v3 = seed;
+			int v4 = seed - PRIME1;
+			int limit = end - 16;
+			do
+			{
+				v1 = round(v1, readInt(bytes, i));
+				v2 = round(v2, readInt(bytes, i + 4));
+				v3 = round(v3, readInt(bytes, i + 8));
+				v4 = round(v4, readInt(bytes, i + 12));
+				i += 16;
+			} while (i <= limit);
+			h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7)
+					+ Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+		}
+		else
+		{
+			h = seed + PRIME5;
+		}
+
+		h += length;
+		for (; i + 4 <= end; i += 4)
+		{
+			h += readInt(bytes, i) * PRIME3;
+			h = Integer.rotateLeft(h, 17) * PRIME4;
+		}
+		for (; i < end; i++)
+		{
+			h += (bytes[i] & 0xff) * PRIME5;
+			h = Integer.rotateLeft(h, 11) * PRIME1;
+		}
+
+		h ^= h >>> 15;
+		h *= PRIME2;
+		h ^= h >>> 13;
+		h *= PRIME3;
+		h ^= h >>> 16;
+		return h;
+	}
+
+    /**
+     * one xxHash accumulator round
+     */
+	private static int round(int acc, int input)
+	{
+		acc += input * PRIME2;
+		acc = Integer.rotateLeft(acc, 13);
+		return acc * PRIME1;
+	}
+
+    /**
+     * little-endian int at a byte position
+     */
+	private static int readInt(byte[] bytes, int i)
+	{
+		return (bytes[i] & 0xff) | ((bytes[i + 1] & 0xff) << 8)
+				| ((bytes[i + 2] & 0xff) << 16) | (bytes[i + 3] << 24);
+	}
+}